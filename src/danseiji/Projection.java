@@ -0,0 +1,565 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package danseiji;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+
+/**
+ * A finished Danseiji projection, loaded from a saved file into a few flat arrays so that it
+ * can map points both ways without any of the machinery in the model package. It works out
+ * the Elements of each Cell the same way Cell does, and maps with the same interpolation as
+ * Cell.map and Element.mapDeformedToSpherical; the forward map of each Element is compiled
+ * down to six affine coefficients, so mapping a point is a few multiply-adds once its Element
+ * is found. A Projection of the same Mesh with its Vertices somewhere else, like the ones
+ * made every step for the snapshots, shares the topology instead and interpolates between
+ * its Vertices with six barycentric coefficients per Element, which only depend on the
+ * topology. The grid for inverse mapping isn't built until something inverse maps.
+ * Nothing else changes after it's loaded, so any number of threads can use it at once (a
+ * moved copy can be moved again, but only while nobody is using it).
+ * 
+ * @author Justin Kunimune
+ */
+public final class Projection {
+	
+	public static final double DEFAULT_ECCENTRICITY = 0.081819; // the eccentricity with which the projections in output/ were made
+	
+	private final int numRows, numCols; // the size of the Cell table
+	private final double eccentricity; // the eccentricity of the globe
+	private double width, height; // the size of the map (which only changes for a moved copy)
+	private final double[] xN, xS, yN, yS; // the undeformed dimensions of the Cells in each row (up to a scale factor)
+	private final double[] splitSlope; // the slope of the line between the two Elements of the Cells in each row
+	private final int[] cellShape; // the sign of each Cell
+	private final int[] cellElements; // the indices of the first and second Element of each Cell, or -1
+	private final int[] elementVertices; // the indices of the three Vertices of each Element
+	private final double[] barycentric; // the coefficients of wa = a0 + a1*x + a2*y and wb = b0 + b1*x + b2*y for each Element
+	private final double[] affine; // the coefficients of X = a0 + a1*x + a2*y and Y = a3 + a4*x + a5*y for each Element, or null for a moved copy
+	private final double[] vertexXY; // the deformed X and Y of each Vertex
+	private final double[] vertexXYZ; // the 3D position on the globe of each Vertex
+	private final int[] edge; // the indices of the edge Vertices, widdershins
+	private final int tableRows, tableCols; // the size of the inverse table
+	private final DoubleBuffer table; // the phi and lam of each point in the inverse table
+	private volatile InverseGrid grid; // the Elements near each point, or null if nothing has inverse mapped yet
+	
+	
+	
+	/**
+	 * Load a projection from a CSV or binary file, assuming it was made with the default
+	 * eccentricity.
+	 * @param file - The file to load, in either format that ProjectionFile reads.
+	 * @return the projection.
+	 * @throws IOException if the file can't be read or isn't formatted correctly.
+	 */
+	public static Projection load(File file) throws IOException {
+		return new Projection(ProjectionFile.read(file), DEFAULT_ECCENTRICITY);
+	}
+	
+	
+	/**
+	 * Set up a projection from the contents of a projection file.
+	 * @param file - The loaded projection file.
+	 * @param eccentricity - The eccentricity of the globe that was used to make the projection.
+	 */
+	public Projection(ProjectionFile file, double eccentricity) {
+		this.numRows = file.getNumRows();
+		this.numCols = file.getNumCols();
+		this.eccentricity = eccentricity;
+		this.width = file.getWidth();
+		this.height = file.getHeight();
+		this.tableRows = file.getTableRows();
+		this.tableCols = file.getTableCols();
+		this.table = file.getTable();
+		
+		this.xN = new double[numRows]; // start with the Cell dimensions, which only depend on latitude
+		this.xS = new double[numRows];
+		this.yN = new double[numRows];
+		this.yS = new double[numRows];
+		this.splitSlope = new double[numRows];
+		double e2 = eccentricity*eccentricity;
+		for (int i = 0; i < numRows; i ++) {
+			double phiN = rowPhi(i), phiS = rowPhi(i+1); // (the size of the Cell cancels out of everything, so leave it out)
+			yN[i] = .5*(1 - e2)*Math.pow(1 - e2*Math.pow(Math.sin(phiN), 2), -3/2.);
+			yS[i] = .5*(1 - e2)*Math.pow(1 - e2*Math.pow(Math.sin(phiS), 2), -3/2.);
+			xN[i] = .5*Math.cos(phiN)*Math.pow(1 - e2*Math.pow(Math.sin(phiN), 2), -1/2.);
+			xS[i] = .5*Math.cos(phiS);
+			splitSlope[i] = (xN[i]+xS[i])/(yN[i]+yS[i]);
+		}
+		
+		int numVertices = file.getNumVertices();
+		this.vertexXY = new double[2*numVertices];
+		for (int v = 0; v < numVertices; v ++) {
+			vertexXY[2*v] = file.getVertexX(v);
+			vertexXY[2*v+1] = file.getVertexY(v);
+		}
+		
+		this.edge = new int[file.getEdgeLength()];
+		for (int i = 0; i < edge.length; i ++)
+			edge[i] = file.getEdgeVertex(i);
+		
+		int numElements = 0;
+		for (int i = 0; i < numRows; i ++)
+			for (int j = 0; j < numCols; j ++)
+				numElements += (file.getCellShape(i, j) == 0) ? 1 : 2;
+		this.cellShape = new int[numRows*numCols];
+		this.cellElements = new int[2*numRows*numCols];
+		this.elementVertices = new int[3*numElements];
+		this.barycentric = new double[6*numElements];
+		this.affine = new double[6*numElements];
+		this.vertexXYZ = new double[3*numVertices];
+		int k = 0; // the index of the next Element
+		for (int i = 0; i < numRows; i ++) {
+			for (int j = 0; j < numCols; j ++) {
+				int c = i*numCols + j;
+				int[] corners = new int[file.getNumCorners(i, j)];
+				for (int l = 0; l < corners.length; l ++)
+					corners[l] = file.getCellCorner(i, j, l);
+				cellShape[c] = file.getCellShape(i, j);
+				
+				double xn = xN[i], xs = xS[i], yn = yN[i], ys = yS[i];
+				if (cellShape[c] == 0) {
+					setCorners(corners, new int[] {0, 1, 2, 3}, i, j); // NE, NW, SW, SE
+					if (corners[0] == corners[1]) // north pole
+						setElement(k, corners[1], 0, yn, corners[2], -xs, -ys, corners[3], xs, -ys);
+					else // south pole
+						setElement(k, corners[3], 0, -ys, corners[0], xn, yn, corners[1], -xn, yn);
+					cellElements[2*c] = k ++;
+					cellElements[2*c+1] = -1;
+				}
+				else if (cellShape[c] < 0) { // NE, N, NW, SW, S, SE, where N is NW and S is SE
+					setCorners(corners, new int[] {0, 1, 1, 2, 3, 3}, i, j);
+					setElement(k, corners[3], -xs, -ys, corners[4], xs, -ys, corners[2], -xn, yn); // southwest Element
+					cellElements[2*c] = k ++;
+					setElement(k, corners[0], xn, yn, corners[1], -xn, yn, corners[5], xs, -ys); // northeast Element
+					cellElements[2*c+1] = k ++;
+				}
+				else { // NE, N, NW, SW, S, SE, where N is NE and S is SW
+					setCorners(corners, new int[] {0, 0, 1, 2, 2, 3}, i, j);
+					setElement(k, corners[2], -xn, yn, corners[3], -xs, -ys, corners[1], xn, yn); // northwest Element
+					cellElements[2*c] = k ++;
+					setElement(k, corners[5], xs, -ys, corners[0], xn, yn, corners[4], -xs, -ys); // southeast Element
+					cellElements[2*c+1] = k ++;
+				}
+			}
+		}
+		
+		this.grid = null;
+	}
+	
+	
+	/**
+	 * Make a copy of a projection that shares its topology but has its Vertices somewhere
+	 * else. Only the forward map and the inverse map within the Elements work the same way;
+	 * there is no inverse table.
+	 */
+	private Projection(Projection topology, double[] vertexXY, double width, double height) {
+		this.numRows = topology.numRows;
+		this.numCols = topology.numCols;
+		this.eccentricity = topology.eccentricity;
+		this.width = width;
+		this.height = height;
+		this.xN = topology.xN;
+		this.xS = topology.xS;
+		this.yN = topology.yN;
+		this.yS = topology.yS;
+		this.splitSlope = topology.splitSlope;
+		this.cellShape = topology.cellShape;
+		this.cellElements = topology.cellElements;
+		this.elementVertices = topology.elementVertices;
+		this.barycentric = topology.barycentric;
+		this.affine = null; // (these would have to be worked out again every time it moved)
+		this.vertexXY = vertexXY;
+		this.vertexXYZ = topology.vertexXYZ;
+		this.edge = topology.edge;
+		this.tableRows = 0;
+		this.tableCols = 0;
+		this.table = DoubleBuffer.wrap(new double[0]);
+		this.grid = null;
+	}
+	
+	
+	
+	/**
+	 * Get a projection of the same Mesh with its Vertices moved. This doesn't copy anything,
+	 * so it's cheap enough to do every time the Mesh moves, but the array must not change
+	 * while the new projection is in use.
+	 * @param vertexXY - The new X and Y of each Vertex, alternating, numbered the same way.
+	 * @param width - The width of the map, now.
+	 * @param height - The height of the map, now.
+	 * @return the moved projection, which has no inverse table.
+	 */
+	public Projection withVertices(double[] vertexXY, double width, double height) {
+		if (vertexXY.length != this.vertexXY.length)
+			throw new IllegalArgumentException("Expected "+this.vertexXY.length/2+" Vertices, not "+vertexXY.length/2);
+		return new Projection(this, vertexXY, width, height);
+	}
+	
+	
+	/**
+	 * Tell a projection made by withVertices that the Vertices in its array have moved again,
+	 * so that it can forget anything it worked out from where they were. It must not be in
+	 * use while this happens.
+	 * @param width - The width of the map, now.
+	 * @param height - The height of the map, now.
+	 */
+	public void verticesMoved(double width, double height) {
+		if (affine != null)
+			throw new IllegalStateException("Only a projection made by withVertices can move");
+		this.width = width;
+		this.height = height;
+		this.grid = null;
+	}
+	
+	
+	/**
+	 * Convert spherical coordinates to Cartesian coordinates.
+	 * @param philam - The latitude and longitude of the point to map, in radians.
+	 * @return an array of two elements: {X, Y}.
+	 */
+	public double[] map(double... philam) {
+		double[] XY = new double[2];
+		mapInto(philam[0], philam[1], XY, 0);
+		return XY;
+	}
+	
+	
+	/**
+	 * Convert spherical coordinates to Cartesian coordinates, and put them in an array that
+	 * already exists.
+	 * @param phi - The latitude of the point to map, in radians.
+	 * @param lam - The longitude of the point to map, in radians.
+	 * @param out - The array in which to put X and Y.
+	 * @param off - The index in out at which to put X; Y goes right after it.
+	 */
+	public void mapInto(double phi, double lam, double[] out, int off) {
+		int i = Math.min((int)((.5 - phi/Math.PI)*numRows), numRows-1); // find the Cell the same way Mesh.map does
+		int j = Math.min((int)((lam/Math.PI + 1.)*numRows), numCols-1);
+		double phiSpan = Math.PI/numRows;
+		double delPhi = phi - (.5 - (double)(i+1)/numRows)*Math.PI;
+		double delLam = lam - ((double)j/numRows - 1.)*Math.PI;
+		
+		double y = delPhi/phiSpan*(yN[i] + yS[i]) - yS[i]; // then find the undeformed position the same way Cell.map does
+		double c = delPhi/phiSpan;
+		double x = (delLam/(phiSpan/2) - 1)*(c*xN[i] + (1-c)*xS[i]);
+		int sign = cellShape[i*numCols + j];
+		int e;
+		if (sign == 0 || x <= sign*(-xS[i] + splitSlope[i]*(y+yS[i])))
+			e = cellElements[2*(i*numCols + j)];
+		else
+			e = cellElements[2*(i*numCols + j) + 1];
+		
+		if (affine != null) { // and apply that Element's transform
+			out[off] = affine[6*e] + affine[6*e+1]*x + affine[6*e+2]*y;
+			out[off+1] = affine[6*e+3] + affine[6*e+4]*x + affine[6*e+5]*y;
+			return;
+		}
+		double wa = barycentric[6*e] + barycentric[6*e+1]*x + barycentric[6*e+2]*y; // or interpolate between its Vertices if it has moved
+		double wb = barycentric[6*e+3] + barycentric[6*e+4]*x + barycentric[6*e+5]*y;
+		double wc = 1 - wa - wb;
+		int va = elementVertices[3*e], vb = elementVertices[3*e+1], vc = elementVertices[3*e+2];
+		out[off] = wa*vertexXY[2*va] + wb*vertexXY[2*vb] + wc*vertexXY[2*vc];
+		out[off+1] = wa*vertexXY[2*va+1] + wb*vertexXY[2*vb+1] + wc*vertexXY[2*vc+1];
+	}
+	
+	
+	/**
+	 * Convert a whole batch of spherical coordinates to Cartesian coordinates, like Mesh.map,
+	 * without allocating anything for each point.
+	 * @param phi - The latitudes of the points to map, in radians.
+	 * @param lam - The longitudes of the points to map, in radians.
+	 * @param X - The array in which to put the X coordinates.
+	 * @param Y - The array in which to put the Y coordinates.
+	 * @param off - The index of the first point to map.
+	 * @param len - The number of points to map.
+	 */
+	public void map(double[] phi, double[] lam, double[] X, double[] Y, int off, int len) {
+		double[] XY = new double[2]; // one array for the whole batch
+		for (int k = off; k < off+len; k ++) {
+			mapInto(phi[k], lam[k], XY, 0);
+			X[k] = XY[0];
+			Y[k] = XY[1];
+		}
+	}
+	
+	
+	/**
+	 * Convert Cartesian coordinates to spherical coordinates. Points inside the map are
+	 * interpolated from the Element that contains them; points off the edge of the map are
+	 * interpolated from the inverse table, if they're inside it.
+	 * @param XY - The X and Y coordinates of the point to map.
+	 * @return an array of two elements: {phi, lam}, which are NaN if the point is outside the table.
+	 */
+	public double[] inverseMap(double... XY) {
+		double[] philam = new double[2];
+		inverseMapInto(XY[0], XY[1], philam, 0);
+		return philam;
+	}
+	
+	
+	/**
+	 * Convert Cartesian coordinates to spherical coordinates, and put them in an array that
+	 * already exists.
+	 * @param X - The X coordinate of the point to map.
+	 * @param Y - The Y coordinate of the point to map.
+	 * @param out - The array in which to put phi and lam.
+	 * @param off - The index in out at which to put phi; lam goes right after it.
+	 */
+	public void inverseMapInto(double X, double Y, double[] out, int off) {
+		InverseGrid grid = this.grid;
+		if (grid == null) { // build the grid the first time anyone needs it
+			synchronized (this) {
+				if (this.grid == null)
+					this.grid = new InverseGrid();
+				grid = this.grid;
+			}
+		}
+		int e = grid.locate(X, Y);
+		if (e >= 0) { // if it's on the map, interpolate like Element.mapDeformedToSpherical
+			int va = elementVertices[3*e], vb = elementVertices[3*e+1], vc = elementVertices[3*e+2];
+			double Xa = vertexXY[2*va], Ya = vertexXY[2*va+1];
+			double Xb = vertexXY[2*vb], Yb = vertexXY[2*vb+1];
+			double Xc = vertexXY[2*vc], Yc = vertexXY[2*vc+1];
+			double denom = (Yb-Yc)*(Xa-Xc) - (Xb-Xc)*(Ya-Yc);
+			double wa = ((Yb-Yc)*(X-Xc) - (Xb-Xc)*(Y-Yc)) / denom;
+			double wb = ((Yc-Ya)*(X-Xc) - (Xc-Xa)*(Y-Yc)) / denom;
+			double wc = 1 - wa - wb;
+			double x = wa*vertexXYZ[3*va] + wb*vertexXYZ[3*vb] + wc*vertexXYZ[3*vc];
+			double y = wa*vertexXYZ[3*va+1] + wb*vertexXYZ[3*vb+1] + wc*vertexXYZ[3*vc+1];
+			double z = wa*vertexXYZ[3*va+2] + wb*vertexXYZ[3*vb+2] + wc*vertexXYZ[3*vc+2];
+			out[off] = Math.atan2(z, Math.hypot(x, y));
+			out[off+1] = Math.atan2(y, x);
+			return;
+		}
+		
+		double i = (height/2 - Y)/height*(tableRows-1); // otherwise, find it in the inverse table
+		double j = (X + width/2)/width*(tableCols-1);
+		if (!(i >= 0 && i <= tableRows-1 && j >= 0 && j <= tableCols-1)) {
+			out[off] = Double.NaN; // if it's not in there either, there's nothing we can do
+			out[off+1] = Double.NaN;
+			return;
+		}
+		int i0 = Math.min((int)i, tableRows-2), j0 = Math.min((int)j, tableCols-2);
+		double di = i - i0, dj = j - j0;
+		double x = 0, y = 0, z = 0;
+		for (int a = 0; a <= 1; a ++) { // and interpolate between the four nearest points in 3D
+			for (int b = 0; b <= 1; b ++) {
+				double w = ((a == 0) ? 1-di : di)*((b == 0) ? 1-dj : dj);
+				int t = 2*((i0+a)*tableCols + (j0+b));
+				double phi = table.get(t), lam = table.get(t+1);
+				x += w*Math.cos(phi)*Math.cos(lam);
+				y += w*Math.cos(phi)*Math.sin(lam);
+				z += w*Math.sin(phi);
+			}
+		}
+		out[off] = Math.atan2(z, Math.hypot(x, y));
+		out[off+1] = Math.atan2(y, x);
+	}
+	
+	
+	/**
+	 * Find where the edge of the map is on the globe, like Mesh.getEdgeCoordinates.
+	 * @return the latitude and longitude of each edge Vertex in order, alternating, in radians.
+	 */
+	public double[] getEdgeCoordinates() {
+		double[] coords = new double[2*edge.length];
+		for (int i = 0; i < edge.length; i ++) {
+			double x = vertexXYZ[3*edge[i]], y = vertexXYZ[3*edge[i]+1], z = vertexXYZ[3*edge[i]+2];
+			coords[2*i] = Math.atan2(z, Math.hypot(x, y));
+			coords[2*i+1] = Math.atan2(y, x);
+		}
+		return coords;
+	}
+	
+	
+	public int getNumRows() {
+		return this.numRows;
+	}
+	
+	
+	public double getEccentricity() {
+		return this.eccentricity;
+	}
+	
+	
+	public double getWidth() {
+		return this.width;
+	}
+	
+	
+	public double getHeight() {
+		return this.height;
+	}
+	
+	
+	/**
+	 * Save the 3D position of each Vertex at the corners of this Cell, based on which corner it's at.
+	 * @param corners - The Vertex indices in the order they appear in the projection file.
+	 * @param positions - The corner at which each one is: 0 for NE, 1 for NW, 2 for SW, and 3 for SE.
+	 */
+	private void setCorners(int[] corners, int[] positions, int i, int j) {
+		for (int l = 0; l < corners.length; l ++) {
+			double phi = rowPhi((positions[l] < 2) ? i : i+1);
+			double lam = ((double)((positions[l] == 0 || positions[l] == 3) ? j+1 : j)/numRows - 1.)*Math.PI;
+			vertexXYZ[3*corners[l]] = Math.cos(phi)*Math.cos(lam);
+			vertexXYZ[3*corners[l]+1] = Math.cos(phi)*Math.sin(lam);
+			vertexXYZ[3*corners[l]+2] = Math.sin(phi);
+		}
+	}
+	
+	
+	/**
+	 * Save the Vertices of this Element, and work out the coefficients that take undeformed
+	 * coordinates to its barycentric coordinates and the affine transform that takes them to
+	 * its deformed ones, so that we don't have to divide every time (this requires the Vertex
+	 * positions to be loaded already).
+	 */
+	private void setElement(int k, int va, double xa, double ya, int vb, double xb, double yb, int vc, double xc, double yc) {
+		elementVertices[3*k] = va;
+		elementVertices[3*k+1] = vb;
+		elementVertices[3*k+2] = vc;
+		double denom = (yb-yc)*(xa-xc) - (xb-xc)*(ya-yc); // these come from expanding Element.mapUndeformedToDeformed
+		barycentric[6*k+1] = (yb-yc)/denom;
+		barycentric[6*k+2] = (xc-xb)/denom;
+		barycentric[6*k] = -barycentric[6*k+1]*xc - barycentric[6*k+2]*yc;
+		barycentric[6*k+4] = (yc-ya)/denom;
+		barycentric[6*k+5] = (xa-xc)/denom;
+		barycentric[6*k+3] = -barycentric[6*k+4]*xc - barycentric[6*k+5]*yc;
+		for (int l = 0; l < 2; l ++) { // for X and then Y
+			double Za = vertexXY[2*va+l], Zb = vertexXY[2*vb+l], Zc = vertexXY[2*vc+l];
+			double dx = ((yb-yc)*(Za-Zc) + (yc-ya)*(Zb-Zc))/denom;
+			double dy = ((xc-xb)*(Za-Zc) + (xa-xc)*(Zb-Zc))/denom;
+			affine[6*k+3*l] = Zc - dx*xc - dy*yc;
+			affine[6*k+3*l+1] = dx;
+			affine[6*k+3*l+2] = dy;
+		}
+	}
+	
+	
+	/**
+	 * The latitude of the northern boundary of this row of Cells.
+	 */
+	private double rowPhi(int i) {
+		return (.5 - (double)i/numRows)*Math.PI;
+	}
+	
+	
+	
+	/**
+	 * A grid of buckets over the map, each listing the Elements that might be in it.
+	 */
+	private class InverseGrid {
+		
+		private final int[] bucketStart; // the index in bucketContents at which each bucket starts (plus one at the end)
+		private final int[] bucketContents; // the indices of the Elements in each bucket
+		private final double gridXMin, gridYMin, bucketSize; // the position and scale of the grid
+		private final int gridX, gridY; // the number of buckets in each direction
+		
+		
+		private InverseGrid() {
+			int numElements = elementVertices.length/3;
+			double xMin = Double.POSITIVE_INFINITY, xMax = Double.NEGATIVE_INFINITY;
+			double yMin = Double.POSITIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+			for (int v = 0; v < vertexXY.length/2; v ++) {
+				xMin = Math.min(xMin, vertexXY[2*v]);
+				xMax = Math.max(xMax, vertexXY[2*v]);
+				yMin = Math.min(yMin, vertexXY[2*v+1]);
+				yMax = Math.max(yMax, vertexXY[2*v+1]);
+			}
+			double bucketSize = Math.sqrt((xMax - xMin)*(yMax - yMin)/numElements); // aim for about one Element per bucket
+			if (!(bucketSize > 0))
+				bucketSize = Math.max(xMax - xMin, yMax - yMin) + 1;
+			this.gridXMin = xMin;
+			this.gridYMin = yMin;
+			this.bucketSize = bucketSize;
+			this.gridX = (int)((xMax - xMin)/bucketSize) + 1;
+			this.gridY = (int)((yMax - yMin)/bucketSize) + 1;
+			this.bucketStart = new int[gridX*gridY + 1];
+			for (int e = 0; e < numElements; e ++) { // count how many Elements touch each bucket
+				int[] range = bucketRange(e);
+				for (int y = range[2]; y <= range[3]; y ++)
+					for (int x = range[0]; x <= range[1]; x ++)
+						bucketStart[y*gridX + x + 1] ++;
+			}
+			for (int b = 0; b < gridX*gridY; b ++) // turn those counts into offsets
+				bucketStart[b+1] += bucketStart[b];
+			this.bucketContents = new int[bucketStart[gridX*gridY]];
+			int[] fill = new int[gridX*gridY]; // then drop each Element in
+			for (int e = 0; e < numElements; e ++) {
+				int[] range = bucketRange(e);
+				for (int y = range[2]; y <= range[3]; y ++)
+					for (int x = range[0]; x <= range[1]; x ++)
+						bucketContents[bucketStart[y*gridX + x] + fill[y*gridX + x]++] = e;
+			}
+		}
+		
+		
+		/**
+		 * Find the Element whose deformed triangle contains this point.
+		 * @return the index of the Element, or -1 if there is none.
+		 */
+		private int locate(double X, double Y) {
+			int x = (int)Math.floor((X - gridXMin)/bucketSize), y = (int)Math.floor((Y - gridYMin)/bucketSize);
+			if (x < 0 || x >= gridX || y < 0 || y >= gridY)
+				return -1;
+			int b = y*gridX + x;
+			for (int k = bucketStart[b]; k < bucketStart[b+1]; k ++) {
+				int e = bucketContents[k];
+				int va = elementVertices[3*e], vb = elementVertices[3*e+1], vc = elementVertices[3*e+2];
+				double Xa = vertexXY[2*va], Ya = vertexXY[2*va+1];
+				double Xb = vertexXY[2*vb], Yb = vertexXY[2*vb+1];
+				double Xc = vertexXY[2*vc], Yc = vertexXY[2*vc+1];
+				double denom = (Yb-Yc)*(Xa-Xc) - (Xb-Xc)*(Ya-Yc);
+				double wa = ((Yb-Yc)*(X-Xc) - (Xb-Xc)*(Y-Yc)) / denom; // same test as Element.containsDeformed
+				double wb = ((Yc-Ya)*(X-Xc) - (Xc-Xa)*(Y-Yc)) / denom;
+				double wc = 1 - wa - wb;
+				if (wa >= -1e-12 && wb >= -1e-12 && wc >= -1e-12)
+					return e;
+			}
+			return -1;
+		}
+		
+		
+		/**
+		 * Find the range of buckets that this Element's bounding box touches.
+		 * @return {min x, max x, min y, max y}
+		 */
+		private int[] bucketRange(int e) {
+			double eXMin = Double.POSITIVE_INFINITY, eXMax = Double.NEGATIVE_INFINITY;
+			double eYMin = Double.POSITIVE_INFINITY, eYMax = Double.NEGATIVE_INFINITY;
+			for (int l = 0; l < 3; l ++) {
+				int v = elementVertices[3*e+l];
+				eXMin = Math.min(eXMin, vertexXY[2*v]);
+				eXMax = Math.max(eXMax, vertexXY[2*v]);
+				eYMin = Math.min(eYMin, vertexXY[2*v+1]);
+				eYMax = Math.max(eYMax, vertexXY[2*v+1]);
+			}
+			return new int[] {
+					Math.max(0, (int)((eXMin - gridXMin)/bucketSize)), Math.min(gridX-1, (int)((eXMax - gridXMin)/bucketSize)),
+					Math.max(0, (int)((eYMin - gridYMin)/bucketSize)), Math.min(gridY-1, (int)((eYMax - gridYMin)/bucketSize))};
+		}
+	}
+}
@@ -0,0 +1,510 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package danseiji;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * The contents of a saved Danseiji projection: the Vertex positions, the Vertices at the
+ * corners of each Cell, the edge, and the inverse table. It can be read from and written to
+ * either the CSV format that Mesh.save writes or a binary format that holds the same numbers,
+ * which can be memory-mapped and used without parsing anything.
+ * <br>
+ * 	The binary format is little-endian. It starts with an 80-byte header: the magic number
+ * 	"DSJM", the format version, the number of Vertices, the number of rows and columns of
+ * 	Cells, the length of the edge, and the number of rows and columns in the inverse table as
+ * 	ints; the width and height of the map as doubles; and then the byte offsets of the four
+ * 	sections as longs.
+ * <br>
+ * 	The sections are the Vertex x and y coordinates as pairs of doubles; the Cells as seven
+ * 	ints each, the shape code followed by the corner indices in the same order as the CSV and
+ * 	padded with -1; the edge Vertex indices as ints; and the inverse table as pairs of doubles.
+ * 	Each section starts on a multiple of eight bytes.
+ * 
+ * @author Justin Kunimune
+ */
+public class ProjectionFile {
+	
+	public static final int MAGIC = 0x4D4A5344; // spells "DSJM" in little-endian
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 80;
+	public static final int CELL_SIZE = 7; // the number of ints that describe each Cell
+	
+	private final int numVertices, numRows, numCols, edgeLength, tableRows, tableCols;
+	private final double width, height;
+	private final DoubleBuffer vertices; // x and y of each Vertex
+	private final IntBuffer cells; // shape and corners of each Cell
+	private final IntBuffer edge; // index of each edge Vertex
+	private final DoubleBuffer table; // phi and lam at each pixel of the inverse table
+	
+	
+	
+	/**
+	 * Put together a projection file from arrays that are already in memory.
+	 * @param numRows - The number of rows of Cells.
+	 * @param numCols - The number of columns of Cells.
+	 * @param width - The width of the map.
+	 * @param height - The height of the map.
+	 * @param vertices - The x and y coordinates of each Vertex.
+	 * @param cells - The shape and corners of each Cell, CELL_SIZE ints for each one.
+	 * @param edge - The index of each edge Vertex.
+	 * @param tableRows - The number of rows in the inverse table.
+	 * @param tableCols - The number of columns in the inverse table.
+	 * @param table - The latitude and longitude at each point in the inverse table.
+	 */
+	public ProjectionFile(int numRows, int numCols, double width, double height,
+			double[] vertices, int[] cells, int[] edge, int tableRows, int tableCols, double[] table) {
+		this(vertices.length/2, numRows, numCols, edge.length, tableRows, tableCols, width, height,
+				DoubleBuffer.wrap(vertices), IntBuffer.wrap(cells), IntBuffer.wrap(edge), DoubleBuffer.wrap(table));
+	}
+	
+	
+	private ProjectionFile(int numVertices, int numRows, int numCols, int edgeLength,
+			int tableRows, int tableCols, double width, double height,
+			DoubleBuffer vertices, IntBuffer cells, IntBuffer edge, DoubleBuffer table) {
+		this.numVertices = numVertices;
+		this.numRows = numRows;
+		this.numCols = numCols;
+		this.edgeLength = edgeLength;
+		this.tableRows = tableRows;
+		this.tableCols = tableCols;
+		this.width = width;
+		this.height = height;
+		this.vertices = vertices;
+		this.cells = cells;
+		this.edge = edge;
+		this.table = table;
+	}
+	
+	
+	
+	/**
+	 * Read a projection file in whichever format its name suggests: binary if it ends in .bin
+	 * and CSV otherwise.
+	 * @param file - The file to read.
+	 * @return the projection.
+	 * @throws IOException if the file can't be read or isn't formatted correctly.
+	 */
+	public static ProjectionFile read(File file) throws IOException {
+		if (file.getName().endsWith(".bin"))
+			return readBinary(file);
+		else
+			return readCsv(file);
+	}
+	
+	
+	/**
+	 * Read a projection from the CSV format described in Mesh.save.
+	 * @param file - The CSV file to read.
+	 * @return the projection.
+	 * @throws IOException if the file can't be read or isn't formatted correctly.
+	 */
+	public static ProjectionFile readCsv(File file) throws IOException {
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String[] header = nextRow(in, 8);
+			int l = Integer.parseInt(header[0]), n = Integer.parseInt(header[1]), m = Integer.parseInt(header[2]);
+			int e = Integer.parseInt(header[3]), o = Integer.parseInt(header[4]), p = Integer.parseInt(header[5]);
+			double w = Double.parseDouble(header[6]), h = Double.parseDouble(header[7]);
+			
+			DoubleBuffer vertices = DoubleBuffer.allocate(2*l);
+			for (int i = 0; i < l; i ++) {
+				String[] row = nextRow(in, 2);
+				vertices.put(parseCoordinate(row[0])).put(parseCoordinate(row[1]));
+			}
+			
+			IntBuffer cells = IntBuffer.allocate(CELL_SIZE*n*m);
+			for (int i = 0; i < n*m; i ++) {
+				String[] row = nextRow(in, -1);
+				int shape = Integer.parseInt(row[0]);
+				if (row.length != ((shape == 0) ? 5 : 7))
+					throw new IOException("Cell "+i+" of shape "+shape+" has "+(row.length-1)+" corners");
+				for (int k = 0; k < CELL_SIZE; k ++)
+					cells.put((k < row.length) ? Integer.parseInt(row[k]) : -1);
+			}
+			
+			IntBuffer edge = IntBuffer.allocate(e);
+			for (int i = 0; i < e; i ++)
+				edge.put(Integer.parseInt(nextRow(in, 1)[0]));
+			
+			DoubleBuffer table = DoubleBuffer.allocate(2*o*p);
+			for (int i = 0; i < o*p; i ++) {
+				String[] row = nextRow(in, 2);
+				table.put(parseCoordinate(row[0])).put(parseCoordinate(row[1]));
+			}
+			
+			if (in.readLine() != null)
+				throw new IOException("The CSV file goes on after the end of the inverse table");
+			vertices.rewind();
+			cells.rewind();
+			edge.rewind();
+			table.rewind();
+			return new ProjectionFile(l, n, m, e, o, p, w, h, vertices, cells, edge, table);
+		}
+	}
+	
+	
+	/**
+	 * Map a projection in the binary format into memory. Nothing is copied; the buffers
+	 * look straight into the file.
+	 * @param file - The binary file to map.
+	 * @return the projection.
+	 * @throws IOException if the file can't be read or isn't formatted correctly.
+	 */
+	public static ProjectionFile readBinary(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // (the mapping outlives the channel)
+			data.order(ByteOrder.LITTLE_ENDIAN);
+			if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC)
+				throw new IOException(file+" is not a Danseiji projection file");
+			if (data.getInt(4) != VERSION)
+				throw new IOException(file+" is version "+data.getInt(4)+", but I can only read version "+VERSION);
+			int l = data.getInt(8), n = data.getInt(12), m = data.getInt(16);
+			int e = data.getInt(20), o = data.getInt(24), p = data.getInt(28);
+			double w = data.getDouble(32), h = data.getDouble(40);
+			return new ProjectionFile(l, n, m, e, o, p, w, h,
+					section(data, data.getLong(48), 16L*l).asDoubleBuffer(),
+					section(data, data.getLong(56), 4L*CELL_SIZE*n*m).asIntBuffer(),
+					section(data, data.getLong(64), 4L*e).asIntBuffer(),
+					section(data, data.getLong(72), 16L*o*p).asDoubleBuffer());
+		}
+	}
+	
+	
+	/**
+	 * Save this projection in the CSV format described in Mesh.save.
+	 * @param file - The file to which to write it.
+	 * @throws IOException if there is a problem writing to the file.
+	 */
+	public void writeCsv(File file) throws IOException {
+		writeCsv(new FileOutputStream(file));
+	}
+	
+	
+	/**
+	 * Print this projection in the CSV format described in Mesh.save, and close the stream.
+	 * @param stream - The stream to which to print it.
+	 * @throws IOException if there is a problem writing to the stream.
+	 */
+	public void writeCsv(OutputStream stream) throws IOException {
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1<<16))) {
+			out.printf(Locale.US, "%d,%d,%d,%d,%d,%d,%f,%f\n",
+					numVertices, numRows, numCols, edgeLength, tableRows, tableCols, width, height);
+			for (int i = 0; i < numVertices; i ++)
+				out.printf(Locale.US, "%f,%f\n", getVertexX(i), getVertexY(i));
+			for (int i = 0; i < numRows; i ++) {
+				for (int j = 0; j < numCols; j ++) {
+					out.print(getCellShape(i, j));
+					for (int k = 0; k < getNumCorners(i, j); k ++)
+						out.print(","+getCellCorner(i, j, k));
+					out.print("\n");
+				}
+			}
+			for (int i = 0; i < edgeLength; i ++)
+				out.printf(Locale.US, "%d\n", getEdgeVertex(i));
+			for (int i = 0; i < tableRows; i ++)
+				for (int j = 0; j < tableCols; j ++)
+					out.printf(Locale.US, "%f,%f\n", getTablePhi(i, j), getTableLam(i, j));
+			if (out.checkError())
+				throw new IOException("Could not write the CSV");
+		}
+	}
+	
+	
+	/**
+	 * Save this projection in the binary format.
+	 * @param file - The file to which to write it.
+	 * @throws IOException if there is a problem writing to the file.
+	 */
+	public void writeBinary(File file) throws IOException {
+		long vertexStart = HEADER_SIZE;
+		long cellStart = align(vertexStart + 16L*numVertices);
+		long edgeStart = align(cellStart + 4L*CELL_SIZE*numRows*numCols);
+		long tableStart = align(edgeStart + 4L*edgeLength);
+		long end = tableStart + 16L*tableRows*tableCols;
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer data = channel.map(FileChannel.MapMode.READ_WRITE, 0, end);
+			data.order(ByteOrder.LITTLE_ENDIAN);
+			data.putInt(0, MAGIC).putInt(4, VERSION);
+			data.putInt(8, numVertices).putInt(12, numRows).putInt(16, numCols);
+			data.putInt(20, edgeLength).putInt(24, tableRows).putInt(28, tableCols);
+			data.putDouble(32, width).putDouble(40, height);
+			data.putLong(48, vertexStart).putLong(56, cellStart).putLong(64, edgeStart).putLong(72, tableStart);
+			section(data, vertexStart, 16L*numVertices).asDoubleBuffer().put(getVertices());
+			section(data, cellStart, 4L*CELL_SIZE*numRows*numCols).asIntBuffer().put(getCells());
+			section(data, edgeStart, 4L*edgeLength).asIntBuffer().put(getEdge());
+			section(data, tableStart, 16L*tableRows*tableCols).asDoubleBuffer().put(getTable());
+		}
+	}
+	
+	
+	public int getNumVertices() {
+		return this.numVertices;
+	}
+	
+	
+	public int getNumRows() {
+		return this.numRows;
+	}
+	
+	
+	public int getNumCols() {
+		return this.numCols;
+	}
+	
+	
+	public int getEdgeLength() {
+		return this.edgeLength;
+	}
+	
+	
+	public int getTableRows() {
+		return this.tableRows;
+	}
+	
+	
+	public int getTableCols() {
+		return this.tableCols;
+	}
+	
+	
+	public double getWidth() {
+		return this.width;
+	}
+	
+	
+	public double getHeight() {
+		return this.height;
+	}
+	
+	
+	public double getVertexX(int i) {
+		return vertices.get(2*i);
+	}
+	
+	
+	public double getVertexY(int i) {
+		return vertices.get(2*i+1);
+	}
+	
+	
+	/**
+	 * @return -1 for a Cell split into NE and SW, 1 for one split into SE and NW, 0 for a polar Cell.
+	 */
+	public int getCellShape(int i, int j) {
+		return cells.get(CELL_SIZE*(i*numCols + j));
+	}
+	
+	
+	/**
+	 * @return 4 for a polar Cell and 6 for any other kind.
+	 */
+	public int getNumCorners(int i, int j) {
+		return (getCellShape(i, j) == 0) ? 4 : 6;
+	}
+	
+	
+	/**
+	 * @return the index of the kth corner Vertex of Cell i,j, in the same order as in the CSV.
+	 */
+	public int getCellCorner(int i, int j, int k) {
+		return cells.get(CELL_SIZE*(i*numCols + j) + 1 + k);
+	}
+	
+	
+	public int getEdgeVertex(int i) {
+		return edge.get(i);
+	}
+	
+	
+	public double getTablePhi(int i, int j) {
+		return table.get(2*(i*tableCols + j));
+	}
+	
+	
+	public double getTableLam(int i, int j) {
+		return table.get(2*(i*tableCols + j) + 1);
+	}
+	
+	
+	/**
+	 * @return a read-only view of the Vertex coordinates, x and y for each Vertex.
+	 */
+	public DoubleBuffer getVertices() {
+		return vertices.asReadOnlyBuffer();
+	}
+	
+	
+	/**
+	 * @return a read-only view of the Cell table, CELL_SIZE ints for each Cell, row by row.
+	 */
+	public IntBuffer getCells() {
+		return cells.asReadOnlyBuffer();
+	}
+	
+	
+	/**
+	 * @return a read-only view of the edge Vertex indices.
+	 */
+	public IntBuffer getEdge() {
+		return edge.asReadOnlyBuffer();
+	}
+	
+	
+	/**
+	 * @return a read-only view of the inverse table, phi and lam for each pixel, row by row.
+	 */
+	public DoubleBuffer getTable() {
+		return table.asReadOnlyBuffer();
+	}
+	
+	
+	/**
+	 * Convert a projection file from one format to the other, or check that CSV files survive
+	 * being converted to binary and back without changing a single byte.
+	 * @param args - The file to read and the file to write, where files ending in .bin are
+	 * 		binary and the rest are CSV; or -check followed by any number of CSV files.
+	 * @throws IOException if any file has a problem.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length >= 2 && args[0].equals("-check")) {
+			boolean allGood = true;
+			for (int i = 1; i < args.length; i ++)
+				allGood &= checkRoundTrip(new File(args[i]));
+			System.exit(allGood ? 0 : 1);
+		}
+		if (args.length != 2) {
+			System.err.println("Usage: java danseiji.ProjectionFile INPUT OUTPUT");
+			System.err.println("   or: java danseiji.ProjectionFile -check CSV...");
+			System.exit(1);
+		}
+		ProjectionFile projection = read(new File(args[0]));
+		File output = new File(args[1]);
+		if (output.getName().endsWith(".bin"))
+			projection.writeBinary(output);
+		else
+			projection.writeCsv(output);
+	}
+	
+	
+	/**
+	 * Convert a CSV file to binary, convert that back to CSV, and see whether it comes out the
+	 * same as it went in.
+	 * @param csv - The CSV file to check.
+	 * @return true if the CSV that comes back is byte-for-byte the same as the original.
+	 * @throws IOException if the file can't be read or isn't formatted correctly.
+	 */
+	private static boolean checkRoundTrip(File csv) throws IOException {
+		File bin = File.createTempFile("danseiji", ".bin");
+		File copy = File.createTempFile("danseiji", ".csv");
+		bin.deleteOnExit(); // (a mapped file can't always be deleted right away)
+		copy.deleteOnExit();
+		readCsv(csv).writeBinary(bin);
+		readBinary(bin).writeCsv(copy);
+		
+		byte[] before = Files.readAllBytes(csv.toPath()), after = Files.readAllBytes(copy.toPath());
+		int i = 0;
+		while (i < before.length && i < after.length && before[i] == after[i])
+			i ++;
+		if (i == before.length && i == after.length) {
+			System.out.println(csv+": the round trip through "+bin.length()+" bytes of binary came back the same");
+			return true;
+		}
+		else {
+			System.out.println(csv+": the round trip came back different starting at byte "+i);
+			return false;
+		}
+	}
+	
+	
+	/**
+	 * Read the next line of the CSV and split it on commas.
+	 * @param numValues - The number of values that should be on this line, or -1 if it varies.
+	 */
+	private static String[] nextRow(BufferedReader in, int numValues) throws IOException {
+		String line = in.readLine();
+		if (line == null)
+			throw new IOException("The CSV file ended early");
+		String[] row = line.trim().split(",");
+		if (numValues >= 0 && row.length != numValues)
+			throw new IOException("Expected "+numValues+" values but found '"+line+"'");
+		return row;
+	}
+	
+	
+	/**
+	 * Parse a number from the CSV, where NULL means there isn't one.
+	 */
+	private static double parseCoordinate(String s) {
+		if (s.equals("NULL"))
+			return Double.NaN;
+		else
+			return Double.parseDouble(s);
+	}
+	
+	
+	/**
+	 * Get a little-endian slice of this buffer.
+	 */
+	private static ByteBuffer section(ByteBuffer data, long start, long length) throws IOException {
+		if (start < 0 || start + length > data.limit())
+			throw new IOException("A section of the projection file runs past the end of it");
+		if (start % 8 != 0)
+			throw new IOException("A section of the projection file doesn't start on a multiple of eight bytes");
+		ByteBuffer slice = data.duplicate();
+		slice.position((int)start);
+		slice.limit((int)(start + length));
+		return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	
+	/**
+	 * Round this up to a multiple of eight.
+	 */
+	private static long align(long position) {
+		return (position + 7)/8*8;
+	}
+}
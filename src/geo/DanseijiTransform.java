@@ -0,0 +1,248 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package geo;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.geotools.referencing.crs.DefaultProjectedCRS;
+import org.geotools.referencing.cs.DefaultCartesianCS;
+import org.geotools.referencing.operation.transform.AbstractMathTransform;
+import org.opengis.referencing.crs.ProjectedCRS;
+import org.opengis.referencing.operation.MathTransform2D;
+
+import danseiji.Projection;
+
+/**
+ * A GeoTools MathTransform that takes longitude and latitude in degrees, in the same order as
+ * DefaultGeographicCRS.WGS84, and puts them on a finished Danseiji projection. The bulk
+ * transform methods go straight through Projection without making any objects, so whole
+ * coordinate sequences can be pushed through it at once.
+ * 
+ * @author Justin Kunimune
+ */
+public class DanseijiTransform extends AbstractMathTransform implements MathTransform2D {
+	
+	public static final double EARTH_RADIUS = 6371008.8; // the mean radius of the Earth in meters
+	
+	private final Projection projection;
+	private final double radius; // the factor by which to scale the projection's coordinates
+	private final MathTransform2D inverse;
+	
+	
+	
+	/**
+	 * Load a projection from a CSV or binary file and make it into a transform with output in
+	 * meters.
+	 * @param file - The projection file, like the ones in output/.
+	 * @return the transform.
+	 * @throws IOException if the file can't be read or isn't formatted correctly.
+	 */
+	public static DanseijiTransform load(File file) throws IOException {
+		return new DanseijiTransform(Projection.load(file), EARTH_RADIUS);
+	}
+	
+	
+	/**
+	 * Wrap a projection in a transform.
+	 * @param projection - The projection to use.
+	 * @param radius - The radius of the globe, in whatever units the output should be in.
+	 */
+	public DanseijiTransform(Projection projection, double radius) {
+		this.projection = projection;
+		this.radius = radius;
+		this.inverse = new Inverse();
+	}
+	
+	
+	
+	/**
+	 * Put this transform in a projected CRS based on WGS84, so that it can be used with CRS.findMathTransform
+	 * and friends.
+	 * @param name - The name to give the CRS.
+	 * @return the CRS.
+	 */
+	public ProjectedCRS createCRS(String name) {
+		return new DefaultProjectedCRS(name, DefaultGeographicCRS.WGS84, this, DefaultCartesianCS.PROJECTED);
+	}
+	
+	
+	public Projection getProjection() {
+		return this.projection;
+	}
+	
+	
+	/**
+	 * @return the factor by which the projection's coordinates are scaled.
+	 */
+	public double getRadius() {
+		return this.radius;
+	}
+	
+	
+	@Override
+	public int getSourceDimensions() {
+		return 2;
+	}
+	
+	
+	@Override
+	public int getTargetDimensions() {
+		return 2;
+	}
+	
+	
+	@Override
+	public void transform(double[] srcPts, int srcOff, double[] dstPts, int dstOff, int numPts) {
+		int step = 2;
+		if (srcPts == dstPts && srcOff < dstOff && srcOff + 2*numPts > dstOff) { // if they overlap such that we would overwrite things before we read them,
+			srcOff += 2*(numPts-1); // go backwards
+			dstOff += 2*(numPts-1);
+			step = -2;
+		}
+		for (int k = 0; k < numPts; k ++) {
+			double lam = Math.toRadians(srcPts[srcOff]), phi = Math.toRadians(srcPts[srcOff+1]);
+			if (Math.abs(phi) <= Math.PI/2) {
+				projection.mapInto(phi, wrapLongitude(lam), dstPts, dstOff);
+				dstPts[dstOff] *= radius;
+				dstPts[dstOff+1] *= radius;
+			}
+			else { // (points off the globe don't go anywhere)
+				dstPts[dstOff] = Double.NaN;
+				dstPts[dstOff+1] = Double.NaN;
+			}
+			srcOff += step;
+			dstOff += step;
+		}
+	}
+	
+	
+	@Override
+	public MathTransform2D inverse() {
+		return inverse;
+	}
+	
+	
+	/**
+	 * Two DanseijiTransforms are only the same if they go through the same Projection at the
+	 * same scale. AbstractMathTransform would otherwise call any two of them equal, since they
+	 * have no parameters to tell them apart, and GeoTools's caches would mix them up.
+	 */
+	@Override
+	public boolean equals(Object object) {
+		if (object == this)
+			return true;
+		if (object == null || object.getClass() != this.getClass())
+			return false;
+		DanseijiTransform that = (DanseijiTransform)object;
+		return this.projection == that.projection && Double.doubleToLongBits(this.radius) == Double.doubleToLongBits(that.radius);
+	}
+	
+	
+	@Override
+	public int hashCode() {
+		return 31*System.identityHashCode(projection) + Double.hashCode(radius);
+	}
+	
+	
+	/**
+	 * Put this longitude in the range [-pi, pi], which is what Projection expects.
+	 */
+	private static double wrapLongitude(double lam) {
+		if (lam >= -Math.PI && lam <= Math.PI)
+			return lam;
+		lam = Math.IEEEremainder(lam, 2*Math.PI);
+		return (lam < -Math.PI) ? lam + 2*Math.PI : lam;
+	}
+	
+	
+	
+	/**
+	 * The inverse of a DanseijiTransform, which takes projected coordinates back to longitude
+	 * and latitude in degrees. Points that are off the inverse table come out as NaN.
+	 * 
+	 * @author Justin Kunimune
+	 */
+	private class Inverse extends AbstractMathTransform implements MathTransform2D {
+		
+		@Override
+		public int getSourceDimensions() {
+			return 2;
+		}
+		
+		
+		@Override
+		public int getTargetDimensions() {
+			return 2;
+		}
+		
+		
+		@Override
+		public void transform(double[] srcPts, int srcOff, double[] dstPts, int dstOff, int numPts) {
+			int step = 2;
+			if (srcPts == dstPts && srcOff < dstOff && srcOff + 2*numPts > dstOff) { // go backwards if we have to, like above
+				srcOff += 2*(numPts-1);
+				dstOff += 2*(numPts-1);
+				step = -2;
+			}
+			for (int k = 0; k < numPts; k ++) {
+				projection.inverseMapInto(srcPts[srcOff]/radius, srcPts[srcOff+1]/radius, dstPts, dstOff);
+				double phi = dstPts[dstOff], lam = dstPts[dstOff+1];
+				dstPts[dstOff] = Math.toDegrees(lam); // (swap them back to x = longitude, y = latitude)
+				dstPts[dstOff+1] = Math.toDegrees(phi);
+				srcOff += step;
+				dstOff += step;
+			}
+		}
+		
+		
+		@Override
+		public MathTransform2D inverse() {
+			return DanseijiTransform.this;
+		}
+		
+		
+		/**
+		 * Two Inverses are the same if they undo the same DanseijiTransform.
+		 */
+		@Override
+		public boolean equals(Object object) {
+			if (object == this)
+				return true;
+			if (!(object instanceof Inverse))
+				return false;
+			return ((Inverse)object).inverse().equals(this.inverse());
+		}
+		
+		
+		@Override
+		public int hashCode() {
+			return ~DanseijiTransform.this.hashCode(); // (so that it doesn't collide with the forward one)
+		}
+	}
+}
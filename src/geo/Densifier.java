@@ -0,0 +1,191 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package geo;
+
+import java.util.Arrays;
+
+/**
+ * A Pen that fills in extra points along each line wherever the map bends it, so that lines
+ * drawn straight between mapped points stay within a tolerance of where they really go. A
+ * segment that is straight in latitude and longitude is curved within each Cell of a Danseiji
+ * map and kinked wherever it crosses from one Cell to the next, so the points it looks at are
+ * the places where the segment crosses the edges of Cells and the points halfway between
+ * those. If none of them is too far from the straight line between the ends, nothing is
+ * added; otherwise the segment is split at the worst one and each half is checked again.
+ * Splitting at the Cell edges puts points right on the kinks, so it never takes long to
+ * converge, and a segment that stays within one Cell only ever costs one extra mapping.
+ * 
+ * @author Justin Kunimune
+ */
+public class Densifier implements TearIndex.Pen {
+	
+	private static final int MAX_DEPTH = 12; // the most times any segment can be split in two
+	
+	private final Mapping mapping;
+	private final double cellSize; // the latitude and longitude span of each Cell, in radians
+	private final double tolerance; // the farthest any part of a line can be from where it's drawn
+	private final TearIndex.Pen pen;
+	private final double[] XY = new double[2];
+	private double phi0, lam0, X0, Y0; // the last point drawn, and where it maps
+	
+	
+	
+	/**
+	 * Set up a Densifier for a particular map.
+	 * @param mapping - The function that maps latitude and longitude onto the map.
+	 * @param numRows - The number of rows of Cells in the map. Each Cell is as wide as it is tall.
+	 * @param tolerance - The farthest the drawn line can stray from the mapped line, in the
+	 * 		map's units.
+	 * @param pen - What to do with each point, including the new ones.
+	 */
+	public Densifier(Mapping mapping, int numRows, double tolerance, TearIndex.Pen pen) {
+		this.mapping = mapping;
+		this.cellSize = Math.PI/numRows;
+		this.tolerance = tolerance;
+		this.pen = pen;
+		this.phi0 = Double.NaN;
+		this.lam0 = Double.NaN;
+	}
+	
+	
+	
+	@Override
+	public void moveTo(double phi, double lam) {
+		mapping.mapInto(phi, lam, XY, 0);
+		pen.moveTo(phi, lam);
+		this.phi0 = phi;
+		this.lam0 = lam;
+		this.X0 = XY[0];
+		this.Y0 = XY[1];
+	}
+	
+	
+	@Override
+	public void lineTo(double phi, double lam) {
+		if (Double.isNaN(phi0)) { // if there's nothing to draw from, this is really a move
+			moveTo(phi, lam);
+			return;
+		}
+		mapping.mapInto(phi, lam, XY, 0);
+		double X1 = XY[0], Y1 = XY[1];
+		subdivide(phi0, lam0, X0, Y0, phi, lam, X1, Y1, 0);
+		pen.lineTo(phi, lam);
+		this.phi0 = phi;
+		this.lam0 = lam;
+		this.X0 = X1;
+		this.Y0 = Y1;
+	}
+	
+	
+	/**
+	 * Draw all of the points that need to go strictly between two points that have already
+	 * been mapped, in order.
+	 * @param depth - The number of times this segment has been split already.
+	 */
+	private void subdivide(double phiA, double lamA, double XA, double YA,
+			double phiB, double lamB, double XB, double YB, int depth) {
+		if (depth >= MAX_DEPTH)
+			return;
+		double[] ts = candidates(phiA, lamA, phiB, lamB);
+		double tWorst = Double.NaN, XWorst = 0, YWorst = 0;
+		double worst = tolerance;
+		for (double t: ts) { // find the point that's farthest from the line
+			mapping.mapInto(phiA + t*(phiB - phiA), lamA + t*(lamB - lamA), XY, 0);
+			double distance = distanceToSegment(XY[0], XY[1], XA, YA, XB, YB);
+			if (distance > worst) { // (NaNs never count)
+				worst = distance;
+				tWorst = t;
+				XWorst = XY[0];
+				YWorst = XY[1];
+			}
+		}
+		if (Double.isNaN(tWorst)) // if they're all close enough, it's fine as it is
+			return;
+		
+		double phiM = phiA + tWorst*(phiB - phiA), lamM = lamA + tWorst*(lamB - lamA);
+		subdivide(phiA, lamA, XA, YA, phiM, lamM, XWorst, YWorst, depth+1); // otherwise split it there
+		pen.lineTo(phiM, lamM);
+		subdivide(phiM, lamM, XWorst, YWorst, phiB, lamB, XB, YB, depth+1);
+	}
+	
+	
+	/**
+	 * Find the places along a segment that are worth checking: everywhere it crosses the
+	 * edge of a Cell, and halfway between each of those and the next.
+	 * @return the fractions of the way along the segment of each place, in no particular order.
+	 */
+	private double[] candidates(double phiA, double lamA, double phiB, double lamB) {
+		double iA = (Math.PI/2 - phiA)/cellSize, iB = (Math.PI/2 - phiB)/cellSize; // (the Cell edges are at whole numbers of these)
+		double jA = (lamA + Math.PI)/cellSize, jB = (lamB + Math.PI)/cellSize;
+		int numI = (int)Math.abs(Math.floor(iB) - Math.floor(iA));
+		int numJ = (int)Math.abs(Math.floor(jB) - Math.floor(jA));
+		double[] crossings = new double[numI + numJ + 2];
+		crossings[0] = 0;
+		int n = 1;
+		for (int k = 1; k <= numI; k ++) // add the parallels it crosses
+			crossings[n ++] = (Math.floor(Math.min(iA, iB)) + k - iA)/(iB - iA);
+		for (int k = 1; k <= numJ; k ++) // and the meridians
+			crossings[n ++] = (Math.floor(Math.min(jA, jB)) + k - jA)/(jB - jA);
+		crossings[n ++] = 1;
+		Arrays.sort(crossings, 0, n);
+		
+		double[] ts = new double[2*n - 3];
+		for (int k = 0; k+1 < n; k ++) {
+			ts[2*k] = (crossings[k] + crossings[k+1])/2;
+			if (k+2 < n)
+				ts[2*k+1] = crossings[k+1];
+		}
+		return ts;
+	}
+	
+	
+	/**
+	 * Find the distance from a point to the nearest point on a line segment.
+	 */
+	private static double distanceToSegment(double X, double Y, double XA, double YA, double XB, double YB) {
+		double dX = XB - XA, dY = YB - YA;
+		double lengthSqr = dX*dX + dY*dY;
+		double s = (lengthSqr > 0) ? ((X - XA)*dX + (Y - YA)*dY)/lengthSqr : 0;
+		s = Math.max(0, Math.min(1, s));
+		return Math.hypot(X - (XA + s*dX), Y - (YA + s*dY));
+	}
+	
+	
+	
+	/**
+	 * Anything that can map latitude and longitude onto a map, like a Mesh or a Projection.
+	 */
+	public interface Mapping {
+		/**
+		 * @param phi - The latitude of the point to map, in radians.
+		 * @param lam - The longitude of the point to map, in radians.
+		 * @param out - The array in which to put X and Y.
+		 * @param off - The index in out at which to put X; Y goes right after it.
+		 */
+		public void mapInto(double phi, double lam, double[] out, int off);
+	}
+}
@@ -0,0 +1,644 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package geo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The geometries of a shapefile, stored as flat arrays of longitudes and latitudes so that
+ * they can be read and drawn without building any JTS objects. The first time a shapefile is
+ * loaded, its records are read straight out of the .shp and saved next to it in a binary
+ * format; after that, that file is just memory-mapped, so loading costs almost nothing no
+ * matter how big the data is.
+ * <br>
+ * 	Each multi-part record is split into one geometry per polygon or polyline part, like
+ * 	Renderer used to do with getGeometryN. A ring that winds clockwise starts a new polygon,
+ * 	and any widdershins rings after it are holes in it. Every geometry remembers the ID of the
+ * 	feature it came from, in the form GeoTools uses ("name.1", "name.2", ...).
+ * <br>
+ * 	Each ring is also simplified ahead of time with the Douglas-Peucker algorithm at a few
+ * 	tolerances, measured as angles on the sphere, so that whoever draws it can pick the level
+ * 	of detail that matches the size of a pixel rather than projecting every point of a 10m
+ * 	coastline to draw it 800 pixels wide. The simplified levels don't copy any coordinates;
+ * 	they just list which of the original points to keep. Level 0 is always every point.
+ * <br>
+ * 	The binary format is little-endian. It starts with a 32-byte header: the magic number
+ * 	"DSJG", the format version, the number of geometries, rings, and points, and the number
+ * 	of bytes of feature IDs, and the number of levels of detail, as ints, and then an int of
+ * 	padding. Then come the bounding box of each geometry as four doubles (west, south, east,
+ * 	north); the longitude and latitude of each point as pairs of doubles; a 1 for each
+ * 	geometry that is a polygon and a 0 for each one that is a line, as ints; the index of the
+ * 	first ring of each geometry and the index of the first point of each ring, as ints, with
+ * 	the total at the end of each; the offset of each feature ID in the bytes that follow, as
+ * 	ints, with the total at the end; and the feature IDs themselves in UTF-8. Then there is a
+ * 	table of the levels of detail, with the tolerance of each level in radians as a double and
+ * 	the number of points it keeps as a long; and for each level after the first, the index of
+ * 	the first kept point of each ring (with the total at the end) and the indices of the kept
+ * 	points, as ints. Each section starts on a multiple of eight bytes.
+ * 
+ * @author Justin Kunimune
+ */
+public class GeometryCache {
+	
+	public static final int MAGIC = 0x474A5344; // spells "DSJG" in little-endian
+	public static final int VERSION = 2;
+	public static final int HEADER_SIZE = 32;
+	public static final String EXTENSION = ".dsjg";
+	public static final double[] TOLERANCES = {0, 2.5e-5, 1e-4, 4e-4, 1.6e-3, 6.4e-3}; // the level of detail tolerances for new caches, in radians
+	
+	private final int numGeometries, numRings, numPoints;
+	private final DoubleBuffer bounds; // the west, south, east, and north limits of each geometry
+	private final DoubleBuffer coords; // the longitude and latitude of each point, in degrees
+	private final IntBuffer polygon; // 1 for polygons and 0 for lines
+	private final IntBuffer ringStart; // the first ring of each geometry, plus one at the end
+	private final IntBuffer pointStart; // the first point of each ring, plus one at the end
+	private final String[] ids; // the feature ID of each geometry
+	private final double[] tolerances; // the tolerance of each level of detail, in radians
+	private final IntBuffer[] levelStart; // the first kept point of each ring at each level, plus one at the end
+	private final IntBuffer[] levelPoints; // the index of each kept point at each level
+	
+	
+	private GeometryCache(int numGeometries, int numRings, int numPoints, DoubleBuffer bounds,
+			DoubleBuffer coords, IntBuffer polygon, IntBuffer ringStart, IntBuffer pointStart, String[] ids,
+			double[] tolerances, IntBuffer[] levelStart, IntBuffer[] levelPoints) {
+		this.numGeometries = numGeometries;
+		this.numRings = numRings;
+		this.numPoints = numPoints;
+		this.bounds = bounds;
+		this.coords = coords;
+		this.polygon = polygon;
+		this.ringStart = ringStart;
+		this.pointStart = pointStart;
+		this.ids = ids;
+		this.tolerances = tolerances;
+		this.levelStart = levelStart;
+		this.levelPoints = levelPoints;
+	}
+	
+	
+	
+	/**
+	 * Load the geometries of a shapefile, building its cache first if it doesn't have one or
+	 * if the shapefile has changed since it was built.
+	 * @param shapefile - The .shp file.
+	 * @return the geometries.
+	 * @throws IOException if the shapefile or its cache can't be read, or the cache can't be
+	 * 		written.
+	 */
+	public static GeometryCache load(File shapefile) throws IOException {
+		File cache = new File(shapefile.getPath().replaceFirst("\\.[Ss][Hh][Pp]$", "")+EXTENSION);
+		if (cache.exists() && cache.lastModified() >= shapefile.lastModified()) {
+			try {
+				return read(cache);
+			} catch (IOException e) {
+				System.err.println("Rebuilding "+cache+": "+e.getMessage()); // it might just be from an older version
+			}
+		}
+		File temp = new File(cache.getPath()+".tmp"); // write it somewhere else first so that nobody maps half a file
+		build(shapefile, temp);
+		Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return read(cache);
+	}
+	
+	
+	/**
+	 * Map a geometry cache into memory. Only the feature IDs are copied; everything else
+	 * looks straight into the file.
+	 * @param file - The cache file.
+	 * @return the geometries.
+	 * @throws IOException if the file can't be read or isn't formatted correctly.
+	 */
+	public static GeometryCache read(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // (the mapping outlives the channel)
+			data.order(ByteOrder.LITTLE_ENDIAN);
+			if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC)
+				throw new IOException(file+" is not a Danseiji geometry cache");
+			if (data.getInt(4) != VERSION)
+				throw new IOException(file+" is version "+data.getInt(4)+", but I can only read version "+VERSION);
+			int g = data.getInt(8), r = data.getInt(12), p = data.getInt(16), b = data.getInt(20);
+			int numLevels = data.getInt(24);
+			long[] starts = layout(g, r, p);
+			long levelTable = align(starts[6] + b);
+			
+			double[] tolerances = new double[numLevels];
+			IntBuffer[] levelStart = new IntBuffer[numLevels];
+			IntBuffer[] levelPoints = new IntBuffer[numLevels];
+			long position = align(levelTable + 16L*numLevels);
+			for (int l = 0; l < numLevels; l ++) {
+				ByteBuffer entry = section(data, levelTable + 16L*l, 16);
+				tolerances[l] = entry.getDouble(0);
+				if (l > 0) { // (level 0 is just the original points)
+					levelStart[l] = section(data, position, 4L*(r+1)).asIntBuffer();
+					position = align(position + 4L*(r+1));
+					levelPoints[l] = section(data, position, 4L*entry.getLong(8)).asIntBuffer();
+					position = align(position + 4L*entry.getLong(8));
+				}
+			}
+			
+			IntBuffer idStart = section(data, starts[5], 4L*(g+1)).asIntBuffer();
+			ByteBuffer idBytes = section(data, starts[6], b);
+			String[] ids = new String[g];
+			for (int i = 0; i < g; i ++) {
+				byte[] bytes = new byte[idStart.get(i+1) - idStart.get(i)];
+				idBytes.position(idStart.get(i));
+				idBytes.get(bytes);
+				ids[i] = new String(bytes, StandardCharsets.UTF_8);
+			}
+			return new GeometryCache(g, r, p,
+					section(data, starts[0], 32L*g).asDoubleBuffer(),
+					section(data, starts[1], 16L*p).asDoubleBuffer(),
+					section(data, starts[2], 4L*g).asIntBuffer(),
+					section(data, starts[3], 4L*(g+1)).asIntBuffer(),
+					section(data, starts[4], 4L*(r+1)).asIntBuffer(),
+					ids, tolerances, levelStart, levelPoints);
+		}
+	}
+	
+	
+	/**
+	 * Read every polygon or polyline record in a shapefile, simplify them at each of the
+	 * TOLERANCES, and save them as a geometry cache. Only the .shp file is needed; the
+	 * attributes in the .dbf aren't used.
+	 * @param shapefile - The .shp file to read.
+	 * @param file - The cache file to write. It will be overwritten if it exists.
+	 * @throws IOException if the shapefile can't be read or isn't formatted correctly, or
+	 * 		if the cache can't be written.
+	 */
+	public static void build(File shapefile, File file) throws IOException {
+		String name = shapefile.getName().replaceFirst("\\.[^.]*$", "");
+		try (FileChannel channel = FileChannel.open(shapefile.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer shp = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			shp.order(ByteOrder.LITTLE_ENDIAN); // (the record headers are big-endian, but nothing else is)
+			if (shp.limit() < 100 || Integer.reverseBytes(shp.getInt(0)) != 9994)
+				throw new IOException(shapefile+" is not a shapefile");
+			int shapeType = shp.getInt(32);
+			if (shapeType != 0 && shapeType%10 != 3 && shapeType%10 != 5)
+				throw new IOException(shapefile+" has shape type "+shapeType+", but I can only read lines and polygons");
+			
+			int g = 0, r = 0, p = 0, b = 0; // go through once to count everything
+			for (int record = 100; record < shp.limit(); record = nextRecord(shp, record)) {
+				int type = shp.getInt(record+8);
+				if (type == 0)	continue; // (skip null shapes)
+				int numParts = shp.getInt(record+44), numPoints = shp.getInt(record+48);
+				for (int i = 0; i < numParts; i ++) {
+					if (i == 0 || type%10 != 5 || isClockwise(shp, record, i)) {
+						g ++;
+						b += idOf(name, shp, record).length;
+					}
+				}
+				r += numParts;
+				p += numPoints;
+			}
+			
+			long[] starts = layout(g, r, p);
+			long end = starts[6] + b;
+			try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer data = out.map(FileChannel.MapMode.READ_WRITE, 0, end);
+				data.order(ByteOrder.LITTLE_ENDIAN);
+				DoubleBuffer bounds = section(data, starts[0], 32L*g).asDoubleBuffer();
+				DoubleBuffer coords = section(data, starts[1], 16L*p).asDoubleBuffer();
+				IntBuffer polygon = section(data, starts[2], 4L*g).asIntBuffer();
+				IntBuffer ringStart = section(data, starts[3], 4L*(g+1)).asIntBuffer();
+				IntBuffer pointStart = section(data, starts[4], 4L*(r+1)).asIntBuffer();
+				IntBuffer idStart = section(data, starts[5], 4L*(g+1)).asIntBuffer();
+				ByteBuffer idBytes = section(data, starts[6], b);
+				
+				g = 0; // then go through again to copy it all over
+				r = 0;
+				p = 0;
+				for (int record = 100; record < shp.limit(); record = nextRecord(shp, record)) {
+					int type = shp.getInt(record+8);
+					if (type == 0)	continue;
+					int numParts = shp.getInt(record+44), numPoints = shp.getInt(record+48);
+					int points = record + 52 + 4*numParts; // the position of the first x
+					byte[] id = idOf(name, shp, record);
+					for (int i = 0; i < numParts; i ++) {
+						if (i == 0 || type%10 != 5 || isClockwise(shp, record, i)) { // start a new geometry
+							if (g > 0)
+								putBounds(bounds, coords, g-1, pointStart.get(ringStart.get(g-1)), p);
+							polygon.put(g, (type%10 == 5) ? 1 : 0);
+							ringStart.put(g, r);
+							idStart.put(g, idBytes.position());
+							idBytes.put(id);
+							g ++;
+						}
+						pointStart.put(r, p);
+						int partEnd = (i+1 < numParts) ? shp.getInt(record+52 + 4*(i+1)) : numPoints;
+						for (int k = shp.getInt(record+52 + 4*i); k < partEnd; k ++) {
+							coords.put(2*p, shp.getDouble(points + 16*k));
+							coords.put(2*p+1, shp.getDouble(points + 16*k+8));
+							p ++;
+						}
+						r ++;
+					}
+				}
+				if (g > 0)
+					putBounds(bounds, coords, g-1, pointStart.get(ringStart.get(g-1)), p);
+				ringStart.put(g, r);
+				pointStart.put(r, p);
+				idStart.put(g, idBytes.position());
+				
+				int[][] levelStart = new int[TOLERANCES.length][]; // now simplify every ring at every level
+				int[][] levelPoints = new int[TOLERANCES.length][];
+				int[] numKept = new int[TOLERANCES.length];
+				long levelTable = align(starts[6] + b);
+				long position = align(levelTable + 16L*TOLERANCES.length);
+				for (int l = 1; l < TOLERANCES.length; l ++) {
+					levelStart[l] = new int[r+1];
+					levelPoints[l] = new int[p];
+					for (int i = 0; i < r; i ++) {
+						levelStart[l][i] = numKept[l];
+						numKept[l] = simplify(coords, pointStart.get(i), pointStart.get(i+1),
+								TOLERANCES[l], levelPoints[l], numKept[l]);
+					}
+					levelStart[l][r] = numKept[l];
+					position = align(align(position + 4L*(r+1)) + 4L*numKept[l]);
+				}
+				numKept[0] = p;
+				
+				ByteBuffer levels = out.map(FileChannel.MapMode.READ_WRITE, levelTable, position - levelTable); // (this makes the file longer)
+				levels.order(ByteOrder.LITTLE_ENDIAN);
+				position = align(levelTable + 16L*TOLERANCES.length);
+				for (int l = 0; l < TOLERANCES.length; l ++) {
+					levels.putDouble((int)(16L*l), TOLERANCES[l]).putLong((int)(16L*l + 8), numKept[l]);
+					if (l > 0) {
+						section(levels, position - levelTable, 4L*(r+1)).asIntBuffer().put(levelStart[l]);
+						position = align(position + 4L*(r+1));
+						section(levels, position - levelTable, 4L*numKept[l]).asIntBuffer().put(levelPoints[l], 0, numKept[l]);
+						position = align(position + 4L*numKept[l]);
+					}
+				}
+				
+				data.putInt(0, MAGIC).putInt(4, VERSION);
+				data.putInt(8, g).putInt(12, r).putInt(16, p).putInt(20, b).putInt(24, TOLERANCES.length);
+			}
+		}
+	}
+	
+	
+	
+	public int getNumGeometries() {
+		return this.numGeometries;
+	}
+	
+	
+	public int getNumRings() {
+		return this.numRings;
+	}
+	
+	
+	public int getNumPoints() {
+		return this.numPoints;
+	}
+	
+	
+	/**
+	 * Is this geometry a polygon (or is it a line)?
+	 */
+	public boolean isPolygon(int g) {
+		return polygon.get(g) != 0;
+	}
+	
+	
+	/**
+	 * Get the index of the first ring of a geometry. The rings of geometry g are the ones
+	 * from getRingStart(g) up to getRingStart(g+1).
+	 * @param g - The index of the geometry, or the number of geometries to get the number of
+	 * 		rings.
+	 */
+	public int getRingStart(int g) {
+		return ringStart.get(g);
+	}
+	
+	
+	/**
+	 * Get the index of the first point of a ring. The points of ring r are the ones from
+	 * getPointStart(r) up to getPointStart(r+1).
+	 * @param r - The index of the ring, or the number of rings to get the number of points.
+	 */
+	public int getPointStart(int r) {
+		return pointStart.get(r);
+	}
+	
+	
+	/**
+	 * Get the longitude of a point, in degrees.
+	 */
+	public double getLon(int k) {
+		return coords.get(2*k);
+	}
+	
+	
+	/**
+	 * Get the latitude of a point, in degrees.
+	 */
+	public double getLat(int k) {
+		return coords.get(2*k+1);
+	}
+	
+	
+	/**
+	 * Get the bounding box of a geometry, in degrees.
+	 * @return { west, south, east, north }
+	 */
+	public double[] getBoundingBox(int g) {
+		return new double[] {bounds.get(4*g), bounds.get(4*g+1), bounds.get(4*g+2), bounds.get(4*g+3)};
+	}
+	
+	
+	/**
+	 * Get the ID of the feature this geometry came from, the same as GeoTools would give it.
+	 */
+	public String getFeatureId(int g) {
+		return ids[g];
+	}
+	
+	
+	public int getNumLevels() {
+		return this.tolerances.length;
+	}
+	
+	
+	/**
+	 * Get the greatest angle by which a level of detail can stray from the original points.
+	 * @param level - The index of the level, with 0 being every point.
+	 * @return the tolerance in radians.
+	 */
+	public double getTolerance(int level) {
+		return this.tolerances[level];
+	}
+	
+	
+	/**
+	 * Find the simplest level of detail that is still precise enough.
+	 * @param maxError - The greatest angle by which it may stray from the original points, in
+	 * 		radians. For a map being drawn, this would be about half a pixel divided by the scale.
+	 * @return the index of the level.
+	 */
+	public int chooseLevel(double maxError) {
+		int level = 0;
+		while (level+1 < tolerances.length && tolerances[level+1] <= maxError)
+			level ++;
+		return level;
+	}
+	
+	
+	/**
+	 * Get the index of the first kept point of a ring at some level of detail, in the list that
+	 * getLevelPoint reads. The kept points of ring r are the ones from getLevelStart(l, r) up to
+	 * getLevelStart(l, r+1).
+	 * @param level - The index of the level.
+	 * @param r - The index of the ring, or the number of rings to get the number of kept points.
+	 */
+	public int getLevelStart(int level, int r) {
+		if (level == 0)
+			return pointStart.get(r);
+		else
+			return levelStart[level].get(r);
+	}
+	
+	
+	/**
+	 * Get the index of a kept point at some level of detail, which can be passed to getLon and
+	 * getLat.
+	 * @param level - The index of the level.
+	 * @param i - The index of the point in the list of kept points.
+	 */
+	public int getLevelPoint(int level, int i) {
+		if (level == 0)
+			return i;
+		else
+			return levelPoints[level].get(i);
+	}
+	
+	
+	/**
+	 * Find where the next record starts, given where this one starts.
+	 */
+	private static int nextRecord(ByteBuffer shp, int record) throws IOException {
+		int length = Integer.reverseBytes(shp.getInt(record+4)); // (in 16-bit words, not counting the record header)
+		int next = record + 8 + 2*length;
+		if (length < 2 || next > shp.limit())
+			throw new IOException("A shapefile record runs past the end of the file");
+		return next;
+	}
+	
+	
+	/**
+	 * Get the ID GeoTools would give the feature in this record, as UTF-8.
+	 */
+	private static byte[] idOf(String name, ByteBuffer shp, int record) {
+		int recordNumber = Integer.reverseBytes(shp.getInt(record));
+		return (name+"."+recordNumber).getBytes(StandardCharsets.UTF_8);
+	}
+	
+	
+	/**
+	 * Does this part of this record wind clockwise? In a shapefile, that means it's an outer
+	 * ring, not a hole.
+	 */
+	private static boolean isClockwise(ByteBuffer shp, int record, int part) {
+		int numParts = shp.getInt(record+44), numPoints = shp.getInt(record+48);
+		int points = record + 52 + 4*numParts;
+		int start = shp.getInt(record+52 + 4*part);
+		int end = (part+1 < numParts) ? shp.getInt(record+52 + 4*(part+1)) : numPoints;
+		double area = 0; // twice the signed area, by the shoelace formula
+		for (int k = start; k < end; k ++) {
+			int l = (k+1 < end) ? k+1 : start;
+			area += shp.getDouble(points + 16*k)*shp.getDouble(points + 16*l + 8)
+					- shp.getDouble(points + 16*l)*shp.getDouble(points + 16*k + 8);
+		}
+		return area < 0;
+	}
+	
+	
+	/**
+	 * Simplify a ring or line with the Douglas-Peucker algorithm, measuring distances on the
+	 * sphere, and add the indices of the points it keeps to a list. The first and last points
+	 * are always kept. Segments are also kept short enough that drawing them straight on the
+	 * map rather than along their great circles doesn't stray past the tolerance either; the
+	 * map bends lines with a curvature of about one per radian, so a segment of length L strays
+	 * by about L^2/8.
+	 * @param coords - The longitude and latitude of every point, in degrees.
+	 * @param start - The index of the first point.
+	 * @param end - The index after the last point.
+	 * @param tolerance - The greatest angle by which the simplified line may stray, in radians.
+	 * @param kept - The list to which to add the kept points.
+	 * @param numKept - The number of points already in the list.
+	 * @return the number of points in the list now.
+	 */
+	private static int simplify(DoubleBuffer coords, int start, int end, double tolerance, int[] kept, int numKept) {
+		int n = end - start;
+		if (n <= 2) {
+			for (int k = start; k < end; k ++)
+				kept[numKept++] = k;
+			return numKept;
+		}
+		
+		double[] xyz = new double[3*n]; // work on unit vectors, so the distances are simple
+		for (int i = 0; i < n; i ++) {
+			double lam = Math.toRadians(coords.get(2*(start+i))), phi = Math.toRadians(coords.get(2*(start+i)+1));
+			xyz[3*i] = Math.cos(phi)*Math.cos(lam);
+			xyz[3*i+1] = Math.cos(phi)*Math.sin(lam);
+			xyz[3*i+2] = Math.sin(phi);
+		}
+		
+		double maxLength = Math.sqrt(8*tolerance);
+		boolean[] keep = new boolean[n];
+		keep[0] = keep[n-1] = true;
+		int[] stack = new int[2*n]; // (use a stack rather than recursion, since a coastline could have a lot of points)
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = n-1;
+		while (top > 0) {
+			int b = stack[--top], a = stack[--top];
+			double maxDistance = -1;
+			int farthest = -1;
+			for (int i = a+1; i < b; i ++) {
+				double distance = distanceToArc(xyz, i, a, b);
+				if (distance > maxDistance) {
+					maxDistance = distance;
+					farthest = i;
+				}
+			}
+			if (maxDistance <= tolerance) {
+				if (b - a > 1 && angle(xyz, a, b) > maxLength)
+					farthest = (a + b)/2; // if it's too long, split it in the middle even if it's straight
+				else
+					continue; // otherwise this segment is fine as it is
+			}
+			keep[farthest] = true; // keep that point and look at each side of it
+			stack[top++] = a;
+			stack[top++] = farthest;
+			stack[top++] = farthest;
+			stack[top++] = b;
+		}
+		
+		for (int i = 0; i < n; i ++)
+			if (keep[i])
+				kept[numKept++] = start + i;
+		return numKept;
+	}
+	
+	
+	/**
+	 * Find the angle between point i and the great circle arc from point a to point b.
+	 * @param xyz - The unit vectors of all of the points.
+	 */
+	private static double distanceToArc(double[] xyz, int i, int a, int b) {
+		double px = xyz[3*i], py = xyz[3*i+1], pz = xyz[3*i+2];
+		double ax = xyz[3*a], ay = xyz[3*a+1], az = xyz[3*a+2];
+		double bx = xyz[3*b], by = xyz[3*b+1], bz = xyz[3*b+2];
+		double nx = ay*bz - az*by, ny = az*bx - ax*bz, nz = ax*by - ay*bx; // the normal to the great circle
+		double norm = Math.sqrt(nx*nx + ny*ny + nz*nz);
+		if (norm > 1e-12) {
+			double alongA = (ay*pz - az*py)*nx + (az*px - ax*pz)*ny + (ax*py - ay*px)*nz; // (a×p)·n
+			double alongB = (py*bz - pz*by)*nx + (pz*bx - px*bz)*ny + (px*by - py*bx)*nz; // (p×b)·n
+			if (alongA >= 0 && alongB >= 0) // if it's alongside the arc, it's the distance to the great circle
+				return Math.asin(Math.min(1, Math.abs(px*nx + py*ny + pz*nz)/norm));
+		}
+		return Math.min(angle(px, py, pz, ax, ay, az), angle(px, py, pz, bx, by, bz)); // otherwise it's the distance to the nearer end
+	}
+	
+	
+	private static double angle(double[] xyz, int a, int b) {
+		return angle(xyz[3*a], xyz[3*a+1], xyz[3*a+2], xyz[3*b], xyz[3*b+1], xyz[3*b+2]);
+	}
+	
+	
+	private static double angle(double ux, double uy, double uz, double vx, double vy, double vz) {
+		double cx = uy*vz - uz*vy, cy = uz*vx - ux*vz, cz = ux*vy - uy*vx;
+		return Math.atan2(Math.sqrt(cx*cx + cy*cy + cz*cz), ux*vx + uy*vy + uz*vz);
+	}
+	
+	
+	/**
+	 * Compute the bounding box of the points from start to end and save it for geometry g.
+	 */
+	private static void putBounds(DoubleBuffer bounds, DoubleBuffer coords, int g, int start, int end) {
+		double west = Double.POSITIVE_INFINITY, south = Double.POSITIVE_INFINITY;
+		double east = Double.NEGATIVE_INFINITY, north = Double.NEGATIVE_INFINITY;
+		for (int k = start; k < end; k ++) {
+			west = Math.min(west, coords.get(2*k));
+			east = Math.max(east, coords.get(2*k));
+			south = Math.min(south, coords.get(2*k+1));
+			north = Math.max(north, coords.get(2*k+1));
+		}
+		bounds.put(4*g, west).put(4*g+1, south).put(4*g+2, east).put(4*g+3, north);
+	}
+	
+	
+	/**
+	 * Work out where each section goes in a file with this many geometries, rings, and points.
+	 * @return the start of the bounds, coordinates, polygon flags, ring starts, point starts,
+	 * 		ID starts, and ID bytes.
+	 */
+	private static long[] layout(int g, int r, int p) {
+		long[] starts = new long[7];
+		starts[0] = HEADER_SIZE;
+		starts[1] = align(starts[0] + 32L*g);
+		starts[2] = align(starts[1] + 16L*p);
+		starts[3] = align(starts[2] + 4L*g);
+		starts[4] = align(starts[3] + 4L*(g+1));
+		starts[5] = align(starts[4] + 4L*(r+1));
+		starts[6] = align(starts[5] + 4L*(g+1));
+		return starts;
+	}
+	
+	
+	/**
+	 * Get a little-endian slice of this buffer.
+	 */
+	private static ByteBuffer section(ByteBuffer data, long start, long length) throws IOException {
+		if (start < 0 || start + length > data.limit())
+			throw new IOException("A section of the geometry cache runs past the end of it");
+		ByteBuffer slice = data.duplicate();
+		slice.position((int)start);
+		slice.limit((int)(start + length));
+		return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	
+	/**
+	 * Round this up to a multiple of eight.
+	 */
+	private static long align(long position) {
+		return (position + 7)/8*8;
+	}
+}
@@ -0,0 +1,382 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package geo;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.commons.imaging.ImageFormats;
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.ImageWriteException;
+import org.apache.commons.imaging.Imaging;
+
+import danseiji.Projection;
+
+/**
+ * A tool to put equirectangular rasters, like the ones in data/, on a Danseiji projection.
+ * Every pixel of the output is inverse-mapped to find where it is on the globe, and then
+ * sampled from the source image. The work is split up into square tiles that are done on
+ * several threads at once.
+ * <br>
+ * 	The source image is read in horizontal strips, so only one strip of it is ever in memory.
+ * 	Each output pixel is looked up first, then filled in when the strip that contains it goes
+ * 	by. Formats that ImageIO can't read a region at a time (like TIFF on Java 8) get read all at
+ * 	once through commons-imaging instead.
+ * 
+ * @author Justin Kunimune
+ */
+public class RasterWarper {
+	
+	private static final int TILE_SIZE = 256; // the width and height of each block of output pixels
+	private static final int STRIP_SIZE = 1<<24; // the maximum number of source pixels to load at once
+	
+	private final Projection projection;
+	private final int numThreads;
+	
+	
+	
+	public RasterWarper(Projection projection) {
+		this(projection, Runtime.getRuntime().availableProcessors());
+	}
+	
+	
+	public RasterWarper(Projection projection, int numThreads) {
+		this.projection = projection;
+		this.numThreads = numThreads;
+	}
+	
+	
+	
+	/**
+	 * Put this equirectangular image on the projection. The output has the aspect ratio of the
+	 * projection's inverse table, and pixels for which there is no inverse are transparent.
+	 * @param source - An image file with longitude going from -180 to 180 left to right and
+	 * 		latitude going from 90 to -90 top to bottom.
+	 * @param width - The width of the output image in pixels.
+	 * @param sampling - How to pick a colour in between source pixels.
+	 * @return the projected image.
+	 * @throws IOException if the source image can't be read.
+	 */
+	public BufferedImage warp(File source, int width, Sampling sampling) throws IOException {
+		int height = (int)Math.round(width*projection.getHeight()/projection.getWidth());
+		BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		int[] pixels = ((DataBufferInt)output.getRaster().getDataBuffer()).getData(); // write straight to the image
+		
+		try (StripReader reader = new StripReader(source)) {
+			int srcWidth = reader.getWidth(), srcHeight = reader.getHeight();
+			float[] srcX = new float[width*height]; // the position of each output pixel in the source image
+			float[] srcY = new float[width*height];
+			List<Rectangle> tiles = new ArrayList<Rectangle>();
+			for (int y = 0; y < height; y += TILE_SIZE)
+				for (int x = 0; x < width; x += TILE_SIZE)
+					tiles.add(new Rectangle(x, y, Math.min(TILE_SIZE, width-x), Math.min(TILE_SIZE, height-y)));
+			
+			ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+			try {
+				List<Future<?>> tasks = new ArrayList<Future<?>>();
+				for (Rectangle tile: tiles) { // first find out where everything is
+					tasks.add(pool.submit(() -> {
+						double[] philam = new double[2];
+						for (int i = tile.y; i < tile.y + tile.height; i ++) {
+							double Y = projection.getHeight()*(.5 - (i + .5)/height);
+							for (int j = tile.x; j < tile.x + tile.width; j ++) {
+								double X = projection.getWidth()*((j + .5)/width - .5);
+								projection.inverseMapInto(X, Y, philam, 0);
+								srcX[i*width + j] = (float)((philam[1] + Math.PI)/(2*Math.PI)*srcWidth - .5);
+								srcY[i*width + j] = (float)((Math.PI/2 - philam[0])/Math.PI*srcHeight - .5); // (NaN stays NaN)
+							}
+						}
+						return null;
+					}));
+				}
+				waitFor(tasks);
+				
+				int stripHeight = Math.max(1, STRIP_SIZE/srcWidth);
+				for (int y0 = 0; y0 < srcHeight; y0 += stripHeight) { // then go through the source a strip at a time
+					final int start = y0, end = Math.min(y0 + stripHeight, srcHeight);
+					int[] strip = reader.read(start, Math.min(end + 1, srcHeight)); // (with an extra row for interpolation)
+					tasks.clear();
+					for (Rectangle tile: tiles) {
+						tasks.add(pool.submit(() -> {
+							for (int i = tile.y; i < tile.y + tile.height; i ++) {
+								for (int j = tile.x; j < tile.x + tile.width; j ++) {
+									int k = i*width + j;
+									if (Float.isNaN(srcY[k]))
+										continue;
+									double y = Math.min(Math.max(0, srcY[k]), srcHeight - 1);
+									int row = (sampling == Sampling.NEAREST) ? (int)Math.round(y) : (int)y;
+									if (row >= start && row < end) // only do the pixels that belong to this strip
+										pixels[k] = sampling.sample(strip, srcWidth, srcHeight, start, srcX[k], y);
+								}
+							}
+							return null;
+						}));
+					}
+					waitFor(tasks);
+				}
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+		return output;
+	}
+	
+	
+	/**
+	 * Put part of an image that is already in memory onto a rectangle of the projection, all on
+	 * this thread. This is for outputs that are too small to be worth splitting up, like a
+	 * single map tile.
+	 * @param source - The ARGB values of the entire equirectangular source image.
+	 * @param srcWidth - The width of the source image.
+	 * @param srcHeight - The height of the source image.
+	 * @param sampling - How to pick a colour in between source pixels.
+	 * @param xMin - The X coordinate of the left edge of the output.
+	 * @param yMax - The Y coordinate of the top edge of the output.
+	 * @param pixelSize - The width and height of each output pixel in map units.
+	 * @param output - The image to fill in, which must be of TYPE_INT_ARGB.
+	 */
+	public void warpInto(int[] source, int srcWidth, int srcHeight, Sampling sampling,
+			double xMin, double yMax, double pixelSize, BufferedImage output) {
+		int[] pixels = ((DataBufferInt)output.getRaster().getDataBuffer()).getData();
+		double[] philam = new double[2];
+		for (int i = 0; i < output.getHeight(); i ++) {
+			double Y = yMax - (i + .5)*pixelSize;
+			for (int j = 0; j < output.getWidth(); j ++) {
+				double X = xMin + (j + .5)*pixelSize;
+				projection.inverseMapInto(X, Y, philam, 0);
+				if (Double.isNaN(philam[0]))
+					continue;
+				double x = (philam[1] + Math.PI)/(2*Math.PI)*srcWidth - .5;
+				double y = Math.min(Math.max(0, (Math.PI/2 - philam[0])/Math.PI*srcHeight - .5), srcHeight - 1);
+				pixels[i*output.getWidth() + j] = sampling.sample(source, srcWidth, srcHeight, 0, x, y);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Read an entire image, with ImageIO if it can or commons-imaging if it can't.
+	 * @param file - The image file to read.
+	 * @return the image.
+	 * @throws IOException if the file can't be read or decoded.
+	 */
+	public static BufferedImage read(File file) throws IOException {
+		try (StripReader reader = new StripReader(file)) {
+			int width = reader.getWidth(), height = reader.getHeight();
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			image.setRGB(0, 0, width, height, reader.read(0, height), 0, width);
+			return image;
+		}
+	}
+	
+	
+	/**
+	 * Save an image as a PNG, or as a TIFF if the filename ends in .tif or .tiff.
+	 * @param image - The image to save.
+	 * @param file - The file to which to write it.
+	 * @throws IOException if there is a problem writing to the file.
+	 */
+	public static void save(BufferedImage image, File file) throws IOException {
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".tif") || name.endsWith(".tiff")) {
+			try {
+				Imaging.writeImage(image, file, ImageFormats.TIFF, new HashMap<String, Object>());
+			} catch (ImageWriteException e) {
+				throw new IOException("Could not encode "+file+": "+e.getMessage(), e);
+			}
+		}
+		else {
+			ImageIO.write(image, "png", file);
+		}
+	}
+	
+	
+	/**
+	 * Wait for all of these tasks to finish, and pass on any exceptions they threw.
+	 */
+	private static void waitFor(List<Future<?>> tasks) throws IOException {
+		try {
+			for (Future<?> task: tasks)
+				task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while warping", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length < 4 || args.length > 5) {
+			System.err.println("Usage: java geo.RasterWarper PROJECTION SOURCE OUTPUT WIDTH [nearest|bilinear]");
+			System.exit(1);
+		}
+		RasterWarper warper = new RasterWarper(Projection.load(new File(args[0])));
+		Sampling sampling = (args.length == 5) ? Sampling.valueOf(args[4].toUpperCase()) : Sampling.BILINEAR;
+		long start = System.currentTimeMillis();
+		BufferedImage image = warper.warp(new File(args[1]), Integer.parseInt(args[3]), sampling);
+		save(image, new File(args[2]));
+		System.out.println("Warped "+args[1]+" in "+(System.currentTimeMillis()-start)/1000.+"s.");
+	}
+	
+	
+	
+	/**
+	 * A way of picking a colour from a source image at a fractional position.
+	 */
+	public enum Sampling {
+		/** Take the closest pixel. */
+		NEAREST {
+			@Override
+			int sample(int[] strip, int width, int height, int start, double x, double y) {
+				int j = Math.floorMod((int)Math.round(x), width);
+				int i = (int)Math.round(y);
+				return strip[(i - start)*width + j];
+			}
+		},
+		
+		/** Interpolate linearly between the four closest pixels, wrapping around in longitude. */
+		BILINEAR {
+			@Override
+			int sample(int[] strip, int width, int height, int start, double x, double y) {
+				int j0 = (int)Math.floor(x), i0 = (int)y;
+				double dj = x - j0, di = y - i0;
+				int j1 = Math.floorMod(j0 + 1, width);
+				j0 = Math.floorMod(j0, width);
+				int i1 = Math.min(i0 + 1, height - 1);
+				int nw = strip[(i0 - start)*width + j0], ne = strip[(i0 - start)*width + j1];
+				int sw = strip[(i1 - start)*width + j0], se = strip[(i1 - start)*width + j1];
+				int argb = 0;
+				for (int shift = 0; shift < 32; shift += 8) { // do each channel separately
+					double n = (1-dj)*(nw>>>shift&0xFF) + dj*(ne>>>shift&0xFF);
+					double s = (1-dj)*(sw>>>shift&0xFF) + dj*(se>>>shift&0xFF);
+					argb |= (int)Math.round((1-di)*n + di*s)<<shift;
+				}
+				return argb;
+			}
+		};
+		
+		/**
+		 * Get the colour at this position.
+		 * @param strip - The ARGB values of the rows of the source image that are loaded.
+		 * @param width - The width of the source image.
+		 * @param height - The height of the source image.
+		 * @param start - The index of the row of the source image at the start of strip.
+		 * @param x - The fractional column index.
+		 * @param y - The fractional row index, which must be in the strip.
+		 * @return the ARGB colour.
+		 */
+		abstract int sample(int[] strip, int width, int height, int start, double x, double y);
+	}
+	
+	
+	/**
+	 * Reads an image a few rows at a time, if it can.
+	 */
+	private static class StripReader implements AutoCloseable {
+		
+		private final ImageInputStream stream;
+		private final ImageReader reader;
+		private final BufferedImage whole; // the entire image, if it has to be loaded at once
+		
+		public StripReader(File file) throws IOException {
+			ImageInputStream stream = ImageIO.createImageInputStream(file);
+			Iterator<ImageReader> readers = (stream != null) ? ImageIO.getImageReaders(stream) : null;
+			if (readers != null && readers.hasNext()) {
+				this.stream = stream;
+				this.reader = readers.next();
+				this.reader.setInput(stream, false, true);
+				this.whole = null;
+			}
+			else {
+				if (stream != null)
+					stream.close();
+				this.stream = null;
+				this.reader = null;
+				try {
+					this.whole = Imaging.getBufferedImage(file);
+				} catch (ImageReadException e) {
+					throw new IOException("Could not decode "+file+": "+e.getMessage(), e);
+				}
+			}
+		}
+		
+		public int getWidth() throws IOException {
+			return (reader != null) ? reader.getWidth(0) : whole.getWidth();
+		}
+		
+		public int getHeight() throws IOException {
+			return (reader != null) ? reader.getHeight(0) : whole.getHeight();
+		}
+		
+		/**
+		 * Get the ARGB values of the pixels in these rows.
+		 * @param start - The index of the first row to read.
+		 * @param end - The index after the last row to read.
+		 */
+		public int[] read(int start, int end) throws IOException {
+			int width = getWidth(), rows = end - start;
+			BufferedImage image;
+			if (reader != null) {
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceRegion(new Rectangle(0, start, width, rows));
+				image = reader.read(0, param);
+				start = 0; // (the strip that comes back starts at the top)
+			}
+			else {
+				image = whole;
+			}
+			return image.getRGB(0, start, width, rows, null, 0, width);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (reader != null)
+				reader.dispose();
+			if (stream != null)
+				stream.close();
+		}
+	}
+}
@@ -0,0 +1,402 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package geo;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.FeatureWriter;
+import org.geotools.data.Transaction;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.shapefile.ShapefileDataStoreFactory;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geojson.feature.FeatureJSON;
+import org.geotools.geometry.jts.JTS;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.referencing.operation.TransformException;
+
+import danseiji.Projection;
+
+/**
+ * A command-line tool to put an entire shapefile on a Danseiji projection without ever
+ * loading it all into memory. Features are read one at a time, their geometries are
+ * projected on a pool of worker threads, and they are written back out in their original
+ * order. Only a fixed number of features are ever in flight at once, so the size of the input
+ * doesn't matter.
+ * <br>
+ * 	Lines are broken wherever they cross a tear, like in the Renderer, and densified wherever
+ * 	the map bends them, so they come out as MultiLineStrings. Polygon rings are densified too,
+ * 	but they aren't cut at the tears, since that would take a real polygon clipper; a polygon
+ * 	that straddles a tear still comes out with a straight edge across the gap. Points are
+ * 	just projected.
+ * 
+ * @author Justin Kunimune
+ */
+public class ShapefileReprojector {
+	
+	private static final int IN_FLIGHT_PER_THREAD = 16; // the number of features to read ahead for each worker
+	public static final double DEFAULT_TOLERANCE = 1000; // the farthest a densified line can stray, in meters
+	
+	private final DanseijiTransform transform;
+	private final TearIndex tears;
+	private final double tolerance; // in the projection's own units
+	private final int numThreads;
+	
+	
+	
+	public ShapefileReprojector(DanseijiTransform transform) {
+		this(transform, DEFAULT_TOLERANCE, Runtime.getRuntime().availableProcessors());
+	}
+	
+	
+	/**
+	 * Set up a reprojector.
+	 * @param transform - The projection to use.
+	 * @param tolerance - The farthest any part of a line can be from where it's drawn, in the
+	 * 		transform's output units.
+	 * @param numThreads - The number of features to project at once.
+	 */
+	public ShapefileReprojector(DanseijiTransform transform, double tolerance, int numThreads) {
+		this.transform = transform;
+		this.tears = new TearIndex(transform.getProjection().getEdgeCoordinates(),
+				transform.getProjection().getEccentricity());
+		this.tolerance = tolerance/transform.getRadius();
+		this.numThreads = numThreads;
+	}
+	
+	
+	
+	/**
+	 * Project every feature in a shapefile and save them to a new file.
+	 * @param input - The shapefile to read, in longitude and latitude.
+	 * @param output - The file to write. If it ends in .json or .geojson, it will be GeoJSON;
+	 * 		otherwise it will be a shapefile. Either way, it will be overwritten if it exists.
+	 * @return the number of features written.
+	 * @throws IOException if either of the files can't be read or written.
+	 */
+	public long reproject(File input, File output) throws IOException {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("url", input.toURI().toURL());
+		DataStore dataStore = DataStoreFinder.getDataStore(params);
+		if (dataStore == null)
+			throw new IOException("Could not find a shapefile at "+input);
+		
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			String typeName = dataStore.getTypeNames()[0]; // (shapefiles only ever have the one)
+			SimpleFeatureType type = retype(dataStore.getSchema(typeName));
+			int maxInFlight = IN_FLIGHT_PER_THREAD*numThreads;
+			Deque<SimpleFeature> pendingFeatures = new ArrayDeque<SimpleFeature>(maxInFlight);
+			Deque<Future<Geometry>> pendingGeometries = new ArrayDeque<Future<Geometry>>(maxInFlight);
+			long count = 0;
+			
+			try (FeatureSink sink = isGeoJSON(output) ? new GeoJSONSink(output, type) : new ShapefileSink(output, type);
+					SimpleFeatureIterator iterator = dataStore.getFeatureSource(typeName).getFeatures(Filter.INCLUDE).features()) {
+				while (iterator.hasNext()) {
+					SimpleFeature feature = iterator.next();
+					Geometry geometry = (Geometry)feature.getDefaultGeometry();
+					pendingFeatures.add(feature);
+					pendingGeometries.add(pool.submit(() -> project(geometry)));
+					if (pendingGeometries.size() >= maxInFlight) { // once the window is full, wait for the oldest one
+						sink.write(pendingFeatures.remove(), pendingGeometries.remove().get());
+						count ++;
+					}
+				}
+				while (!pendingGeometries.isEmpty()) { // then flush out whatever is left
+					sink.write(pendingFeatures.remove(), pendingGeometries.remove().get());
+					count ++;
+				}
+			}
+			return count;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while projecting "+input, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof TransformException)
+				throw new IOException("Could not project a feature in "+input+": "+e.getCause().getMessage(), e.getCause());
+			else
+				throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+			dataStore.dispose();
+		}
+	}
+	
+	
+	private Geometry project(Geometry geometry) throws TransformException {
+		if (geometry == null)
+			return null;
+		GeometryFactory factory = geometry.getFactory();
+		if (geometry instanceof LineString || geometry instanceof MultiLineString) { // break lines at the tears and densify them
+			List<LineString> pieces = new ArrayList<LineString>();
+			for (int g = 0; g < geometry.getNumGeometries(); g ++)
+				for (CoordinateSequence piece: trace(((LineString)geometry.getGeometryN(g)).getCoordinateSequence(), true, factory))
+					pieces.add(factory.createLineString(piece));
+			return factory.createMultiLineString(pieces.toArray(new LineString[0]));
+		}
+		else if (geometry instanceof Polygon || geometry instanceof MultiPolygon) { // only densify polygons
+			Polygon[] polygons = new Polygon[geometry.getNumGeometries()];
+			for (int g = 0; g < polygons.length; g ++) {
+				Polygon polygon = (Polygon)geometry.getGeometryN(g);
+				LinearRing[] holes = new LinearRing[polygon.getNumInteriorRing()];
+				for (int h = 0; h < holes.length; h ++)
+					holes[h] = factory.createLinearRing(
+							trace(polygon.getInteriorRingN(h).getCoordinateSequence(), false, factory).get(0));
+				polygons[g] = factory.createPolygon(factory.createLinearRing(
+						trace(polygon.getExteriorRing().getCoordinateSequence(), false, factory).get(0)), holes);
+			}
+			return (geometry instanceof Polygon) ? polygons[0] : factory.createMultiPolygon(polygons);
+		}
+		else {
+			return JTS.transform(geometry, transform);
+		}
+	}
+	
+	
+	/**
+	 * Densify a line of longitudes and latitudes, and project it.
+	 * @param line - The line, in degrees.
+	 * @param breakAtTears - Whether to break the line wherever it crosses a tear.
+	 * @param factory - The factory with which to make the new sequences.
+	 * @return the projected line, in as many pieces as it got broken into.
+	 */
+	private List<CoordinateSequence> trace(CoordinateSequence line, boolean breakAtTears,
+			GeometryFactory factory) {
+		List<double[]> pieces = new ArrayList<double[]>();
+		int[] length = {0}; // the number of points in the last piece
+		TearIndex.Pen collector = new TearIndex.Pen() { // collect the points as longitude and latitude in degrees
+			public void moveTo(double phi, double lam) {
+				if (!pieces.isEmpty() && length[0] < 2)
+					pieces.remove(pieces.size()-1); // (a piece with only one point isn't a line)
+				else if (!pieces.isEmpty())
+					pieces.set(pieces.size()-1, Arrays.copyOf(pieces.get(pieces.size()-1), 2*length[0]));
+				pieces.add(new double[2*line.size()]);
+				length[0] = 0;
+				lineTo(phi, lam);
+			}
+			
+			public void lineTo(double phi, double lam) {
+				double[] piece = pieces.get(pieces.size()-1);
+				if (2*length[0] >= piece.length)
+					pieces.set(pieces.size()-1, piece = Arrays.copyOf(piece, 2*piece.length));
+				piece[2*length[0]] = Math.toDegrees(lam);
+				piece[2*length[0]+1] = Math.toDegrees(phi);
+				length[0] ++;
+			}
+		};
+		Projection projection = transform.getProjection();
+		TearIndex.Pen densifier = new Densifier(projection::mapInto, projection.getNumRows(), tolerance, collector);
+		TearIndex.Pen pen = breakAtTears ? tears.breakAtTears(densifier) : densifier;
+		for (int i = 0; i < line.size(); i ++) {
+			double phi = Math.toRadians(line.getY(i)), lam = Math.toRadians(line.getX(i));
+			if (i == 0)
+				pen.moveTo(phi, lam);
+			else
+				pen.lineTo(phi, lam);
+		}
+		collector.moveTo(Double.NaN, Double.NaN); // finish off the last piece
+		pieces.remove(pieces.size()-1);
+		
+		List<CoordinateSequence> sequences = new ArrayList<CoordinateSequence>(pieces.size());
+		for (double[] piece: pieces) {
+			transform.transform(piece, 0, piece, 0, piece.length/2);
+			Coordinate[] coordinates = new Coordinate[piece.length/2];
+			for (int i = 0; i < coordinates.length; i ++)
+				coordinates[i] = new Coordinate(piece[2*i], piece[2*i+1]);
+			sequences.add(factory.getCoordinateSequenceFactory().create(coordinates));
+		}
+		return sequences;
+	}
+	
+	
+	/**
+	 * Copy this feature type, but without a coordinate reference system. The transform can't be
+	 * written out as WKT, so a .prj file for it wouldn't mean anything anyway. Lines become
+	 * MultiLineStrings, since they might get broken.
+	 */
+	private static SimpleFeatureType retype(SimpleFeatureType original) {
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName(original.getName());
+		for (AttributeDescriptor attribute: original.getAttributeDescriptors()) {
+			if (attribute instanceof GeometryDescriptor && LineString.class.isAssignableFrom(attribute.getType().getBinding()))
+				builder.add(attribute.getLocalName(), MultiLineString.class); // (since lines get broken at the tears)
+			else if (attribute instanceof GeometryDescriptor)
+				builder.add(attribute.getLocalName(), attribute.getType().getBinding());
+			else
+				builder.add(attribute);
+		}
+		if (original.getGeometryDescriptor() != null)
+			builder.setDefaultGeometry(original.getGeometryDescriptor().getLocalName());
+		return builder.buildFeatureType();
+	}
+	
+	
+	private static boolean isGeoJSON(File file) {
+		String name = file.getName().toLowerCase();
+		return name.endsWith(".json") || name.endsWith(".geojson");
+	}
+	
+	
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("Usage: java geo.ShapefileReprojector PROJECTION INPUT.shp OUTPUT");
+			System.exit(1);
+		}
+		ShapefileReprojector reprojector = new ShapefileReprojector(DanseijiTransform.load(new File(args[0])));
+		long start = System.currentTimeMillis();
+		long count = reprojector.reproject(new File(args[1]), new File(args[2]));
+		System.out.println("Projected "+count+" features in "+(System.currentTimeMillis()-start)/1000.+"s.");
+	}
+	
+	
+	
+	/**
+	 * Somewhere to put the projected features, one at a time and in order.
+	 */
+	private interface FeatureSink extends Closeable {
+		/**
+		 * Write a feature with all of the source's attributes but a new geometry.
+		 * @param source - The feature from the input file.
+		 * @param geometry - Its projected geometry.
+		 */
+		public void write(SimpleFeature source, Geometry geometry) throws IOException;
+	}
+	
+	
+	/**
+	 * Writes projected features to a new shapefile.
+	 */
+	private static class ShapefileSink implements FeatureSink {
+		
+		private final ShapefileDataStore dataStore;
+		private final FeatureWriter<SimpleFeatureType, SimpleFeature> writer;
+		
+		public ShapefileSink(File file, SimpleFeatureType type) throws IOException {
+			Map<String, Serializable> params = new HashMap<String, Serializable>();
+			params.put("url", file.toURI().toURL());
+			params.put("create spatial index", Boolean.TRUE);
+			this.dataStore = (ShapefileDataStore)new ShapefileDataStoreFactory().createNewDataStore(params);
+			this.dataStore.createSchema(type);
+			this.writer = dataStore.getFeatureWriterAppend(dataStore.getTypeNames()[0], Transaction.AUTO_COMMIT);
+		}
+		
+		@Override
+		public void write(SimpleFeature source, Geometry geometry) throws IOException {
+			SimpleFeature feature = writer.next();
+			for (AttributeDescriptor attribute: feature.getFeatureType().getAttributeDescriptors()) // copy attributes by name,
+				if (!(attribute instanceof GeometryDescriptor)) // since the shapefile will have renamed the geometry
+					feature.setAttribute(attribute.getLocalName(), source.getAttribute(attribute.getLocalName()));
+			feature.setDefaultGeometry(geometry);
+			writer.write();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				writer.close();
+			} finally {
+				dataStore.dispose();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Writes projected features to a GeoJSON FeatureCollection, one feature at a time.
+	 */
+	private static class GeoJSONSink implements FeatureSink {
+		
+		private final Writer out;
+		private final FeatureJSON json;
+		private final SimpleFeatureBuilder builder;
+		private boolean empty;
+		
+		public GeoJSONSink(File file, SimpleFeatureType type) throws IOException {
+			this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+			this.json = new FeatureJSON();
+			this.builder = new SimpleFeatureBuilder(type);
+			this.empty = true;
+			out.write("{\"type\":\"FeatureCollection\",\"features\":[");
+		}
+		
+		@Override
+		public void write(SimpleFeature source, Geometry geometry) throws IOException {
+			builder.init(source);
+			builder.set(builder.getFeatureType().getGeometryDescriptor().getLocalName(), geometry);
+			if (!empty)
+				out.write(",");
+			out.write("\n");
+			out.write(json.toString(builder.buildFeature(source.getID())));
+			empty = false;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				out.write("\n]}\n");
+			} finally {
+				out.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,322 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package geo;
+
+/**
+ * A spatial index of where the edge of a Danseiji map falls on the globe, for finding where
+ * lines cross tears. A line that crosses a tear has to be broken there, since the two sides
+ * end up in different places on the map, and looking at the edge itself gets it right no matter
+ * how big or small the tear is on the map. The edge is kept as segments of latitude and
+ * longitude between consecutive edge Vertices, sorted into a grid of buckets so that each
+ * query only has to look at the few segments near it.
+ * <br>
+ * 	The outer boundary of the globe is in the edge too, but nothing can cross it. A line that
+ * 	passes exactly through an edge Vertex or ends exactly on the edge counts as crossing it,
+ * 	since that's the only way to be sure it gets broken when a graticule line runs through
+ * 	the corners of the Cells; at worst this leaves a gap too small to see.
+ * 
+ * @author Justin Kunimune
+ */
+public class TearIndex {
+	
+	public static final TearIndex NONE = new TearIndex(new double[0]); // an index with no edge at all, for things that shouldn't be broken
+	private static final double GAP = 1e-6; // how far to either side of a tear to stop the line, in radians
+	
+	private final double[] segments; // the phi0, lam0, phi1, and lam1 of each edge segment
+	private final double[] ratios; // the width of the north end of the Cell over that of the south end for each diagonal segment, or NaN
+	private final int[] bucketStart; // the index in bucketContents at which each bucket starts (plus one at the end)
+	private final int[] bucketContents; // the indices of the segments in each bucket
+	private final int gridPhi, gridLam; // the number of buckets in each direction
+	
+	
+	
+	/**
+	 * Index the edge of a map of a sphere.
+	 * @param edge - The latitude and longitude of each edge Vertex in order, alternating, in
+	 * 		radians. The last one connects back to the first.
+	 */
+	public TearIndex(double[] edge) {
+		this(edge, 0);
+	}
+	
+	
+	/**
+	 * Index the edge of a map.
+	 * @param edge - The latitude and longitude of each edge Vertex in order, alternating, in
+	 * 		radians. The last one connects back to the first.
+	 * @param eccentricity - The eccentricity of the globe, which bends the diagonal tears.
+	 */
+	public TearIndex(double[] edge, double eccentricity) {
+		int n = edge.length/2;
+		double[] segments = new double[8*n];
+		double[] ratios = new double[2*n];
+		double e2 = eccentricity*eccentricity;
+		int numSegments = 0;
+		for (int i = 0; i < n; i ++) {
+			double phi0 = edge[2*i], lam0 = edge[2*i+1];
+			double phi1 = edge[2*((i+1)%n)], lam1 = edge[2*((i+1)%n)+1];
+			if (Math.abs(lam1 - lam0) > Math.PI) { // if it wraps around the antimeridian, put it on both sides
+				double shift = 2*Math.PI*Math.signum(lam1 - lam0);
+				numSegments = addSegment(segments, ratios, e2, numSegments, phi0, lam0, phi1, lam1 - shift);
+				numSegments = addSegment(segments, ratios, e2, numSegments, phi0, lam0 + shift, phi1, lam1);
+			}
+			else if (phi0 != phi1 || lam0 != lam1) {
+				numSegments = addSegment(segments, ratios, e2, numSegments, phi0, lam0, phi1, lam1);
+			}
+		}
+		this.segments = segments;
+		this.ratios = ratios;
+		
+		this.gridPhi = Math.max(1, (int)Math.sqrt(numSegments/2.)); // aim for about one segment per bucket
+		this.gridLam = 2*gridPhi;
+		this.bucketStart = new int[gridPhi*gridLam + 1];
+		int[] range = new int[4];
+		for (int s = 0; s < numSegments; s ++) { // count how many segments touch each bucket
+			bucketRange(segments[4*s], segments[4*s+1], segments[4*s+2], segments[4*s+3], range);
+			for (int i = range[0]; i <= range[1]; i ++)
+				for (int j = range[2]; j <= range[3]; j ++)
+					bucketStart[i*gridLam + j + 1] ++;
+		}
+		for (int b = 0; b < gridPhi*gridLam; b ++) // turn those counts into offsets
+			bucketStart[b+1] += bucketStart[b];
+		this.bucketContents = new int[bucketStart[gridPhi*gridLam]];
+		int[] fill = new int[gridPhi*gridLam]; // then drop each segment in
+		for (int s = 0; s < numSegments; s ++) {
+			bucketRange(segments[4*s], segments[4*s+1], segments[4*s+2], segments[4*s+3], range);
+			for (int i = range[0]; i <= range[1]; i ++)
+				for (int j = range[2]; j <= range[3]; j ++)
+					bucketContents[bucketStart[i*gridLam + j] + fill[i*gridLam + j]++] = s;
+		}
+	}
+	
+	
+	
+	/**
+	 * Go along one ring of a geometry and break it wherever it crosses the edge. Wherever it
+	 * does, the line is stopped just short of the tear and picked up again just past it, so
+	 * that it still reaches the edge on both sides.
+	 * @param layer - The layer the ring is in.
+	 * @param level - The level of detail at which to trace it.
+	 * @param r - The index of the ring.
+	 * @param pen - What to do with each point, in latitude and longitude in radians.
+	 */
+	public void trace(GeometryCache layer, int level, int r, Pen pen) {
+		Pen breaker = breakAtTears(pen);
+		for (int i = layer.getLevelStart(level, r); i < layer.getLevelStart(level, r+1); i ++) {
+			int k = layer.getLevelPoint(level, i);
+			double phi = Math.toRadians(layer.getLat(k)), lam = Math.toRadians(layer.getLon(k));
+			if (i == layer.getLevelStart(level, r))
+				breaker.moveTo(phi, lam);
+			else
+				breaker.lineTo(phi, lam);
+		}
+	}
+	
+	
+	/**
+	 * Get a Pen that passes everything on to another Pen, but breaks each line wherever it
+	 * crosses the edge, the same way trace does, so that lines from anywhere can be broken.
+	 * @param pen - What to do with each point, in latitude and longitude in radians.
+	 * @return the Pen to draw with.
+	 */
+	public Pen breakAtTears(Pen pen) {
+		return new Pen() {
+			private double phi0 = Double.NaN, lam0 = Double.NaN; // the last point
+			
+			@Override
+			public void moveTo(double phi, double lam) {
+				pen.moveTo(phi, lam);
+				this.phi0 = phi;
+				this.lam0 = lam;
+			}
+			
+			@Override
+			public void lineTo(double phi1, double lam1) {
+				boolean broken = Double.isNaN(phi0);
+				if (!broken) {
+					double gap = GAP/Math.hypot(phi1 - phi0, lam1 - lam0); // (in terms of the fraction of the way along)
+					double tLast = 0;
+					for (double t = nextCrossing(phi0, lam0, phi1, lam1, 0);
+							!Double.isNaN(t); t = nextCrossing(phi0, lam0, phi1, lam1, t + gap)) {
+						if (!broken && t - gap > tLast) // stop just before the tear
+							pen.lineTo(phi0 + (t - gap)*(phi1 - phi0), lam0 + (t - gap)*(lam1 - lam0));
+						broken = true;
+						if (t + gap < 1) { // and pick it up again just after
+							pen.moveTo(phi0 + (t + gap)*(phi1 - phi0), lam0 + (t + gap)*(lam1 - lam0));
+							broken = false;
+						}
+						tLast = t + gap;
+					}
+				}
+				if (broken)
+					pen.moveTo(phi1, lam1);
+				else
+					pen.lineTo(phi1, lam1);
+				this.phi0 = phi1;
+				this.lam0 = lam1;
+			}
+		};
+	}
+	
+	
+	/**
+	 * Find the first place where a line segment crosses the edge, going straight in latitude
+	 * and longitude like the Mesh does within each Cell. The diagonal tears aren't straight in
+	 * latitude and longitude, though, since each Cell is split straight across its undeformed
+	 * shape, so those are found exactly along the curve the Cell actually splits on.
+	 * @param phi0 - The latitude of the start of the segment, in radians.
+	 * @param lam0 - The longitude of the start of the segment, in radians.
+	 * @param phi1 - The latitude of the end of the segment, in radians.
+	 * @param lam1 - The longitude of the end of the segment, in radians.
+	 * @param tMin - Only crossings at least this fraction of the way along count.
+	 * @return the fraction of the way from start to end at which it first crosses, or NaN if
+	 * 		it doesn't.
+	 */
+	public double nextCrossing(double phi0, double lam0, double phi1, double lam1, double tMin) {
+		int[] range = new int[4];
+		bucketRange(phi0, lam0, phi1, lam1, range);
+		double dPhi = phi1 - phi0, dLam = lam1 - lam0;
+		double tBest = Double.NaN;
+		for (int i = range[0]; i <= range[1]; i ++) {
+			for (int j = range[2]; j <= range[3]; j ++) {
+				int b = i*gridLam + j;
+				for (int k = bucketStart[b]; k < bucketStart[b+1]; k ++) {
+					int s = bucketContents[k];
+					double sPhi0 = segments[4*s], sLam0 = segments[4*s+1];
+					double sPhi1 = segments[4*s+2], sLam1 = segments[4*s+3];
+					if (!Double.isNaN(ratios[s])) {
+						double t = diagonalCrossing(phi0, lam0, dPhi, dLam, sPhi0, sLam0, sPhi1, sLam1, ratios[s], tMin);
+						if (t < tBest || Double.isNaN(tBest))
+							tBest = t;
+						continue;
+					}
+					double ePhi = sPhi1 - sPhi0, eLam = sLam1 - sLam0;
+					double denom = dLam*ePhi - dPhi*eLam;
+					if (denom == 0)
+						continue; // (parallel segments can only touch, not cross)
+					double t = ((sLam0 - lam0)*ePhi - (sPhi0 - phi0)*eLam)/denom; // how far along the line it crosses
+					double u = ((sLam0 - lam0)*dPhi - (sPhi0 - phi0)*dLam)/denom; // how far along the edge it crosses
+					if (t >= tMin && t <= 1 && u >= 0 && u < 1 && !(t >= tBest)) // (each Vertex belongs to the segment after it)
+						tBest = t;
+				}
+			}
+		}
+		return tBest;
+	}
+	
+	
+	/**
+	 * Find the first place where a line segment crosses one diagonal edge segment. Going up
+	 * the Cell a fraction c of the way, the split is a fraction c*r/(1 + c*(r-1)) of the way
+	 * across from the south end of the diagonal, so a straight line meets it where a quadratic
+	 * goes to zero.
+	 * @param ratio - The width of the north end of the Cell over that of the south end.
+	 * @return the fraction of the way along the line at which it first crosses, or NaN if it
+	 * 		doesn't.
+	 */
+	private static double diagonalCrossing(double phi0, double lam0, double dPhi, double dLam,
+			double sPhi0, double sLam0, double sPhi1, double sLam1, double ratio, double tMin) {
+		boolean northward = sPhi1 > sPhi0;
+		double phiS = northward ? sPhi0 : sPhi1, lamS = northward ? sLam0 : sLam1;
+		double phiSpan = Math.abs(sPhi1 - sPhi0), lamSpan = (northward ? sLam1 - sLam0 : sLam0 - sLam1);
+		double c0 = (phi0 - phiS)/phiSpan, dc = dPhi/phiSpan; // the line in terms of the fractions up and across
+		double v0 = (lam0 - lamS)/lamSpan, dv = dLam/lamSpan;
+		double a = (ratio - 1)*dv*dc; // v*(1 + c*(r-1)) - c*r = a*t^2 + b*t + k
+		double b = dv + (ratio - 1)*(v0*dc + c0*dv) - ratio*dc;
+		double k = v0 + (ratio - 1)*v0*c0 - ratio*c0;
+		double[] roots;
+		if (a == 0) {
+			if (b == 0)
+				return Double.NaN; // (parallel lines can only touch, not cross)
+			roots = new double[] {-k/b};
+		}
+		else {
+			double discriminant = b*b - 4*a*k;
+			if (discriminant < 0)
+				return Double.NaN;
+			double q = -(b + Math.copySign(Math.sqrt(discriminant), b))/2; // (this way round doesn't lose precision)
+			roots = new double[] {q/a, k/q};
+		}
+		double tBest = Double.NaN;
+		for (double t: roots) {
+			double c = c0 + t*dc;
+			double u = northward ? c : 1 - c; // how far along the edge it crosses
+			if (t >= tMin && t <= 1 && u >= 0 && u < 1 && !(t >= tBest)) // (each Vertex belongs to the segment after it)
+				tBest = t;
+		}
+		return tBest;
+	}
+	
+	
+	/**
+	 * Find the range of buckets that a segment's bounding box touches.
+	 * @param out - The array in which to put the first and last row and the first and last
+	 * 		column.
+	 */
+	private void bucketRange(double phi0, double lam0, double phi1, double lam1, int[] out) {
+		out[0] = rowOf(Math.max(phi0, phi1));
+		out[1] = rowOf(Math.min(phi0, phi1));
+		out[2] = colOf(Math.min(lam0, lam1));
+		out[3] = colOf(Math.max(lam0, lam1));
+	}
+	
+	
+	private int rowOf(double phi) {
+		return Math.max(0, Math.min(gridPhi-1, (int)Math.floor((.5 - phi/Math.PI)*gridPhi)));
+	}
+	
+	
+	private int colOf(double lam) {
+		return Math.max(0, Math.min(gridLam-1, (int)Math.floor((lam/Math.PI + 1)/2*gridLam)));
+	}
+	
+	
+	/**
+	 * Something that can draw a line one point at a time, like a Path.
+	 */
+	public interface Pen {
+		public void moveTo(double phi, double lam);
+		
+		public void lineTo(double phi, double lam);
+	}
+	
+	
+	private static int addSegment(double[] segments, double[] ratios, double e2, int numSegments,
+			double phi0, double lam0, double phi1, double lam1) {
+		segments[4*numSegments] = phi0;
+		segments[4*numSegments+1] = lam0;
+		segments[4*numSegments+2] = phi1;
+		segments[4*numSegments+3] = lam1;
+		double phiN = Math.max(phi0, phi1), phiS = Math.min(phi0, phi1);
+		double ratio = Math.cos(phiN)*Math.pow(1 - e2*Math.pow(Math.sin(phiN), 2), -1/2.)/Math.cos(phiS); // the same xN/xS as the Cell
+		if (phi0 != phi1 && lam0 != lam1 && ratio > 0 && Double.isFinite(ratio))
+			ratios[numSegments] = ratio;
+		else
+			ratios[numSegments] = Double.NaN;
+		return numSegments + 1;
+	}
+}
@@ -131,12 +131,19 @@ public class Cell {
 	
 	
 	public double[] map(double delPhi, double delLam) { // get the X-Y coordinates of a point in this Cell given its relative latitude and longitude
+		double[] XY = new double[2];
+		map(delPhi, delLam, XY, 0);
+		return XY;
+	}
+	
+	
+	public void map(double delPhi, double delLam, double[] out, int off) { // the same, but put X and Y in out instead of making a new array
 		double y = delPhi/phiSpan*(yN + yS) - yS; // y is a simple linear mapping
 		double c = delPhi/phiSpan; // (like y, but goes from 0 to 1)
 		double x = (delLam/(phiSpan/2) - 1)*(c*xN + (1-c)*xS); // with x we need to account for sphericalness
 		if (sign == 0 || x <= sign*(-xS + (xN+xS)/(yN+yS) * (y+yS))) // if it's in the eastern Element (or there's only one Element)
-			return elements.get(0).mapUndeformedToDeformed(x, y);
+			elements.get(0).mapUndeformedToDeformed(x, y, out, off);
 		else // otherwise
-			return elements.get(1).mapUndeformedToDeformed(x, y);
+			elements.get(1).mapUndeformedToDeformed(x, y, out, off);
 	}
 }
@@ -0,0 +1,201 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package model;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * The information needed to linearly extrapolate the inverse map off the edge of a Mesh: the
+ * outward direction of the edge at each edge Vertex, the corresponding direction on the globe,
+ * and a grid of edge segments so that we only have to try the ones near a given point.
+ * 
+ * @author Justin Kunimune
+ */
+class EdgeExtrapolator {
+	
+	private final int n; // the number of Vertices (and segments) in the edge
+	private final double[] X, Y; // the planar coordinates of each edge Vertex
+	private final double[] u, v; // the outward direction of the edge at each edge Vertex
+	private final double[][] org; // the 3D position of each edge Vertex on the globe
+	private final double[][] vec; // the 3D direction on the globe corresponding to u and v
+	
+	private final int[] bucketStart; // the index in bucketContents at which each bucket starts (plus one at the end)
+	private final int[] bucketContents; // the indices of the segments in each bucket
+	private final double xMin, yMin; // the lower left corner of the grid
+	private final double bucketSize; // the side length of each bucket
+	private final int numX, numY; // the number of buckets in each direction
+	
+	
+	
+	/**
+	 * Work out the extrapolation constants for this edge.
+	 * @param edge - The edge Vertices, in order.
+	 * @param inverseMap - The inverse map to use for points just inside the edge.
+	 */
+	public EdgeExtrapolator(List<Vertex> edge, Function<double[], double[]> inverseMap) {
+		final double d = 1e-4; // an arbitrarily small number, which doesn't actually have to be that small
+		
+		this.n = edge.size();
+		this.X = new double[n];
+		this.Y = new double[n];
+		this.u = new double[n];
+		this.v = new double[n];
+		this.org = new double[n][3];
+		this.vec = new double[n][3];
+		int i = 0;
+		for (Vertex vtx: edge) {
+			X[i] = vtx.getX();
+			Y[i] = vtx.getY();
+			double[] planeVec = vtx.getEdgeDirection(); // define the direction of the edge here
+			u[i] = planeVec[0];
+			v[i] = planeVec[1];
+			org[i][0] = Math.cos(vtx.getPhi())*Math.cos(vtx.getLam());
+			org[i][1] = Math.cos(vtx.getPhi())*Math.sin(vtx.getLam());
+			org[i][2] = Math.sin(vtx.getPhi());
+			double[] inCoords = inverseMap.apply(new double[] {X[i]-d*u[i], Y[i]-d*v[i]}); // then use that to map a point slightly inside
+			vec[i][0] = (org[i][0] - Math.cos(inCoords[0])*Math.cos(inCoords[1]))/d;
+			vec[i][1] = (org[i][1] - Math.cos(inCoords[0])*Math.sin(inCoords[1]))/d; // so that we can map that edge vector to sphere space
+			vec[i][2] = (org[i][2] - Math.sin(inCoords[0]))/d; // (I could do this analytically, but I really don't want to)
+			i ++;
+		}
+		
+		double xMin = Double.POSITIVE_INFINITY, xMax = Double.NEGATIVE_INFINITY; // now set up the grid
+		double yMin = Double.POSITIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+		double perimeter = 0;
+		for (i = 0; i < n; i ++) {
+			xMin = Math.min(xMin, X[i]);
+			xMax = Math.max(xMax, X[i]);
+			yMin = Math.min(yMin, Y[i]);
+			yMax = Math.max(yMax, Y[i]);
+			perimeter += Math.hypot(X[(i+1)%n] - X[i], Y[(i+1)%n] - Y[i]);
+		}
+		double bucketSize = 2*perimeter/n; // aim for a couple of segments per bucket along the edge
+		bucketSize = Math.max(bucketSize, Math.sqrt((xMax - xMin)*(yMax - yMin)/(16*n))); // but don't let the grid get too big
+		if (!(bucketSize > 0))
+			bucketSize = Math.max(xMax - xMin, yMax - yMin) + 1;
+		this.xMin = xMin;
+		this.yMin = yMin;
+		this.bucketSize = bucketSize;
+		this.numX = (int)((xMax - xMin)/bucketSize) + 1;
+		this.numY = (int)((yMax - yMin)/bucketSize) + 1;
+		
+		this.bucketStart = new int[numX*numY + 1];
+		for (i = 0; i < n; i ++) // count how many segments touch each bucket
+			for (int b: bucketsOf(i))
+				bucketStart[b+1] ++;
+		for (int b = 0; b < numX*numY; b ++) // turn those counts into offsets
+			bucketStart[b+1] += bucketStart[b];
+		this.bucketContents = new int[bucketStart[numX*numY]];
+		int[] fill = new int[numX*numY]; // then drop each segment in
+		for (i = 0; i < n; i ++)
+			for (int b: bucketsOf(i))
+				bucketContents[bucketStart[b] + fill[b]++] = i;
+	}
+	
+	
+	
+	/**
+	 * Convert Cartesian coordinates that are off the edge of the Mesh to spherical coordinates by
+	 * linearly extrapolating from the nearest bit of edge.
+	 * @param X - The X coordinate of the point to map.
+	 * @param Y - The Y coordinate of the point to map.
+	 * @return an array of two elements: {phi, lam}.
+	 */
+	public double[] extrapolate(double X, double Y) {
+		int ci = Math.min(Math.max(0, (int)Math.floor((X - xMin)/bucketSize)), numX-1); // find the nearest bucket
+		int cj = Math.min(Math.max(0, (int)Math.floor((Y - yMin)/bucketSize)), numY-1);
+		
+		int bestI = -1;
+		double bestW = Double.NaN, bestS = Double.POSITIVE_INFINITY;
+		for (int r = 0; r <= Math.max(numX, numY); r ++) { // and search outward from it in rings
+			if ((r-1)*bucketSize > Math.abs(bestS)) // a segment can't give an s smaller than its distance from the point,
+				break; // so once the rings are farther than the best s, we're done
+			for (int j = cj-r; j <= cj+r; j ++) {
+				if (j < 0 || j >= numY)	continue;
+				for (int i = ci-r; i <= ci+r; i += (j == cj-r || j == cj+r) ? 1 : 2*r) { // (only the perimeter of the ring)
+					if (i < 0 || i >= numX)	continue;
+					int b = j*numX + i;
+					for (int k = bucketStart[b]; k < bucketStart[b+1]; k ++) { // now take each edge segment,
+						int s0 = bucketContents[k], s1 = (s0+1)%n;
+						double X0 = this.X[s0], Y0 = this.Y[s0]; // try to extrapolate the point on it
+						double u0 = this.u[s0], v0 = this.v[s0];
+						double X1 = this.X[s1], Y1 = this.Y[s1];
+						double u1 = this.u[s1], v1 = this.v[s1];
+						double a = (u0-u1)*(Y0-Y1) - (v0-v1)*(X0-X1); // by solving this quadratic
+						double bb = (v0-v1)*X - v0*X1 - v1*X0 + 2*v1*X1 - (u0-u1)*Y + u0*Y1 + u1*Y0 - 2*u1*Y1;
+						double c = v1*(X-X1) - u1*(Y-Y1);
+						for (double sign = -1; sign <= 1; sign += 2) {
+							double w = (-bb +sign* Math.sqrt(bb*bb - 4*a*c))/(2*a);
+							double s = (X - w*X0 - (1-w)*X1)/(w*u0 + (1-w)*u1);
+							if (Double.isFinite(w) && w >= 0 && w <= 1) { // if you can,
+								if (Math.abs(s) < Math.abs(bestS) ||
+										(Math.abs(s) == Math.abs(bestS) && s0 < bestI)) { // and it's closer to this segment than to the last
+									bestI = s0; // save it!
+									bestW = w;
+									bestS = s;
+								}
+							}
+						}
+					}
+					if (r == 0)	break; // (the zeroth ring only has one bucket)
+				}
+			}
+		}
+		
+		if (bestI >= 0) {
+			int bestJ = (bestI+1)%n;
+			double[] coords3d = new double[3]; // use those extrapolation constants to compute its linearly extrapolated space in the 3d space the globe occupies
+			for (int i = 0; i < 3; i ++)
+				coords3d[i] = bestW*(org[bestI][i] + bestS*vec[bestI][i]) + (1-bestW)*(org[bestJ][i] + bestS*vec[bestJ][i]);
+			return new double[] { // finally, gnomonically project that to the globe
+					Math.atan2(coords3d[2], Math.hypot(coords3d[0], coords3d[1])),
+					Math.atan2(coords3d[1], coords3d[0])};
+		}
+		else
+			throw new IllegalArgumentException(String.format("Could not extrapolate %f, %f", X, Y)); // null means it could not be extrapolated
+	}
+	
+	
+	/**
+	 * Find all of the buckets touched by the bounding box of this segment.
+	 * @param s - The index of the segment's first Vertex.
+	 * @return the indices of the buckets.
+	 */
+	private int[] bucketsOf(int s) {
+		int t = (s+1)%n;
+		int iMin = (int)((Math.min(X[s], X[t]) - xMin)/bucketSize), iMax = (int)((Math.max(X[s], X[t]) - xMin)/bucketSize);
+		int jMin = (int)((Math.min(Y[s], Y[t]) - yMin)/bucketSize), jMax = (int)((Math.max(Y[s], Y[t]) - yMin)/bucketSize);
+		iMax = Math.min(iMax, numX-1);
+		jMax = Math.min(jMax, numY-1);
+		int[] buckets = new int[(iMax-iMin+1)*(jMax-jMin+1)];
+		for (int j = jMin; j <= jMax; j ++)
+			for (int i = iMin; i <= iMax; i ++)
+				buckets[(j-jMin)*(iMax-iMin+1) + (i-iMin)] = j*numX + i;
+		return buckets;
+	}
+}
@@ -229,12 +229,49 @@ public class Element {
 		return true;
 	}
 	
+	/**
+	 * Which side of this element would you have to cross to get to these deformed coordinates?
+	 * @param X - the deformed X to test.
+	 * @param Y - the deformed Y to test.
+	 * @return the index of the Vertex across from the side facing the point most directly, or -1
+	 * 		if the point is inside the deformed element.
+	 */
+	public int sideFacingDeformed(double X, double Y) {
+		double Xa = vertices[0].getX(), Ya = vertices[0].getY();
+		double Xb = vertices[1].getX(), Yb = vertices[1].getY();
+		double Xc = vertices[2].getX(), Yc = vertices[2].getY();
+		double denom = (Yb-Yc)*(Xa-Xc) - (Xb-Xc)*(Ya-Yc);
+		double wa = ((Yb-Yc)*(X-Xc) - (Xb-Xc)*(Y-Yc)) / denom; // simple barycentric coordinates
+		double wb = ((Yc-Ya)*(X-Xc) - (Xc-Xa)*(Y-Yc)) / denom;
+		double wc = 1 - wa - wb;
+		
+		if (wa <= wb && wa <= wc) // the most negative one tells you which way to go
+			return (wa < -1e-12) ? 0 : -1; // (accounting for roundoff the same way as containsDeformed)
+		else if (wb <= wc)
+			return (wb < -1e-12) ? 1 : -1;
+		else
+			return (wc < -1e-12) ? 2 : -1;
+	}
+	
 	/** Linearly interpolate a pair of X-Y coordinates from the given x-y coordinates.
 	 * @param x - the input x
 	 * @param y - the input y
 	 * @return {output X, output Y}
 	 */
 	public double[] mapUndeformedToDeformed(double x, double y) {
+		double[] XY = new double[2];
+		mapUndeformedToDeformed(x, y, XY, 0);
+		return XY;
+	}
+	
+	/** Linearly interpolate a pair of X-Y coordinates from the given x-y coordinates, and put
+	 * them in an array that already exists.
+	 * @param x - the input x
+	 * @param y - the input y
+	 * @param out - the array in which to put output X and then output Y
+	 * @param off - the index in out at which to put output X
+	 */
+	public void mapUndeformedToDeformed(double x, double y, double[] out, int off) {
 		double xa = undeformedCoords[0][0], ya = undeformedCoords[0][1], Xa = vertices[0].getX(), Ya = vertices[0].getY();
 		double xb = undeformedCoords[1][0], yb = undeformedCoords[1][1], Xb = vertices[1].getX(), Yb = vertices[1].getY();
 		double xc = undeformedCoords[2][0], yc = undeformedCoords[2][1], Xc = vertices[2].getX(), Yc = vertices[2].getY();
@@ -244,7 +281,8 @@ public class Element {
 		double wb = ((yc-ya)*(x-xc) - (xc-xa)*(y-yc)) / denom;
 		double wc = 1 - wa - wb;
 		
-		return new double[] {wa*Xa + wb*Xb + wc*Xc, wa*Ya + wb*Yb + wc*Yc};
+		out[off] = wa*Xa + wb*Xb + wc*Xc;
+		out[off+1] = wa*Ya + wb*Yb + wc*Yc;
 	}
 	
 	/** Linearly interpolate a pair of x-y from the given X-Y coordinates.
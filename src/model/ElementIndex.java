@@ -0,0 +1,194 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * A uniform grid over the deformed Elements of a Mesh, so that the Element containing a
+ * given X-Y point can be found without checking every single one of them. It also knows
+ * which Elements border which, so that if you already know an Element near the point,
+ * you can just walk over to it.
+ * <br>
+ * 	The grid and the adjacency are both worked out once, when it's constructed, so this is
+ * 	only for a Mesh that has been finalised. A Mesh that's still moving would leave the
+ * 	grid behind, and one that tears or stitches would change which Elements border which.
+ * 
+ * @author Justin Kunimune
+ */
+public class ElementIndex {
+	
+	private static final int MAX_WALK_LENGTH = 64; // give up walking and search the grid after this many steps
+	
+	private final Element[] elements; // all of the indexed Elements
+	private final int[] neighbors; // the index of the Element across from each Vertex of each Element, or -1 at the edge
+	private int[] bucketStart; // the index in bucketContents at which each bucket starts (plus one at the end)
+	private int[] bucketContents; // the indices of the Elements in each bucket, one bucket after another
+	private double xMin, yMin; // the lower left corner of the grid
+	private double bucketSize; // the side length of each bucket
+	private int numX, numY; // the number of buckets in each direction
+	
+	
+	
+	public ElementIndex(Iterable<Element> elements) {
+		List<Element> list = new ArrayList<Element>();
+		for (Element e: elements)
+			list.add(e);
+		this.elements = list.toArray(new Element[0]);
+		
+		Map<Element, Integer> indices = new HashMap<Element, Integer>();
+		for (int i = 0; i < this.elements.length; i ++)
+			indices.put(this.elements[i], i);
+		this.neighbors = new int[3*this.elements.length]; // now work out the adjacency
+		for (int i = 0; i < this.elements.length; i ++) {
+			for (int k = 0; k < 3; k ++) {
+				Vertex a = this.elements[i].getVertex((k+1)%3), b = this.elements[i].getVertex((k+2)%3);
+				neighbors[3*i+k] = -1;
+				for (Element e: a.getNeighborsUnmodifiable()) { // the neighbour across from k shares the other two Vertices
+					if (e != this.elements[i] && e.isAdjacentTo(b) && indices.containsKey(e)) {
+						neighbors[3*i+k] = indices.get(e);
+						break;
+					}
+				}
+			}
+		}
+		
+		this.sortIntoBuckets();
+	}
+	
+	
+	
+	/**
+	 * Sort the Elements into buckets based on their deformed positions.
+	 */
+	private void sortIntoBuckets() {
+		xMin = Double.POSITIVE_INFINITY;
+		yMin = Double.POSITIVE_INFINITY;
+		double xMax = Double.NEGATIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+		for (Element e: elements) { // first find the extent of the whole thing
+			for (int k = 0; k < 3; k ++) {
+				xMin = Math.min(xMin, e.getVertex(k).getX());
+				xMax = Math.max(xMax, e.getVertex(k).getX());
+				yMin = Math.min(yMin, e.getVertex(k).getY());
+				yMax = Math.max(yMax, e.getVertex(k).getY());
+			}
+		}
+		bucketSize = Math.sqrt((xMax - xMin)*(yMax - yMin)/elements.length); // aim for about one Element per bucket
+		if (!(bucketSize > 0)) // (unless that doesn't make sense)
+			bucketSize = Math.max(xMax - xMin, yMax - yMin) + 1;
+		numX = (int)((xMax - xMin)/bucketSize) + 1;
+		numY = (int)((yMax - yMin)/bucketSize) + 1;
+		
+		bucketStart = new int[numX*numY + 1];
+		for (Element e: elements) // count how many Elements touch each bucket
+			forEachBucket(e, (b) -> bucketStart[b+1] ++);
+		for (int b = 0; b < numX*numY; b ++) // turn those counts into offsets
+			bucketStart[b+1] += bucketStart[b];
+		
+		bucketContents = new int[bucketStart[numX*numY]];
+		int[] fill = new int[numX*numY]; // then drop each Element in
+		for (int i = 0; i < elements.length; i ++) {
+			final int idx = i;
+			forEachBucket(elements[i], (b) -> bucketContents[bucketStart[b] + fill[b]++] = idx);
+		}
+	}
+	
+	
+	/**
+	 * Find the Element whose deformed triangle contains this point.
+	 * @param X - The X coordinate of the point to find.
+	 * @param Y - The Y coordinate of the point to find.
+	 * @return the Element that contains it, or null if there is none.
+	 */
+	public Element locate(double X, double Y) {
+		int i = locate(X, Y, -1);
+		return (i >= 0) ? elements[i] : null;
+	}
+	
+	
+	/**
+	 * Find the Element whose deformed triangle contains this point, starting from an Element
+	 * that is probably nearby and walking across shared sides toward the point. If that
+	 * doesn't pan out, fall back to searching the grid.
+	 * @param X - The X coordinate of the point to find.
+	 * @param Y - The Y coordinate of the point to find.
+	 * @param start - The index of the Element from which to start walking, or -1 to go straight to the grid.
+	 * @return the index of the Element that contains it, or -1 if there is none.
+	 */
+	public int locate(double X, double Y, int start) {
+		int i = start;
+		for (int step = 0; i >= 0 && step < MAX_WALK_LENGTH; step ++) {
+			int side = elements[i].sideFacingDeformed(X, Y);
+			if (side < 0)
+				return i; // we found it!
+			i = neighbors[3*i+side]; // otherwise step across the side that faces the point
+		} // if we hit the edge or wandered too long, the point might be off the map or across a tear
+		
+		int x = (int)Math.floor((X - xMin)/bucketSize), y = (int)Math.floor((Y - yMin)/bucketSize);
+		if (x < 0 || x >= numX || y < 0 || y >= numY)
+			return -1; // it's nowhere near anything
+		int b = y*numX + x;
+		for (int k = bucketStart[b]; k < bucketStart[b+1]; k ++) // only check the Elements in this bucket
+			if (elements[bucketContents[k]].containsDeformed(X, Y, false))
+				return bucketContents[k];
+		return -1;
+	}
+	
+	
+	/**
+	 * Get the Element that goes with an index returned by locate.
+	 * @param i - The index of the Element.
+	 * @return the Element.
+	 */
+	public Element getElement(int i) {
+		return elements[i];
+	}
+	
+	
+	/**
+	 * Call this function on the index of every bucket that this Element's bounding box touches.
+	 */
+	private void forEachBucket(Element e, IntConsumer action) {
+		double eXMin = Double.POSITIVE_INFINITY, eXMax = Double.NEGATIVE_INFINITY;
+		double eYMin = Double.POSITIVE_INFINITY, eYMax = Double.NEGATIVE_INFINITY;
+		for (int k = 0; k < 3; k ++) {
+			eXMin = Math.min(eXMin, e.getVertex(k).getX());
+			eXMax = Math.max(eXMax, e.getVertex(k).getX());
+			eYMin = Math.min(eYMin, e.getVertex(k).getY());
+			eYMax = Math.max(eYMax, e.getVertex(k).getY());
+		}
+		int iMin = Math.max(0, (int)((eXMin - xMin)/bucketSize)), iMax = Math.min(numX-1, (int)((eXMax - xMin)/bucketSize));
+		int jMin = Math.max(0, (int)((eYMin - yMin)/bucketSize)), jMax = Math.min(numY-1, (int)((eYMax - yMin)/bucketSize));
+		for (int j = jMin; j <= jMax; j ++)
+			for (int i = iMin; i <= iMax; i ++)
+				action.accept(j*numX + i);
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A tool to write the inverse table of a finished Mesh at any resolution, for when the one in
+ * the CSV file isn't nearly big enough. The table is computed in bands of rows on several
+ * threads at once, and each band goes straight into a binary file as soon as it's done, so
+ * the whole thing never has to fit in memory.
+ * <br>
+ * 	The file is little-endian. It starts with a 32-byte header: the magic number "DSJI",
+ * 	the format version, the width and height of the table in pixels, and the width and height
+ * 	of the map as floats, followed by eight bytes of padding.
+ * <br>
+ * 	Then come width*height pairs of floats, representing the latitude and longitude in radians
+ * 	at each pixel (going left to right, then top to bottom), like the table in Mesh.save.
+ * 
+ * @author Justin Kunimune
+ */
+public class InverseRasterExporter {
+	
+	public static final int MAGIC = 0x494A5344; // spells "DSJI" in little-endian
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 32; // the number of bytes before the table starts
+	private static final int BAND_SIZE = 1<<20; // the approximate number of bytes to compute at once on each thread
+	
+	private final Mesh mesh;
+	private final int numThreads;
+	
+	
+	
+	public InverseRasterExporter(Mesh mesh) {
+		this(mesh, Runtime.getRuntime().availableProcessors());
+	}
+	
+	
+	public InverseRasterExporter(Mesh mesh, int numThreads) {
+		this.mesh = mesh;
+		this.numThreads = numThreads;
+	}
+	
+	
+	
+	/**
+	 * Compute the inverse table at this resolution and write it to disk. The Mesh should be
+	 * finalised first, both so that it doesn't move and so that inverseMap is fast.
+	 * @param file - The file to which to write it; it will be overwritten if it exists.
+	 * @param width - The number of pixels in each row.
+	 * @param height - The number of rows of pixels.
+	 * @throws IOException if there is a problem writing to the file.
+	 */
+	public void export(File file, int width, int height) throws IOException {
+		if (width < 2 || height < 2)
+			throw new IllegalArgumentException("The inverse table must be at least 2 by 2, not "+width+" by "+height);
+		
+		double[] transform = mesh.getBoundingBox(true); // get the same transform that save uses
+		double mapWidth = transform[3], mapHeight = transform[4];
+		int bandHeight = Math.max(1, BAND_SIZE/(8*width)); // the number of rows to do at once
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+			header.putFloat((float)mapWidth).putFloat((float)mapHeight);
+			header.rewind();
+			writeFully(channel, header, 0);
+			
+			ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+			try {
+				List<Future<?>> bands = new ArrayList<Future<?>>(); // each task allocates its buffer when it starts,
+				for (int i0 = 0; i0 < height; i0 += bandHeight) { // so only numThreads bands are ever in memory
+					final int start = i0, end = Math.min(i0 + bandHeight, height);
+					bands.add(pool.submit(() -> {
+						ByteBuffer band = ByteBuffer.allocate(8*width*(end - start)).order(ByteOrder.LITTLE_ENDIAN);
+						double[] rowX = new double[width], rowY = new double[width];
+						double[] rowPhi = new double[width], rowLam = new double[width];
+						for (int i = start; i < end; i ++) {
+							for (int j = 0; j < width; j ++) { // lay out each row like in Mesh.save
+								double Y = mapHeight/2 - i*mapHeight/(height-1);
+								double X = j*mapWidth/(width-1) - mapWidth/2;
+								double[] XY = Mesh.inverseTransform(X, Y, transform);
+								rowX[j] = XY[0];
+								rowY[j] = XY[1];
+							}
+							mesh.inverseMap(rowX, rowY, rowPhi, rowLam, 0, width);
+							for (int j = 0; j < width; j ++)
+								band.putFloat((float)rowPhi[j]).putFloat((float)rowLam[j]);
+						}
+						band.rewind();
+						writeFully(channel, band, HEADER_SIZE + 8L*width*start); // positional writes don't get in each other's way
+						return null;
+					}));
+				}
+				for (Future<?> band: bands) // wait for everyone to finish
+					band.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while writing the inverse table", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException)e.getCause();
+				else
+					throw new RuntimeException(e.getCause());
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Write the entire contents of this buffer to the channel at this position.
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+}
@@ -26,18 +26,28 @@
  */
 package model;
 
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
 
+import danseiji.Projection;
+import danseiji.ProjectionFile;
 import utils.Math2;
 import utils.Matrix;
 
@@ -57,6 +67,7 @@ public class Mesh {
 	private static final double ARMIJO_GOLDSTEIN_C = 0.7;
 	private static final double BACKSTEP_TAU = 0.5;
 	private static final double L_BFGS_M = 12; // the memory size
+	private static final int MAP_CHUNK_SIZE = 1<<14; // the number of points to map on each thread when mapping in parallel
 	
 	private static final double SHEAR_WEIGHT = 0;//.167; // how much strong shear can cause tears compared to strain
 	
@@ -64,12 +75,23 @@ public class Mesh {
 	private final List<Vertex> vertices; // all of the Vertices. It doesn't matter what order this List is in, but it must have an order so that I can put them in a Vector.
 	private final double precision; // determines how far we update before declaring that we have settled
 	private final double maxTearLength; // determines when we stop tearing and declare the map done
+	private final double eccentricity; // the eccentricity of the globe
 	private final Set<Vertex> stitchHistory; // all of the Vertices we have stitched
 	private List<Vertex> edge; // the start Vertex for iterating around the edge
+	private ElementIndex elementIndex; // a spatial index of the Elements for inverse mapping, once they've stopped moving
+	private EdgeExtrapolator edgeExtrapolator; // the constants for inverse mapping off the edge, once it's stopped moving
 	private double elasticEnergy; // the potential energy currently stored
 	private double tearLength; // the length of the edge in radians
+	private int topologyVersion; // the number of times it has been torn or stitched
 	private boolean active; // are we done yet?
 	
+	private final AtomicReference<MeshSnapshot> snapshot; // the state as of the end of the last step, for other Threads to look at
+	private final AtomicReference<MeshSnapshot> spareSnapshot; // an old snapshot that nobody is looking at anymore, to reuse
+	private int snapshotTopology; // the topology version of the tables below
+	private int[] snapshotEdge, snapshotElements; // the topology tables to put in each snapshot
+	private double[] snapshotEdgeCoordinates;
+	private Projection snapshotProjection; // the compiled topology to put in each snapshot
+	
 	private LinkedList<Matrix> sHist; // history of $s$ from the L-BFGS algorithm
 	private LinkedList<Matrix> yHist; // history of $y$ from the L-BFGS algorithm
 	private Matrix gkMinus1 = null; // the previous value of $g$ from the L-BFGS algorithm
@@ -81,6 +103,7 @@ public class Mesh {
 			double eccentricity) {
 		this.precision = precision;
 		this.maxTearLength = maxTearLength;
+		this.eccentricity = eccentricity;
 		
 		InitialConfig init = new InitialConfig(initialCondition, weights, scales, lambda, mu, resolution, eccentricity);
 		this.vertices = new ArrayList<Vertex>(init.vertices);
@@ -95,6 +118,11 @@ public class Mesh {
 		this.elasticEnergy = getTotEnergy(false);
 		this.sHist = new LinkedList<Matrix>();
 		this.yHist = new LinkedList<Matrix>();
+		
+		this.snapshot = new AtomicReference<MeshSnapshot>();
+		this.spareSnapshot = new AtomicReference<MeshSnapshot>();
+		this.snapshotTopology = -1;
+		publishSnapshot();
 	}
 	
 	
@@ -161,6 +189,7 @@ public class Mesh {
 			for (Vertex v: vertices) // if the energy isn't really changing, then we're done
 				v.descend(-timestep); // just reset to before we started backtracking
 			this.elasticEnergy = getTotEnergy(false);
+			publishSnapshot();
 			return false;
 		}
 		
@@ -173,6 +202,7 @@ public class Mesh {
 		this.gkMinus1 = gk;
 		
 		this.elasticEnergy = Uf;
+		publishSnapshot(); // only now that the step is done can anyone else see it
 		return true;
 	}
 	
@@ -240,10 +270,12 @@ public class Mesh {
 		
 		this.tearLength += v0max.geographicDistanceTo(v1max);
 		this.edge = traceEdge(); // update this.edge in a Thread-safe manner so that the Renderer knows about this
+		this.topologyVersion ++;
 		this.sHist = new LinkedList<Matrix>(); // with a new number of vertices, these are no longer relevant
 		this.yHist = new LinkedList<Matrix>(); // erase them.
 		this.gkMinus1 = null;
 		
+		publishSnapshot();
 		return true;
 	}
 	
@@ -276,12 +308,14 @@ public class Mesh {
 		for (Element e: c1.getNeighborsUnmodifiable(true)) // and re-attach all Elements from now nonexistent c1 to its sibling
 			c1.transferNeighbor(e, w1);
 		this.edge = traceEdge();
+		this.topologyVersion ++;
 		
 		this.sHist = new LinkedList<Matrix>(); // with a new number of vertices, these are no longer relevant
 		this.yHist = new LinkedList<Matrix>(); // erase them.
 		this.gkMinus1 = null;
 		
 		this.stitchHistory.add(v0); // remember this
+		publishSnapshot();
 		return true;
 	}
 	
@@ -291,6 +325,56 @@ public class Mesh {
 	 */
 	public void finalise() {
 		this.active = false;
+		this.elementIndex = new ElementIndex(getElementsUnmodifiable()); // now that nothing will move, index the Elements for inverseMap
+		this.edgeExtrapolator = new EdgeExtrapolator(edge, this::inverseMap); // and work out how to extrapolate past the edge
+		publishSnapshot(); // and let everyone know
+	}
+	
+	
+	/**
+	 * Get the state of the Mesh as of the end of the last step, without waiting for the
+	 * current one or getting in its way. This is the safe way to look at the Mesh from any
+	 * Thread but the one that's optimising it. The snapshot must be closed when you're done
+	 * with it.
+	 * @return the latest snapshot.
+	 */
+	public MeshSnapshot getSnapshot() {
+		while (true) {
+			MeshSnapshot latest = snapshot.get();
+			if (latest.retain()) // (this only fails if a newer one replaced it and it's already being reused)
+				return latest;
+		}
+	}
+	
+	
+	/**
+	 * Copy the current state into a snapshot and make it the latest one. The snapshot that was
+	 * last let go of gets reused, so this doesn't make any garbage unless a reader holds onto
+	 * one for a long time or the Mesh tears. This must be called from the Thread that changes
+	 * the Mesh, and only between steps.
+	 */
+	private void publishSnapshot() {
+		if (topologyVersion != snapshotTopology) { // the topology tables only change when it tears or stitches
+			Map<Vertex, Integer> indices = indexVertices();
+			this.snapshotEdge = getEdgeTable(indices);
+			this.snapshotElements = getElementTable();
+			this.snapshotEdgeCoordinates = getEdgeCoordinates();
+			double[] vertexXY = new double[2*vertices.size()];
+			getVertexXY(vertexXY);
+			this.snapshotProjection = new Projection(new ProjectionFile(cells.length, cells[0].length, 0, 0,
+					vertexXY, getCellTable(indices), snapshotEdge, 0, 0, new double[0]), eccentricity); // (the snapshots each move it to their own Vertices)
+			this.snapshotTopology = topologyVersion;
+		}
+		
+		MeshSnapshot next = spareSnapshot.getAndSet(null);
+		if (next == null || next.getNumVertices() != vertices.size())
+			next = new MeshSnapshot(vertices.size(), spareSnapshot);
+		getVertexXY(next.getVertexXY());
+		next.set(topologyVersion, snapshotProjection, snapshotEdge, snapshotElements,
+				snapshotEdgeCoordinates, elasticEnergy, tearLength, active);
+		MeshSnapshot last = snapshot.getAndSet(next);
+		if (last != null)
+			last.close(); // let go of the old one, so it can be reused once its readers are done
 	}
 	
 	
@@ -369,7 +453,7 @@ public class Mesh {
 	 * 	will not.
 	 */
 	private List<Vertex> traceEdge() {
-		LinkedList<Vertex> output = new LinkedList<Vertex>();
+		List<Vertex> output = new ArrayList<Vertex>(); // (this must support random access for insideEdge)
 		for (Vertex v: getVerticesUnmodifiable()) {
 			if (v.isEdge()) {
 				output.add(v);
@@ -377,8 +461,8 @@ public class Mesh {
 			}
 		}
 		assert !output.isEmpty();
-		while (output.getLast().getWidershinNeighbor() != output.getFirst())
-			output.add(output.getLast().getWidershinNeighbor());
+		while (output.get(output.size()-1).getWidershinNeighbor() != output.get(0))
+			output.add(output.get(output.size()-1).getWidershinNeighbor());
 		return output;
 	}
 	
@@ -408,85 +492,143 @@ public class Mesh {
 	 * @return an array of two elements: {x, y}.
 	 */
 	public double[] map(double... philam) {
-		double phi = philam[0], lam = philam[1];
+		double[] XY = new double[2];
+		mapInto(philam[0], philam[1], XY, 0);
+		return XY;
+	}
+	
+	
+	/** Convert spherical coordinates to Cartesian coordinates using the current mesh configuration,
+	 * and put them in an array that already exists.
+	 * @param phi - The latitude of the point to map.
+	 * @param lam - The longitude of the point to map.
+	 * @param out - The array in which to put x and then y.
+	 * @param off - The index in out at which to put x.
+	 */
+	public void mapInto(double phi, double lam, double[] out, int off) {
 		int i = Math.min((int)((.5 - phi/Math.PI)*cells.length), cells.length-1);
 		int j = Math.min((int)((lam/Math.PI + 1.)*cells.length), cells[i].length-1);
 		double phi0 = (.5 - (double)(i+1)/cells.length)*Math.PI;
 		double lam0 = ((double)j/cells.length - 1.)*Math.PI;
-		return cells[i][j].map(phi - phi0, lam - lam0);
+		cells[i][j].map(phi - phi0, lam - lam0, out, off);
+	}
+	
+	
+	/**
+	 * Convert a whole batch of spherical coordinates to Cartesian coordinates using the current
+	 * mesh configuration, without allocating anything for each point.
+	 * @param phi - The latitudes of the points to map.
+	 * @param lam - The longitudes of the points to map.
+	 * @param X - The array in which to put the x coordinates.
+	 * @param Y - The array in which to put the y coordinates.
+	 * @param off - The index of the first point to map.
+	 * @param len - The number of points to map.
+	 */
+	public void map(double[] phi, double[] lam, double[] X, double[] Y, int off, int len) {
+		map(phi, lam, X, Y, off, len, false);
+	}
+	
+	
+	/**
+	 * Convert a whole batch of spherical coordinates to Cartesian coordinates using the current
+	 * mesh configuration, without allocating anything for each point.
+	 * @param phi - The latitudes of the points to map.
+	 * @param lam - The longitudes of the points to map.
+	 * @param X - The array in which to put the x coordinates.
+	 * @param Y - The array in which to put the y coordinates.
+	 * @param off - The index of the first point to map.
+	 * @param len - The number of points to map.
+	 * @param parallel - Whether to split big batches up between threads.
+	 */
+	public void map(double[] phi, double[] lam, double[] X, double[] Y, int off, int len, boolean parallel) {
+		if (parallel && len > MAP_CHUNK_SIZE) { // split it into chunks and do each one on its own
+			IntStream.range(0, (len + MAP_CHUNK_SIZE - 1)/MAP_CHUNK_SIZE).parallel().forEach((c) -> {
+				int start = off + c*MAP_CHUNK_SIZE;
+				map(phi, lam, X, Y, start, Math.min(MAP_CHUNK_SIZE, off + len - start), false);
+			});
+			return;
+		}
+		double[] XY = new double[2]; // one array for the whole batch
+		for (int k = off; k < off+len; k ++) {
+			mapInto(phi[k], lam[k], XY, 0);
+			X[k] = XY[0];
+			Y[k] = XY[1];
+		}
 	}
 	
 	
 	/**
 	 * Convert Cartesian coordinates to spherical coordinates using the current mesh configuration.
-	 * Warning: this method is pretty slow. Don't use it too often.
+	 * Warning: this method is pretty slow until the Mesh is finalised, and even then, it's slow
+	 * off the edge of the map. Don't use it too often.
 	 * @param X - The X coordinate of the point to map.
 	 * @param Y - The Y coordinate of the point to map.
 	 * @return an array of two elements: {phi, lam}.
 	 */
 	public double[] inverseMap(double... XY) {
 		double X = XY[0], Y = XY[1];
-		if (insideEdge(X, Y)) { // if it's inside
+		if (elementIndex != null) { // if the Elements are indexed, just look it up
+			Element e = elementIndex.locate(X, Y); // (anything in an Element is inside the edge by definition)
+			if (e != null)
+				return e.mapDeformedToSpherical(X, Y);
+		}
+		else if (insideEdge(X, Y)) { // if it's inside
 			for (Element e: this.getElementsUnmodifiable()) // check each Element once
 				if (e.containsDeformed(X, Y, false))
 					return e.mapDeformedToSpherical(X, Y);
 		} // if it wasn't in any of them, just continue
-		
-		final double d = 1e-4; // an arbitrarily small number, which doesn't actually have to be that small
-		
-		double[][] planeVecs = new double[edge.size()][2]; // if it's not in any of those,
-		double[][] sfereVecs = new double[edge.size()][3]; // turn to linear extrapolation
-		for (int i = 0; i < edge.size(); i ++) {
-			Vertex v = edge.get(i);
-			planeVecs[i] = v.getEdgeDirection(); // define the direction of the edge here
-			assert insideEdge(v.getX()-d*planeVecs[i][0], v.getY()-d*planeVecs[i][1]);
-			double[] inCoords = inverseMap(v.getX()-d*planeVecs[i][0], v.getY()-d*planeVecs[i][1]); // then use that to map a point slightly inside
-			sfereVecs[i][0] = (Math.cos(v.getPhi())*Math.cos(v.getLam()) - Math.cos(inCoords[0])*Math.cos(inCoords[1]))/d;
-			sfereVecs[i][1] = (Math.cos(v.getPhi())*Math.sin(v.getLam()) - Math.cos(inCoords[0])*Math.sin(inCoords[1]))/d; // so that we can map that edge vector to sphere space
-			sfereVecs[i][2] = (Math.sin(v.getPhi())                      - Math.sin(inCoords[0]))/d; // (I could do this analytically, but I really don't want to)
-		}
-		
-		int bestI = -1;
-		double bestW = Double.NaN, bestS = Double.POSITIVE_INFINITY;
-		for (int i = 0; i < edge.size(); i ++) { // now take each edge segment,
-			double X0 = edge.get(i).getX(), Y0 = edge.get(i).getY(); // try to extrapolate the point on it
-			double u0 = planeVecs[i][0], v0 = planeVecs[i][1];
-			double X1 = edge.get((i+1)%edge.size()).getX(), Y1 = edge.get((i+1)%edge.size()).getY();
-			double u1 = planeVecs[(i+1)%planeVecs.length][0], v1 = planeVecs[(i+1)%planeVecs.length][1];
-			double a = (u0-u1)*(Y0-Y1) - (v0-v1)*(X0-X1); // by solving this quadratic
-			double b = (v0-v1)*X - v0*X1 - v1*X0 + 2*v1*X1 - (u0-u1)*Y + u0*Y1 + u1*Y0 - 2*u1*Y1;
-			double c = v1*(X-X1) - u1*(Y-Y1);
-			for (double sign = -1; sign <= 1; sign += 2) {
-				double w = (-b +sign* Math.sqrt(b*b - 4*a*c))/(2*a);
-				double s = (X - w*X0 - (1-w)*X1)/(w*u0 + (1-w)*u1);
-				if (Double.isFinite(w) && w >= 0 && w <= 1) { // if you can,
-					if (Math.abs(s) < Math.abs(bestS)) { // and it's closer to this segment than to the last
-						bestI = i; // save it!
-						bestW = w;
-						bestS = s;
-					}
+		return extrapolate(X, Y);
+	}
+	
+	
+	/**
+	 * Convert a whole batch of Cartesian coordinates to spherical coordinates using the current
+	 * mesh configuration. The points are assumed to come in some kind of order, like a row of
+	 * pixels, so that each one is probably in the same Element as the last one or next door to
+	 * it. Once the Mesh is finalised, that makes this much faster than calling inverseMap for
+	 * each point.
+	 * @param X - The X coordinates of the points to map.
+	 * @param Y - The Y coordinates of the points to map.
+	 * @param phi - The array in which to put the latitudes.
+	 * @param lam - The array in which to put the longitudes.
+	 * @param off - The index of the first point to map.
+	 * @param len - The number of points to map.
+	 */
+	public void inverseMap(double[] X, double[] Y, double[] phi, double[] lam, int off, int len) {
+		int last = -1; // the index of the last Element we found
+		for (int k = off; k < off+len; k ++) {
+			double[] coords;
+			if (elementIndex == null) // if there's no index, we'll have to do this the slow way
+				coords = inverseMap(X[k], Y[k]);
+			else {
+				int found = elementIndex.locate(X[k], Y[k], last); // otherwise start looking from where we were
+				if (found >= 0) {
+					coords = elementIndex.getElement(found).mapDeformedToSpherical(X[k], Y[k]);
+					last = found;
 				}
+				else
+					coords = extrapolate(X[k], Y[k]);
 			}
+			phi[k] = coords[0];
+			lam[k] = coords[1];
 		}
-		
-		if (bestI >= 0) {
-			double[][] vec = {sfereVecs[bestI], sfereVecs[(bestI+1)%sfereVecs.length]}; // use those extrapolation constants
-			Vertex[] vtx = {edge.get(bestI), edge.get((bestI+1)%edge.size())}; // and vertices
-			double[][] org = new double[2][];
-			for (int i = 0; i < 2; i ++)
-				org[i] = new double[] {
-						Math.cos(vtx[i].getPhi())*Math.cos(vtx[i].getLam()),
-						Math.cos(vtx[i].getPhi())*Math.sin(vtx[i].getLam()),
-						Math.sin(vtx[i].getPhi())};
-			double[] coords3d = new double[3]; // to compute its linearly extrapolated space in the 3d space the globe occupies
-			for (int i = 0; i < 3; i ++)
-				coords3d[i] = bestW*(org[0][i] + bestS*vec[0][i]) + (1-bestW)*(org[1][i] + bestS*vec[1][i]);
-			return new double[] { // finally, gnomonically project that to the globe
-					Math.atan2(coords3d[2], Math.hypot(coords3d[0], coords3d[1])),
-					Math.atan2(coords3d[1], coords3d[0])};
-		}
-		else
-			throw new IllegalArgumentException(String.format("Could not extrapolate %f, %f", X, Y)); // null means it could not be extrapolated
+	}
+	
+	
+	/**
+	 * Convert Cartesian coordinates that are off the edge of the Mesh to spherical coordinates by
+	 * linearly extrapolating from the nearest bit of edge.
+	 * @param X - The X coordinate of the point to map.
+	 * @param Y - The Y coordinate of the point to map.
+	 * @return an array of two elements: {phi, lam}.
+	 */
+	private double[] extrapolate(double X, double Y) {
+		if (Double.isNaN(X) || Double.isNaN(Y)) // a NaN isn't anywhere, so don't go looking for it
+			return new double[] {Double.NaN, Double.NaN}; // (this comes up at degenerate edge Vertices)
+		EdgeExtrapolator extrapolator = this.edgeExtrapolator;
+		if (extrapolator == null) // if the edge might still be moving, we have to set this up from scratch every time
+			extrapolator = new EdgeExtrapolator(edge, this::inverseMap);
+		return extrapolator.extrapolate(X, Y);
 	}
 	
 	
@@ -496,23 +638,50 @@ public class Mesh {
 	 * @return { unrotated X centre, unrotated Y centre, rotation from horizontal, width, height }.
 	 */
 	public double[] getBoundingBox(boolean allowRotation) {
+		return getBoundingBox(getEdgeXY(), allowRotation);
+	}
+	
+	
+	/**
+	 * Get the parameters of the smallest rectangle that can fit this Mesh, given the
+	 * angle the rectangle's base must make with the horizontal.
+	 * @param rotation
+	 * @return { rotated center x, rotated center y, width, height }
+	 */
+	public double[] getBoundingBox(double rotation) {
+		return getBoundingBox(getEdgeXY(), rotation);
+	}
+	
+	
+	/**
+	 * Compute the parameters of the smallest rectangle that surrounds an edge, the same way for
+	 * a Mesh as for anything that has saved the positions of its edge.
+	 * @param edgeXY - The x and y of each edge Vertex in order, alternating.
+	 * @param allowRotation - If true, the bounding box may be rotated to fit the edge better.
+	 * @return { unrotated X centre, unrotated Y centre, rotation from horizontal, width, height }.
+	 */
+	static double[] getBoundingBox(double[] edgeXY, boolean allowRotation) {
 		double bestTheta = 0;
 		double[] bestRectangle = null;
 		
 		if (allowRotation) { // if rotation is allowed...
-			LinkedList<Vertex> hull = new LinkedList<Vertex>(); // SIGH then we have to try this with all the different thetas
-			for (Vertex v: getEdge()) { // do a Graham Scan to get the convex hull
-				hull.addFirst(v);
-				while (hull.size() >= 3 && hull.get(1).isLeftOf(hull.get(2), hull.get(0)))
-					hull.remove(1); // it's really easy, since the edge is already an approximation of the hull
+			int[] hull = new int[edgeXY.length/2]; // SIGH then we have to try this with all the different thetas
+			int n = 0; // (the hull is a stack of edge indices, with the newest on top)
+			for (int v = 0; v < edgeXY.length/2; v ++) { // do a Graham Scan to get the convex hull
+				hull[n++] = v;
+				while (n >= 3 && isLeftOf(edgeXY, hull[n-2], hull[n-3], hull[n-1])) {
+					hull[n-2] = hull[n-1];
+					n --; // it's really easy, since the edge is already an approximation of the hull
+				}
 			}
 			
 			double minArea = Double.POSITIVE_INFINITY;
-			for (int i = 0; i < hull.size(); i ++) { // now for each segment of the hull
+			for (int i = n-1; i >= 0; i --) { // now for each segment of the hull, from the top of the stack down
+				int v0 = hull[i], v1 = hull[(i+n-1)%n];
 				double theta = Math.atan2(
-						hull.get(i).getY()-hull.get((i+1)%hull.size()).getY(),
-						hull.get(i).getX()-hull.get((i+1)%hull.size()).getX()); // take the angle
-				double[] rectangle = getBoundingBox(theta); // and fit a rectangle about it
+						edgeXY[2*v0+1] - edgeXY[2*v1+1],
+						edgeXY[2*v0] - edgeXY[2*v1]); // take the angle
+				double[] rectangle = getBoundingBox(edgeXY, theta); // and fit a rectangle about it
 				
 				if (rectangle[2]*rectangle[3] < minArea) { // finally, evaluate it on its area
 					bestTheta = theta;
@@ -522,7 +691,7 @@ public class Mesh {
 			}
 		}
 		else { // if not...
-			bestRectangle = getBoundingBox(0); // we can just call it zero and be done!
+			bestRectangle = getBoundingBox(edgeXY, 0); // we can just call it zero and be done!
 		}
 		
 		double rotatedCX = bestRectangle[0], rotatedCY = bestRectangle[1], // put it in the format we want
@@ -543,16 +712,17 @@ public class Mesh {
 	
 	
 	/**
-	 * Get the parameters of the smallest rectangle that can fit this Mesh, given the
-	 * angle the rectangle's base must make with the horizontal.
-	 * @param rotation
+	 * Get the parameters of the smallest rectangle that can fit an edge, given the angle the
+	 * rectangle's base must make with the horizontal.
+	 * @param edgeXY - The x and y of each edge Vertex in order, alternating.
+	 * @param rotation - The angle of the rectangle's base.
 	 * @return { rotated center x, rotated center y, width, height }
 	 */
-	public double[] getBoundingBox(double rotation) {
+	static double[] getBoundingBox(double[] edgeXY, double rotation) {
 		double aMin = Double.POSITIVE_INFINITY, aMax = Double.NEGATIVE_INFINITY;
 		double bMin = Double.POSITIVE_INFINITY, bMax = Double.NEGATIVE_INFINITY; // and fit a rectangle about it
-		for (Vertex v: edge) {
-			double[] ab = applyTransform(v.getX(), v.getY(), 0, 0, rotation);
+		for (int v = 0; v < edgeXY.length/2; v ++) {
+			double[] ab = applyTransform(edgeXY[2*v], edgeXY[2*v+1], 0, 0, rotation);
 			double a = ab[0], b = ab[1];
 			if (a < aMin)
 				aMin = a;
@@ -567,6 +737,15 @@ public class Mesh {
 	}
 	
 	
+	/**
+	 * Is edge Vertex v1 to the left of the line from v0 to v2, like Vertex.isLeftOf?
+	 */
+	private static boolean isLeftOf(double[] edgeXY, int v1, int v0, int v2) {
+		return (edgeXY[2*v1]-edgeXY[2*v0]) * (edgeXY[2*v2+1]-edgeXY[2*v1+1])
+				- (edgeXY[2*v1+1]-edgeXY[2*v0+1]) * (edgeXY[2*v2]-edgeXY[2*v1]) < 0;
+	}
+	
+	
 	/**
 	 * Save this mesh to an ASCII print stream in the following format:
 	 * <br>
@@ -588,6 +767,8 @@ public class Mesh {
 	 * 	This is followed by o*p rows of comma-separated floats, representing the latitude and longitude at each pixel,
 	 *  or the word "NULL" if this point is not on the map.
 	 * 	(going left to right, then top to bottom).
+	 * <br>
+	 * 	The pixel rows are computed in parallel, so the Mesh must not change while this is running.
 	 * @param out - the print stream to which to print all this information.
 	 */
 	public void save(PrintStream out) {
@@ -595,59 +776,284 @@ public class Mesh {
 		double width = transform[3], height = transform[4];
 		int o = (int)(Math.sqrt(height/width)*2*cells.length);
 		int p = (int)(Math.sqrt(width/height)*2*cells.length);
-		out.printf(Locale.US, "%d,%d,%d,%d,%d,%d,%f,%f\n",
+		
+		Map<Vertex, Integer> indices = indexVertices();
+		
+		PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1<<16));
+		writer.printf(Locale.US, "%d,%d,%d,%d,%d,%d,%f,%f\n",
 				vertices.size(), cells.length, cells[0].length, edge.size(), o, p, width, height); // the header
 		
 		for (int i = 0; i < vertices.size(); i ++) { // the vertex coordinates
 			double[] coords = applyTransform(vertices.get(i).getX(), vertices.get(i).getY(), transform);
-			out.printf(Locale.US, "%f,%f\n", coords[0], coords[1]);
+			writer.printf(Locale.US, "%f,%f\n", coords[0], coords[1]);
 		}
 		
 		for (int i = 0; i < cells.length; i ++) { // the cell corners
 			for (int j = 0; j < cells[i].length; j ++) {
-				Cell cell = cells[i][j]; // this part is surprisingly complicated
-				Element ew = cell.getElement(0), ee = null; // because I have to account for all the different possible Cell types
-				if (cell.getElementsUnmodifiable().size() >= 2)
-					ee = cell.getElement(1);
-				Vertex[] vs;
-				int shape;
-				if (i == 0) { // north pole
-					vs = new Vertex[] {ew.getVertex(0), ew.getVertex(0), ew.getVertex(1), ew.getVertex(2)};
-					shape = 0;
-				}
-				else if (i == cells.length-1) { // south pole
-					vs = new Vertex[] {ew.getVertex(1), ew.getVertex(2), ew.getVertex(0), ew.getVertex(0)};
-					shape = 0;
-				}
-				else if ((i+j)%2 == 0) { // negative slopes
-					vs = new Vertex[] {ee.getVertex(0), ee.getVertex(1), ew.getVertex(2), ew.getVertex(0),
-							ew.getVertex(1), ee.getVertex(2)};
-					shape = -1;
-				}
-				else { // positive slopes
-					vs = new Vertex[] {ee.getVertex(1), ew.getVertex(2), ew.getVertex(0), ew.getVertex(1),
-							ee.getVertex(2), ee.getVertex(0)};
-					shape = +1;
-				}
-				String rowStr = String.format("%d,", shape);
-				for (Vertex v: vs)
-					rowStr += String.format("%d,", vertices.indexOf(v));
-				out.printf(rowStr.substring(0, rowStr.length()-1)+"\n");
+				writer.print(getCellShape(i, j));
+				for (Vertex v: getCellCorners(i, j))
+					writer.print(","+indices.get(v));
+				writer.print("\n");
 			}
 		}
 		
 		for (Vertex v: edge) // the edge
-			out.printf(Locale.US, "%d\n", vertices.indexOf(v));
+			writer.printf(Locale.US, "%d\n", indices.get(v));
+		
+		final int blockSize = 4*Runtime.getRuntime().availableProcessors(); // the pixel table
+		for (int i0 = 0; i0 < o; i0 += blockSize) { // compute it a block of rows at a time, each row on its own core
+			String[] rows = IntStream.range(i0, Math.min(i0 + blockSize, o)).parallel().mapToObj((i) -> {
+				double[] rowPhi = new double[p], rowLam = new double[p];
+				computeTableRow(i, o, p, transform, rowPhi, rowLam);
+				StringBuilder row = new StringBuilder();
+				for (int j = 0; j < p; j ++)
+					row.append(String.format(Locale.US, "%f,%f\n", rowPhi[j], rowLam[j]));
+				return row.toString();
+			}).toArray(String[]::new);
+			for (String row: rows) // then write them in order
+				writer.print(row);
+		}
+		writer.close();
+	}
+	
+	
+	/**
+	 * Build a compiled Projection of this Mesh, which can map points much faster than the Mesh
+	 * itself. It's the same as the one you would get by saving the Mesh and loading the file
+	 * again, minus the rounding, so its coordinates are also rotated and centred like the saved
+	 * ones. The Mesh must be finalised first.
+	 * @return the compiled projection.
+	 */
+	public Projection compile() {
+		if (this.isActive())	throw new IllegalStateException(); // there's no point in compiling something that's still moving
+		return new Projection(toProjectionFile(), eccentricity);
+	}
+	
+	
+	/**
+	 * Put this Mesh's Vertices, Cells, edge, and inverse table into the form in which they are
+	 * saved, rotated and centred. This holds the same numbers that save writes, but all at once
+	 * in memory rather than streamed out a block of rows at a time, so it's for when the whole
+	 * thing is needed, like for compile or for writing the binary format.
+	 * <br>
+	 * 	The inverse table rows are computed in parallel, so the Mesh must not change while this
+	 * 	is running.
+	 * @return the projection file.
+	 */
+	public ProjectionFile toProjectionFile() {
+		double[] transform = getBoundingBox(true); // get the transform so you can apply it before you save
+		double width = transform[3], height = transform[4];
+		int o = (int)(Math.sqrt(height/width)*2*cells.length);
+		int p = (int)(Math.sqrt(width/height)*2*cells.length);
 		
-		for (int i = 0; i < o; i ++) {
+		double[] vertexXY = new double[2*vertices.size()];
+		for (int i = 0; i < vertices.size(); i ++) {
+			double[] coords = applyTransform(vertices.get(i).getX(), vertices.get(i).getY(), transform);
+			vertexXY[2*i] = coords[0];
+			vertexXY[2*i+1] = coords[1];
+		}
+		
+		Map<Vertex, Integer> indices = indexVertices();
+		int[] cellTable = getCellTable(indices);
+		int[] edgeTable = getEdgeTable(indices);
+		
+		double[] table = new double[2*o*p];
+		IntStream.range(0, o).parallel().forEach((i) -> { // the inverse table, each row on its own core
+			double[] rowPhi = new double[p], rowLam = new double[p];
+			computeTableRow(i, o, p, transform, rowPhi, rowLam);
 			for (int j = 0; j < p; j ++) {
-				double Y = height/2 - i*height/(o-1);
-				double X = j*width/(p-1) - width/2;
-				double[] coords = this.inverseMap(inverseTransform(X, Y, transform));
-				out.printf(Locale.US, "%f,%f\n", coords[0], coords[1]);
+				table[2*(i*p + j)] = rowPhi[j];
+				table[2*(i*p + j)+1] = rowLam[j];
+			}
+		});
+		
+		return new ProjectionFile(cells.length, cells[0].length, width, height,
+				vertexXY, cellTable, edgeTable, o, p, table);
+	}
+	
+	
+	/**
+	 * Inverse map one row of the pixel table that save writes.
+	 * @param i - The index of the row.
+	 * @param o - The number of rows in the table.
+	 * @param p - The number of columns in the table.
+	 * @param transform - The bounding box that save puts the map in.
+	 * @param rowPhi - The array in which to put the latitude of each pixel.
+	 * @param rowLam - The array in which to put the longitude of each pixel.
+	 */
+	private void computeTableRow(int i, int o, int p, double[] transform, double[] rowPhi, double[] rowLam) {
+		double width = transform[3], height = transform[4];
+		double[] rowX = new double[p], rowY = new double[p];
+		for (int j = 0; j < p; j ++) { // each row is done all at once so that inverseMap can walk along it
+			double Y = height/2 - i*height/(o-1);
+			double X = j*width/(p-1) - width/2;
+			double[] XY = inverseTransform(X, Y, transform);
+			rowX[j] = XY[0];
+			rowY[j] = XY[1];
+		}
+		this.inverseMap(rowX, rowY, rowPhi, rowLam, 0, p);
+	}
+	
+	
+	/**
+	 * Number the Vertices by their place in the vertex list, which is how save, compile, and the
+	 * snapshots all number them.
+	 * @return a Map from each Vertex to its index.
+	 */
+	Map<Vertex, Integer> indexVertices() {
+		Map<Vertex, Integer> indices = new IdentityHashMap<Vertex, Integer>(); // look up indices in a Map rather than with List.indexOf
+		for (int i = 0; i < vertices.size(); i ++)
+			indices.put(vertices.get(i), i);
+		return indices;
+	}
+	
+	
+	/**
+	 * Build the Cell table the way ProjectionFile lays it out: CELL_SIZE ints per Cell, the
+	 * shape code followed by the indices of the corners, padded with -1.
+	 * @param indices - The index of each Vertex, from indexVertices.
+	 * @return the Cell table.
+	 */
+	int[] getCellTable(Map<Vertex, Integer> indices) {
+		int[] cellTable = new int[ProjectionFile.CELL_SIZE*cells.length*cells[0].length];
+		Arrays.fill(cellTable, -1);
+		for (int i = 0; i < cells.length; i ++) {
+			for (int j = 0; j < cells[i].length; j ++) {
+				int c = ProjectionFile.CELL_SIZE*(i*cells[i].length + j);
+				cellTable[c] = getCellShape(i, j);
+				Vertex[] corners = getCellCorners(i, j);
+				for (int k = 0; k < corners.length; k ++)
+					cellTable[c+1+k] = indices.get(corners[k]);
 			}
 		}
-		out.close();
+		return cellTable;
+	}
+	
+	
+	/**
+	 * Get the indices of the edge Vertices, in order.
+	 * @param indices - The index of each Vertex, from indexVertices.
+	 * @return the edge table.
+	 */
+	int[] getEdgeTable(Map<Vertex, Integer> indices) {
+		int[] edgeTable = new int[edge.size()];
+		for (int i = 0; i < edge.size(); i ++)
+			edgeTable[i] = indices.get(edge.get(i));
+		return edgeTable;
+	}
+	
+	
+	/**
+	 * Get the number of Vertices, including any that have been torn apart.
+	 */
+	int getNumVertices() {
+		return this.vertices.size();
+	}
+	
+	
+	/**
+	 * Get a Vertex by its index, as numbered by indexVertices.
+	 */
+	Vertex getVertex(int i) {
+		return this.vertices.get(i);
+	}
+	
+	
+	/**
+	 * Get the indices of the Vertices of each Element, in the same order as
+	 * getElementsUnmodifiable, so that the whole Mesh can be drawn from flat arrays. This only
+	 * changes when the topology version does.
+	 * @return three indices for each Element, as numbered by indexVertices.
+	 */
+	int[] getElementTable() {
+		Map<Vertex, Integer> indices = indexVertices();
+		List<Integer> table = new ArrayList<Integer>();
+		for (Element elem: getElementsUnmodifiable())
+			for (int k = 0; k < 3; k ++)
+				table.add(indices.get(elem.getVertex(k)));
+		int[] output = new int[table.size()];
+		for (int i = 0; i < output.length; i ++)
+			output[i] = table.get(i);
+		return output;
+	}
+	
+	
+	/**
+	 * Copy the current position of every Vertex into an array, as numbered by indexVertices.
+	 * @param out - The array in which to put the x and y of each Vertex, alternating. If it's
+	 * 		too short for all of them, only the ones that fit are copied.
+	 */
+	void getVertexXY(double[] out) {
+		for (int i = 0; i < Math.min(out.length/2, vertices.size()); i ++) {
+			Vertex v = vertices.get(i);
+			out[2*i] = v.getX();
+			out[2*i+1] = v.getY();
+		}
+	}
+	
+	
+	/**
+	 * Get a number that changes every time the Mesh tears or stitches, so that anyone who
+	 * caches the Cell or edge tables (or anything that depends on where the tears are) knows
+	 * when to rebuild them.
+	 */
+	public int getTopologyVersion() {
+		return this.topologyVersion;
+	}
+	
+	
+	double getEccentricity() {
+		return this.eccentricity;
+	}
+	
+	
+	public int getNumRows() {
+		return this.cells.length;
+	}
+	
+	
+	int getNumCols() {
+		return this.cells[0].length;
+	}
+	
+	
+	/**
+	 * Get the shape code of a Cell as it appears in the save file.
+	 * @param i - The row index of the Cell.
+	 * @param j - The column index of the Cell.
+	 * @return -1 for split into NE and SW, 1 for split into SE and NW, 0 for one Element.
+	 */
+	private int getCellShape(int i, int j) {
+		if (i == 0 || i == cells.length-1) // poles
+			return 0;
+		else if ((i+j)%2 == 0) // negative slopes
+			return -1;
+		else // positive slopes
+			return +1;
+	}
+	
+	
+	/**
+	 * Get the Vertices of a Cell in the order they appear in the save file.
+	 * @param i - The row index of the Cell.
+	 * @param j - The column index of the Cell.
+	 * @return ne,nnw,wnw,sw,sse,ese for -1; ene,nne,nw,wsw,ssw,sw for 1; ne,nw,sw,se for 0.
+	 */
+	private Vertex[] getCellCorners(int i, int j) {
+		Cell cell = cells[i][j]; // this part is surprisingly complicated
+		Element ew = cell.getElement(0), ee = null; // because I have to account for all the different possible Cell types
+		if (cell.getElementsUnmodifiable().size() >= 2)
+			ee = cell.getElement(1);
+		if (i == 0) // north pole
+			return new Vertex[] {ew.getVertex(0), ew.getVertex(0), ew.getVertex(1), ew.getVertex(2)};
+		else if (i == cells.length-1) // south pole
+			return new Vertex[] {ew.getVertex(1), ew.getVertex(2), ew.getVertex(0), ew.getVertex(0)};
+		else if ((i+j)%2 == 0) // negative slopes
+			return new Vertex[] {ee.getVertex(0), ee.getVertex(1), ew.getVertex(2), ew.getVertex(0),
+					ew.getVertex(1), ee.getVertex(2)};
+		else // positive slopes
+			return new Vertex[] {ee.getVertex(1), ew.getVertex(2), ew.getVertex(0), ew.getVertex(1),
+					ee.getVertex(2), ee.getVertex(0)};
 	}
 	
 	
@@ -677,12 +1083,43 @@ public class Mesh {
 	}
 	
 	
+	/**
+	 * Get the x and y of each edge Vertex in the same order as getEdge, alternating.
+	 */
+	private double[] getEdgeXY() {
+		List<Vertex> edge = this.edge; // (in case it tears while we're looking)
+		double[] edgeXY = new double[2*edge.size()];
+		for (int i = 0; i < edge.size(); i ++) {
+			edgeXY[2*i] = edge.get(i).getX();
+			edgeXY[2*i+1] = edge.get(i).getY();
+		}
+		return edgeXY;
+	}
+	
+	
+	/**
+	 * Find where the edge is on the globe, as opposed to on the map. The tears are in here
+	 * twice, once for each side.
+	 * @return the latitude and longitude of each edge Vertex in the same order as getEdge,
+	 * 		alternating.
+	 */
+	public double[] getEdgeCoordinates() {
+		List<Vertex> edge = this.edge; // (in case it tears while we're looking)
+		double[] coords = new double[2*edge.size()];
+		for (int i = 0; i < edge.size(); i ++) {
+			coords[2*i] = edge.get(i).getPhi();
+			coords[2*i+1] = edge.get(i).getLam();
+		}
+		return coords;
+	}
+	
+	
 	public boolean isActive() {
 		return this.active;
 	}
 	
 	
-	private static double[] applyTransform(double X, double Y, double... trans) {
+	static double[] applyTransform(double X, double Y, double... trans) {
 		double cX = trans[0], cY = trans[1], th = trans[2];
 		return new double[] {
 				  (X - cX)*Math.cos(th) + (Y - cY)*Math.sin(th),
@@ -690,7 +1127,7 @@ public class Mesh {
 	}
 	
 	
-	private static double[] inverseTransform(double X, double Y, double... trans) {
+	static double[] inverseTransform(double X, double Y, double... trans) {
 		double cX = trans[0], cY = trans[1], th = trans[2];
 		return new double[] {
 				X*Math.cos(th) - Y*Math.sin(th) + cX,
@@ -848,7 +1285,7 @@ public class Mesh {
 			lam0 = pj*size;
 			System.out.printf("Initializing to azimuthal equidistant with aspect %.2f°N %.2f°E.\n", Math.toDegrees(phi0), Math.toDegrees(lam0));
 			this.tearLength = size * (2 + 2*Math.cos(phi0));
-				
+			
 			Vertex[][] vertexArray = new Vertex[2*res+1][4*res]; // set up the vertex array
 			for (int i = 0; i <= 2*res; i ++) {
 				for (int j = 0; j < 4*res; j ++) {
@@ -0,0 +1,237 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package model;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import danseiji.Projection;
+
+/**
+ * A copy of where everything in a Mesh was at the end of one step of the optimisation, so that
+ * other Threads can look at the Mesh without ever seeing half of a step or getting in the way
+ * of the next one. The Mesh publishes a new one after every step, and anyone can get the
+ * latest one from Mesh.getSnapshot without locking anything. Each snapshot must be closed
+ * when its reader is done with it, since the Mesh reuses their arrays rather than making new
+ * ones every step; a snapshot will never change while it is open.
+ * <br>
+ * 	The topology tables are shared between all of the snapshots made between one tear and the
+ * 	next, and none of the arrays it returns may be modified. So is the compiled Projection of
+ * 	that topology, so each snapshot can map points without compiling anything itself; each
+ * 	snapshot keeps its own copy of it, pointed at its own Vertices, for as long as the
+ * 	topology lasts.
+ * 
+ * @author Justin Kunimune
+ */
+public class MeshSnapshot implements AutoCloseable {
+	
+	private final AtomicInteger references; // the number of open readers, plus one while it's the latest; 0 once it's free to reuse
+	private final AtomicReference<MeshSnapshot> spare; // where to put it once nobody is using it
+	private final double[] vertexXY; // the x and y of each Vertex, alternating
+	private int topologyVersion;
+	private int[] edgeTable, elementTable; // (these are shared with the other snapshots of the same topology)
+	private double[] edgeCoordinates;
+	private final double[] box; // the axis-aligned bounding box of the edge
+	private Projection topology; // the Projection of the Mesh's topology that projection was made from
+	private Projection projection; // the Mesh's topology with this snapshot's Vertices
+	private double energy, tearLength;
+	private boolean active;
+	
+	
+	/**
+	 * Make an empty snapshot.
+	 * @param numVertices - The number of Vertices it must be able to hold.
+	 * @param spare - The place to return it to when all of its readers are done with it.
+	 */
+	MeshSnapshot(int numVertices, AtomicReference<MeshSnapshot> spare) {
+		this.references = new AtomicInteger(0);
+		this.spare = spare;
+		this.vertexXY = new double[2*numVertices];
+		this.box = new double[5];
+	}
+	
+	
+	
+	/**
+	 * Fill in this snapshot, once its Vertex positions have been copied in. Only the Mesh may
+	 * call this, and only while nobody else has it.
+	 * @param topology - A Projection of the Mesh's current topology, with its Vertices anywhere.
+	 */
+	void set(int topologyVersion, Projection topology, int[] edgeTable, int[] elementTable,
+			double[] edgeCoordinates, double energy, double tearLength, boolean active) {
+		this.topologyVersion = topologyVersion;
+		this.edgeTable = edgeTable;
+		this.elementTable = elementTable;
+		this.edgeCoordinates = edgeCoordinates;
+		this.energy = energy;
+		this.tearLength = tearLength;
+		this.active = active;
+		
+		double xMin = Double.POSITIVE_INFINITY, xMax = Double.NEGATIVE_INFINITY;
+		double yMin = Double.POSITIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+		for (int v: edgeTable) { // find the bounding box once, now, rather than every time someone asks
+			xMin = Math.min(xMin, vertexXY[2*v]);
+			xMax = Math.max(xMax, vertexXY[2*v]);
+			yMin = Math.min(yMin, vertexXY[2*v+1]);
+			yMax = Math.max(yMax, vertexXY[2*v+1]);
+		}
+		box[0] = (xMax+xMin)/2;
+		box[1] = (yMax+yMin)/2;
+		box[2] = 0;
+		box[3] = xMax-xMin;
+		box[4] = yMax-yMin;
+		
+		if (topology == this.topology) // if it hasn't torn since this was last used, the old Projection can just move
+			this.projection.verticesMoved(box[3], box[4]);
+		else { // (this doesn't copy anything either)
+			this.projection = topology.withVertices(vertexXY, box[3], box[4]);
+			this.topology = topology;
+		}
+		this.references.set(1); // (the Mesh's own reference, until the next one replaces it)
+	}
+	
+	
+	/**
+	 * Add a reader, unless it has already been let go of.
+	 * @return true if it is now safe to read, false if it may be being reused.
+	 */
+	boolean retain() {
+		while (true) {
+			int n = references.get();
+			if (n == 0)
+				return false;
+			if (references.compareAndSet(n, n+1))
+				return true;
+		}
+	}
+	
+	
+	/**
+	 * Let go of this snapshot. It must not be looked at again after this.
+	 */
+	@Override
+	public void close() {
+		if (references.decrementAndGet() == 0) // if that was the last one, let the Mesh have it back
+			spare.compareAndSet(null, this); // (if there's already a spare, this one is just garbage)
+	}
+	
+	
+	/**
+	 * Get the axis-aligned bounding box of the edge, like Mesh.getBoundingBox(false). Like the
+	 * other arrays, it must not be modified.
+	 * @return { center x, center y, 0, width, height }
+	 */
+	public double[] getBoundingBox() {
+		return this.box;
+	}
+	
+	
+	/**
+	 * Get a Projection that maps points the way the Mesh did in this snapshot, like
+	 * TrajectoryReader.Step.toProjection. It looks straight at this snapshot's Vertices, so it
+	 * must not be used after the snapshot is closed.
+	 * @return the projection.
+	 */
+	public Projection getProjection() {
+		return this.projection;
+	}
+	
+	
+	/**
+	 * Get the x and y of each edge Vertex in order, alternating.
+	 */
+	public double[] getEdgeXY() {
+		double[] edgeXY = new double[2*edgeTable.length];
+		for (int i = 0; i < edgeTable.length; i ++) {
+			edgeXY[2*i] = vertexXY[2*edgeTable[i]];
+			edgeXY[2*i+1] = vertexXY[2*edgeTable[i]+1];
+		}
+		return edgeXY;
+	}
+	
+	
+	/**
+	 * Get the x and y of each Vertex, alternating, as numbered by the tables.
+	 */
+	public double[] getVertexXY() {
+		return this.vertexXY;
+	}
+	
+	
+	public int getNumVertices() {
+		return this.vertexXY.length/2;
+	}
+	
+	
+	/**
+	 * Get the indices of the edge Vertices, in order.
+	 */
+	public int[] getEdgeTable() {
+		return this.edgeTable;
+	}
+	
+	
+	/**
+	 * Get the indices of the three Vertices of each Element, like Mesh.getElementTable.
+	 */
+	public int[] getElementTable() {
+		return this.elementTable;
+	}
+	
+	
+	/**
+	 * Get the latitude and longitude of each edge Vertex, like Mesh.getEdgeCoordinates.
+	 */
+	public double[] getEdgeCoordinates() {
+		return this.edgeCoordinates;
+	}
+	
+	
+	public int getNumRows() {
+		return this.projection.getNumRows();
+	}
+	
+	
+	public int getTopologyVersion() {
+		return this.topologyVersion;
+	}
+	
+	
+	public double getTotEnergy() {
+		return this.energy;
+	}
+	
+	
+	public double getTotalTearLength() {
+		return this.tearLength;
+	}
+	
+	
+	public boolean isActive() {
+		return this.active;
+	}
+}
@@ -0,0 +1,274 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package model;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import danseiji.Projection;
+import danseiji.ProjectionFile;
+
+/**
+ * Reads back the steps written by a TrajectoryRecorder, one at a time and in order.
+ * 
+ * @author Justin Kunimune
+ */
+public class TrajectoryReader implements Closeable {
+	
+	private final DataInputStream in;
+	private final int numRows, numCols;
+	private final double quantum, eccentricity, lambda, mu, maxTear;
+	private int[] cells, edge; // the current topology
+	private Projection topology; // the current topology compiled, once there's a step to compile it with
+	private long[] lastXY; // the quantised position of each Vertex in the last step
+	private int topologyVersion; // the number of topologies read so far
+	private long time;
+	private boolean done;
+	
+	
+	/**
+	 * Open a trajectory file and read its header.
+	 * @param file - The file to read.
+	 * @throws IOException if the file can't be read or isn't a trajectory.
+	 */
+	public TrajectoryReader(File file) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(file), 1<<16), 1<<16));
+		try {
+			if (in.readInt() != TrajectoryRecorder.MAGIC)
+				throw new IOException(file+" is not a Danseiji trajectory file");
+			int version = in.readInt();
+			if (version != TrajectoryRecorder.VERSION)
+				throw new IOException(file+" is version "+version+", but I can only read version "+TrajectoryRecorder.VERSION);
+			this.numRows = in.readInt();
+			this.numCols = in.readInt();
+			this.quantum = in.readDouble();
+			this.eccentricity = in.readDouble();
+			this.lambda = in.readDouble();
+			this.mu = in.readDouble();
+			this.maxTear = in.readDouble();
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		this.cells = null;
+		this.edge = null;
+		this.topology = null;
+		this.lastXY = null;
+		this.topologyVersion = 0;
+		this.time = 0;
+		this.done = false;
+	}
+	
+	
+	
+	/**
+	 * Read the next step.
+	 * @return the step, or null if there are no more.
+	 * @throws IOException if the file can't be read or is formatted incorrectly.
+	 */
+	public Step next() throws IOException {
+		while (!done) {
+			byte type;
+			try {
+				type = in.readByte();
+			} catch (EOFException e) { // if the recorder never got to close it, just stop where it stops
+				type = TrajectoryRecorder.END;
+			}
+			
+			if (type == TrajectoryRecorder.END) {
+				done = true;
+			}
+			else if (type == TrajectoryRecorder.TOPOLOGY) {
+				int numVertices = (int)readVarLong(in);
+				this.cells = new int[ProjectionFile.CELL_SIZE*numRows*numCols];
+				for (int c = 0; c < cells.length; c ++)
+					cells[c] = (int)readVarLong(in) - 1;
+				this.edge = new int[(int)readVarLong(in)];
+				for (int i = 0; i < edge.length; i ++)
+					edge[i] = (int)readVarLong(in);
+				this.lastXY = new long[2*numVertices];
+				this.topology = null;
+				this.topologyVersion ++;
+			}
+			else if (type == TrajectoryRecorder.STEP) {
+				if (lastXY == null)
+					throw new IOException("The trajectory has a step before its first topology");
+				time += readVarLong(in);
+				double energy = in.readDouble();
+				double tearLength = in.readDouble();
+				double[] vertexXY = new double[lastXY.length];
+				for (int k = 0; k < lastXY.length; k ++) {
+					lastXY[k] += unzigzag(readVarLong(in));
+					vertexXY[k] = lastXY[k]*quantum;
+				}
+				if (topology == null) // compile each topology once, and let every Step of it share that
+					this.topology = new Projection(new ProjectionFile(numRows, numCols, 0, 0,
+							vertexXY, cells, edge, 0, 0, new double[0]), eccentricity);
+				return new Step(time, energy, tearLength, vertexXY, cells, edge, topology, topologyVersion);
+			}
+			else {
+				throw new IOException("Unrecognised record type "+type);
+			}
+		}
+		return null;
+	}
+	
+	
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+	
+	
+	public double getLambda() {
+		return this.lambda;
+	}
+	
+	
+	public double getMu() {
+		return this.mu;
+	}
+	
+	
+	public double getMaxTear() {
+		return this.maxTear;
+	}
+	
+	
+	static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+	
+	
+	static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	
+	
+	/**
+	 * The Mesh as it was at one step of the optimisation.
+	 */
+	public class Step {
+		
+		private final long time;
+		private final double energy, tearLength;
+		private final double[] vertexXY;
+		private final int[] cells, edge; // (these are shared between Steps until the topology changes)
+		private final Projection topology; // (and so is this)
+		private final int topologyVersion;
+		
+		private Step(long time, double energy, double tearLength, double[] vertexXY, int[] cells, int[] edge,
+				Projection topology, int topologyVersion) {
+			this.time = time;
+			this.energy = energy;
+			this.tearLength = tearLength;
+			this.vertexXY = vertexXY;
+			this.cells = cells;
+			this.edge = edge;
+			this.topology = topology;
+			this.topologyVersion = topologyVersion;
+		}
+		
+		
+		/**
+		 * Get the bounding box of the edge, the same way as Mesh.getBoundingBox.
+		 * @param allowRotation - If true, the bounding box may be rotated to fit the Mesh better.
+		 * @return { unrotated X centre, unrotated Y centre, rotation from horizontal, width, height }
+		 */
+		public double[] getBoundingBox(boolean allowRotation) {
+			return Mesh.getBoundingBox(getEdgeXY(), allowRotation);
+		}
+		
+		
+		/**
+		 * Get a Projection that maps points the way the Mesh did at this step. It has no
+		 * inverse table, and its coordinates are the Mesh's own rather than centred and rotated
+		 * like a saved projection's. It shares everything but the Vertices with the other Steps
+		 * of the same topology, so it's cheap to make.
+		 * @return the projection.
+		 */
+		public Projection toProjection() {
+			double[] box = getBoundingBox(false);
+			return topology.withVertices(vertexXY, box[3], box[4]);
+		}
+		
+		
+		/**
+		 * Get the x and y of each edge Vertex in order, alternating.
+		 */
+		public double[] getEdgeXY() {
+			double[] edgeXY = new double[2*edge.length];
+			for (int i = 0; i < edge.length; i ++) {
+				edgeXY[2*i] = vertexXY[2*edge[i]];
+				edgeXY[2*i+1] = vertexXY[2*edge[i]+1];
+			}
+			return edgeXY;
+		}
+		
+		
+		/**
+		 * Get the number of milliseconds since the recording started.
+		 */
+		public long getTime() {
+			return this.time;
+		}
+		
+		
+		public double getEnergy() {
+			return this.energy;
+		}
+		
+		
+		public double getTearLength() {
+			return this.tearLength;
+		}
+		
+		
+		/**
+		 * Get a number that is the same for two Steps if and only if the Mesh had the same
+		 * tears in both, like Mesh.getTopologyVersion.
+		 */
+		public int getTopologyVersion() {
+			return this.topologyVersion;
+		}
+	}
+}
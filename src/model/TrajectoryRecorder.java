@@ -0,0 +1,193 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package model;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes down where every Vertex of a Mesh is at each step of the optimisation, so that the
+ * convergence can be rendered later at whatever frame rate and resolution you like, rather
+ * than whenever the Renderer happens to look. Positions are rounded to a fixed quantum and
+ * stored as the change from the last recorded step, which is almost always tiny, so they pack
+ * into a byte or two each; the whole thing is gzipped on top of that. Whenever the Mesh tears
+ * or stitches, the new Cell and edge tables are written before the next step.
+ * <br>
+ * The file is a big-endian header:
+ * 	"DSJT", version, numRows, numCols (ints); quantum, eccentricity, lambda, mu, maxTear
+ * 	(doubles);
+ * then any number of records, each starting with a byte to say what it is:
+ * 	TOPOLOGY: the number of Vertices, the Cell table (each value plus one, since -1 is
+ * 	padding), the edge length and the edge table, all as varints;
+ * 	STEP: the milliseconds since the last step as a varint, the energy and tear length as
+ * 	doubles, and then x and y of every Vertex as zigzag varints of the change in quanta since
+ * 	the last step (or since zero, if it's the first step since a TOPOLOGY record);
+ * 	END: nothing.
+ * 
+ * @author Justin Kunimune
+ */
+public class TrajectoryRecorder implements Closeable {
+	
+	public static final int MAGIC = 0x44534A54; // spells "DSJT"
+	public static final int VERSION = 1;
+	public static final byte END = 0, TOPOLOGY = 1, STEP = 2;
+	
+	private final Mesh mesh;
+	private final double quantum;
+	private final long minInterval;
+	private final DataOutputStream out;
+	private int topologyVersion; // the topology as of the last TOPOLOGY record
+	private long[] lastXY; // the quantised position of each Vertex in the last STEP record
+	private long start, lastTime;
+	private int numSteps;
+	
+	
+	/**
+	 * Start a new trajectory file.
+	 * @param file - The file to write. It will be overwritten if it exists.
+	 * @param mesh - The Mesh to follow.
+	 * @param quantum - The precision to which to record positions, in the Mesh's units.
+	 * @param minInterval - The minimum number of milliseconds between recorded steps. Steps that
+	 * 		come in faster than this are skipped; 0 records every one.
+	 * @param lambda - The Lamé parameter, to remember for the margins.
+	 * @param mu - The shear modulus, to remember for the margins.
+	 * @param maxTear - The tear length, to remember for the margins.
+	 * @throws IOException if the file can't be opened.
+	 */
+	public TrajectoryRecorder(File file, Mesh mesh, double quantum, long minInterval,
+			double lambda, double mu, double maxTear) throws IOException {
+		this.mesh = mesh;
+		this.quantum = quantum;
+		this.minInterval = minInterval;
+		this.out = new DataOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(new FileOutputStream(file), 1<<16), 1<<16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(mesh.getNumRows());
+		out.writeInt(mesh.getNumCols());
+		out.writeDouble(quantum);
+		out.writeDouble(mesh.getEccentricity());
+		out.writeDouble(lambda);
+		out.writeDouble(mu);
+		out.writeDouble(maxTear);
+		this.topologyVersion = -1;
+		this.lastXY = null;
+		this.start = System.currentTimeMillis();
+		this.lastTime = Long.MIN_VALUE;
+		this.numSteps = 0;
+	}
+	
+	
+	
+	/**
+	 * Write down the current state of the Mesh, unless the last one was too recent. This must
+	 * be called from the same Thread that is changing the Mesh.
+	 * @return true if it was recorded, false if it was skipped.
+	 * @throws IOException if there is a problem writing to the file.
+	 */
+	public boolean record() throws IOException {
+		long now = System.currentTimeMillis();
+		if (lastTime != Long.MIN_VALUE && now - lastTime < minInterval)
+			return false;
+		
+		if (mesh.getTopologyVersion() != topologyVersion) { // if it has torn or stitched since the last time
+			Map<Vertex, Integer> indices = mesh.indexVertices(); // write down the new connections
+			out.writeByte(TOPOLOGY);
+			writeVarLong(out, mesh.getNumVertices());
+			for (int c: mesh.getCellTable(indices))
+				writeVarLong(out, c+1);
+			int[] edgeTable = mesh.getEdgeTable(indices);
+			writeVarLong(out, edgeTable.length);
+			for (int v: edgeTable)
+				writeVarLong(out, v);
+			this.topologyVersion = mesh.getTopologyVersion();
+			this.lastXY = new long[2*mesh.getNumVertices()]; // and start the deltas over
+		}
+		
+		out.writeByte(STEP);
+		writeVarLong(out, (lastTime == Long.MIN_VALUE) ? now - start : now - lastTime);
+		out.writeDouble(mesh.getTotEnergy());
+		out.writeDouble(mesh.getTotalTearLength());
+		for (int i = 0; i < lastXY.length/2; i ++) {
+			Vertex v = mesh.getVertex(i);
+			long x = Math.round(v.getX()/quantum), y = Math.round(v.getY()/quantum);
+			writeVarLong(out, zigzag(x - lastXY[2*i]));
+			writeVarLong(out, zigzag(y - lastXY[2*i+1]));
+			lastXY[2*i] = x;
+			lastXY[2*i+1] = y;
+		}
+		this.lastTime = now;
+		this.numSteps ++;
+		return true;
+	}
+	
+	
+	public int getNumSteps() {
+		return this.numSteps;
+	}
+	
+	
+	/**
+	 * Mark the end of the trajectory and close the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			out.writeByte(END);
+		} finally {
+			out.close();
+		}
+	}
+	
+	
+	/**
+	 * Write a non-negative number seven bits at a time, least significant first, with the top
+	 * bit of each byte set if there are more to come.
+	 */
+	static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int)(value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+	
+	
+	/**
+	 * Map signed numbers onto unsigned ones so that small negative numbers stay small:
+	 * 0, -1, 1, -2, 2... become 0, 1, 2, 3, 4...
+	 */
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package utils;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.imageio.ImageIO;
+
+import org.jcodec.api.awt.AWTSequenceEncoder;
+import org.jcodec.common.io.NIOUtils;
+import org.jcodec.common.io.SeekableByteChannel;
+import org.jcodec.common.model.Rational;
+
+/**
+ * A background thread that encodes frames straight into an MP4 as they come in, so that
+ * whoever is drawing them doesn't have to wait for the encoder, and nothing has to be written
+ * to disk and read back. Each frame can also be saved as a PNG
+ * if desired. Only a few frames are ever waiting at once; if the encoder falls that far
+ * behind, addFrame waits for it.
+ * 
+ * @author Justin Kunimune
+ */
+public class FrameRecorder {
+	
+	private static final BufferedImage END = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB); // put this in the queue to stop
+	
+	private final String dir, filename;
+	private final boolean savePngs;
+	private final BlockingQueue<BufferedImage> queue;
+	private final SeekableByteChannel out;
+	private final AWTSequenceEncoder encoder;
+	private final Thread worker;
+	private volatile IOException error; // the first thing that went wrong in the background, if anything
+	private boolean finished;
+	private int numFrames;
+	
+	
+	
+	/**
+	 * Open a movie file and start waiting for frames.
+	 * @param dir - The directory in which to save the movie and any PNGs.
+	 * @param filename - The name of the movie, without the .mp4.
+	 * @param frameRate - The number of frames per second in the movie.
+	 * @param savePngs - Should each frame also be saved as dir/frame####.png?
+	 * @param capacity - The number of frames that can wait to be encoded at once.
+	 * @throws IOException if the movie file can't be opened.
+	 */
+	public FrameRecorder(String dir, String filename, int frameRate, boolean savePngs, int capacity)
+			throws IOException {
+		this.dir = dir;
+		this.filename = filename;
+		this.savePngs = savePngs;
+		this.queue = new ArrayBlockingQueue<BufferedImage>(capacity);
+		this.out = NIOUtils.writableFileChannel(String.format("%s/%s.mp4", dir, filename));
+		this.encoder = new AWTSequenceEncoder(out, Rational.R(frameRate, 1));
+		this.error = null;
+		this.finished = false;
+		this.numFrames = 0;
+		this.worker = new Thread(this::encodeFrames, "Frame recorder");
+		this.worker.setDaemon(true); // (so it doesn't keep the program open if nobody calls finish)
+		this.worker.start();
+	}
+	
+	
+	
+	/**
+	 * Add a frame to the end of the movie. It will be encoded in the background, so it shouldn't
+	 * be drawn on after this. Frames that come in after finish are ignored.
+	 * @param frame - The image to add.
+	 * @throws IOException if something went wrong with a previous frame.
+	 */
+	public synchronized void addFrame(BufferedImage frame) throws IOException {
+		if (finished)
+			return;
+		if (error != null)
+			throw error;
+		try {
+			queue.put(frame); // this only waits if the encoder is really far behind
+			numFrames ++;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to record a frame");
+		}
+	}
+	
+	
+	/**
+	 * Wait for every frame to be encoded, and close the movie file.
+	 * @return the number of frames in the movie.
+	 * @throws IOException if there was a problem encoding or writing any of the frames.
+	 */
+	public synchronized int finish() throws IOException {
+		if (finished)
+			return numFrames;
+		finished = true;
+		try {
+			queue.put(END);
+			worker.join();
+			if (error == null)
+				encoder.finish();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while finishing the movie");
+		} finally {
+			NIOUtils.closeQuietly(out);
+		}
+		if (error != null)
+			throw error;
+		System.out.printf("Successfully compiled frames into %s/%s.mp4\n", dir, filename);
+		return numFrames;
+	}
+	
+	
+	public synchronized int getNumFrames() {
+		return this.numFrames;
+	}
+	
+	
+	/**
+	 * Take frames off of the queue and encode them until it's time to stop.
+	 */
+	private void encodeFrames() {
+		try {
+			for (int i = 0; ; i ++) {
+				BufferedImage frame = queue.take();
+				if (frame == END)
+					return;
+				if (error != null)
+					continue; // if something went wrong, keep emptying the queue so nobody gets stuck
+				try {
+					encoder.encodeImage(frame);
+					if (savePngs)
+						ImageIO.write(frame, "png", new File(String.format("%s/frame%04d.png", dir, i)));
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+		} catch (InterruptedException e) {
+			error = new InterruptedIOException("Interrupted while encoding frames");
+		}
+	}
+}
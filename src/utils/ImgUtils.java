@@ -27,20 +27,17 @@
 package utils;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
-
-import javax.imageio.ImageIO;
+import java.util.stream.IntStream;
 
 import org.apache.commons.imaging.ImageFormats;
 import org.apache.commons.imaging.ImageReadException;
 import org.apache.commons.imaging.ImageWriteException;
 import org.apache.commons.imaging.Imaging;
-import org.jcodec.api.awt.AWTSequenceEncoder;
-import org.jcodec.common.io.NIOUtils;
-import org.jcodec.common.io.SeekableByteChannel;
-import org.jcodec.common.model.Rational;
 
 /**
  * A set of functions for dealing with TIFF input and output
@@ -65,33 +62,62 @@ public class ImgUtils {
 				new File(String.format("data/%s.tif", filename)));
 		if (resolution == 0)
 			resolution = bimg.getHeight()/2;
+		int width = bimg.getWidth(), height = bimg.getHeight();
 		double[][] data = new double[2*resolution][4*resolution];
 		
-		for (int i = 0; i < data.length; i ++) {
-			int ii = bimg.getHeight()*i/data.length;
-			int n = bimg.getHeight()*(i+1)/data.length - ii;
+		double[] values = new double[256]; // there are only 256 shades of blue, so decode each one just once
+		for (int b = 0; b < values.length; b ++) {
+			double val = b/255.;
+			if (logBase > 0 && val > 0) 	val = Math.pow(logBase, val)/logBase;
+			values[b] = (logBase != 0) ? Math.pow(logBase, val)/logBase : val;
+		}
+		
+		int[] pixels = null; // if the pixels are stored as plain RGB ints, read them straight from the raster
+		SinglePixelPackedSampleModel model = null;
+		int bufferOffset = 0;
+		if ((bimg.getType() == BufferedImage.TYPE_INT_RGB || bimg.getType() == BufferedImage.TYPE_INT_ARGB)
+				&& bimg.getRaster().getDataBuffer() instanceof DataBufferInt
+				&& bimg.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+			pixels = ((DataBufferInt)bimg.getRaster().getDataBuffer()).getData();
+			model = (SinglePixelPackedSampleModel)bimg.getSampleModel();
+			bufferOffset = bimg.getRaster().getDataBuffer().getOffset();
+		}
+		final int[] rasterPixels = pixels;
+		final SinglePixelPackedSampleModel rasterModel = model;
+		final int rasterOffset = bufferOffset;
+		
+		IntStream.range(0, data.length).parallel().forEach((i) -> { // each row of output only reads its own rows of input
+			int ii = height*i/data.length;
+			int n = height*(i+1)/data.length - ii;
+			int[] argbs; // the pixels in those rows
+			int offset, stride;
+			if (rasterPixels != null) {
+				argbs = rasterPixels;
+				offset = rasterOffset + rasterModel.getOffset(0, ii);
+				stride = rasterModel.getScanlineStride();
+			}
+			else { // (otherwise let the BufferedImage convert them, but a block at a time)
+				argbs = bimg.getRGB(0, ii, width, n, null, 0, width);
+				offset = 0;
+				stride = width;
+			}
 			for (int j = 0; j < data[i].length; j ++) {
-				int ji = bimg.getWidth()*j/data[i].length;
-				int m = bimg.getWidth()*(j+1)/data[i].length - ji;
-				for (int di = 0; di < n; di ++) {
-					for (int dj = 0; dj < m; dj ++) {
-						int argb = bimg.getRGB(ji+dj, ii+di);
-						double val = (argb&0x0000FF)/255.;
-						if (logBase > 0 && val > 0) 	val = Math.pow(logBase, val)/logBase;
-						data[i][j] += (logBase != 0) ? Math.pow(logBase, val)/logBase : val;
-					}
-				}
+				int ji = width*j/data[i].length;
+				int m = width*(j+1)/data[i].length - ji;
+				for (int di = 0; di < n; di ++)
+					for (int dj = 0; dj < m; dj ++)
+						data[i][j] += values[argbs[offset + di*stride + ji+dj]&0x0000FF];
 				data[i][j] /= n*m;
 			}
-		}
+		});
 		
-		data = normalised(data);
-		for (int i = 0; i < data.length; i ++) { // do a linear interpolation type thing to account for the minval
-			for (int j = 0; j < data[i].length; j ++) {
-				data[i][j] = minVal + (maxVal-minVal)*data[i][j];
+		double[][] normed = normalised(data);
+		for (int i = 0; i < normed.length; i ++) { // do a linear interpolation type thing to account for the minval
+			for (int j = 0; j < normed[i].length; j ++) {
+				normed[i][j] = minVal + (maxVal-minVal)*normed[i][j];
 			}
 		}
-		return data;
+		return normed;
 	}
 	
 	
@@ -119,30 +145,6 @@ public class ImgUtils {
 	}
 	
 	
-	/**
-	 * Compile all frames saved this run into an MP4 and save that to disk
-	 * @throws IOException if there is a problem reading or writing the disk
-	 */
-	public static void compileFrames(String dir, String filename, int numFrames) throws IOException {
-		System.out.println("Compiling frames...");
-		SeekableByteChannel out = null;
-		try {
-			out = NIOUtils.writableFileChannel(String.format("%s/%s.mp4", dir, filename));
-			AWTSequenceEncoder encoder = new AWTSequenceEncoder(out, Rational.R(25, 1));
-			for (int i = 0; i < numFrames; i ++) {
-				System.out.println(i);
-				BufferedImage image = ImageIO.read(
-						new File(String.format("%s/frame%04d.png", dir, i)));
-				encoder.encodeImage(image);
-			}
-			encoder.finish();
-			System.out.printf("Successfully compiled frames into %s/%s.mp4\n", dir, filename);
-		} finally {
-			NIOUtils.closeQuietly(out);
-		}
-	}
-	
-	
 	/**
 	 * Create a uniform array of ones
 	 * @param size - Half the height and a quarter the width
@@ -0,0 +1,383 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package view;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import danseiji.Projection;
+import geo.Densifier;
+import geo.Densifier.Mapping;
+import geo.GeometryCache;
+import geo.TearIndex;
+import model.Mesh;
+import model.MeshSnapshot;
+
+/**
+ * A renderer that draws the same things as Renderer – the geometries, the mask around the
+ * edge, the mesh if desired, and the parameters in the margins – but straight into a
+ * BufferedImage with Java2D, so it doesn't need JavaFX or a display. It doesn't keep any state
+ * between images, so it can be used from any number of threads at once; if the Mesh is still
+ * being optimised, each image shows its latest snapshot, so it never catches it mid-step.
+ * 
+ * @author Justin Kunimune
+ */
+public class ImageRenderer {
+	
+	private static final double MAX_ERROR = .5; // the farthest a simplified geometry can stray, in pixels
+	private static final Font FONT = new Font(Font.SANS_SERIF, Font.PLAIN, 24);
+	
+	private final int size, margin; // the map size and margin width
+	private final Mesh mesh;
+	private final boolean drawMesh;
+	private final List<GeometryCache> layers;
+	private final Color[][] fills; // the colour of each geometry in each layer, or null if it's a line
+	private final String[] leftText;
+	private TearIndex tears; // where the Mesh's tears are on the globe
+	private int tearsVersion; // the topology of the Mesh when tears was made
+	
+	
+	/**
+	 * Set up a renderer for this Mesh.
+	 * @param size - The width and height of the map in pixels.
+	 * @param margin - The width of the margins on either side, where the text goes.
+	 * @param mesh - The mesh to draw. This can be null if only the version of render that takes a
+	 * 		Mapping will be called.
+	 * @param drawMesh - Should the Elements be drawn?
+	 * @param layers - The geometries to draw. Each layer is drawn on top of the last, and
+	 * 		within each layer they go from last to first, like in Renderer.
+	 * @param lambda - The Lamé parameter, to write in the margin.
+	 * @param mu - The shear modulus, to write in the margin.
+	 * @param maxTear - The tear length, to write in the margin.
+	 */
+	public ImageRenderer(int size, int margin, Mesh mesh, boolean drawMesh, List<GeometryCache> layers,
+			double lambda, double mu, double maxTear) {
+		this.size = size;
+		this.margin = margin;
+		this.mesh = mesh;
+		this.drawMesh = drawMesh;
+		this.layers = layers;
+		this.fills = new Color[layers.size()][];
+		for (int i = 0; i < layers.size(); i ++) {
+			fills[i] = new Color[layers.get(i).getNumGeometries()];
+			for (int g = 0; g < fills[i].length; g ++)
+				if (layers.get(i).isPolygon(g))
+					fills[i][g] = randomColor(layers.get(i).getFeatureId(g));
+		}
+		this.leftText = String.format("R = %.3f m\nλ = %.3f Pa\nμ = %.3f Pa\nL* = %.3f m",
+				1., lambda, mu, maxTear).split("\n");
+		this.tears = null;
+		this.tearsVersion = -1;
+	}
+	
+	
+	/**
+	 * Draw the Mesh, fit to the image the way the camera settles once it is done.
+	 * @param includeText - Should the margins be included?
+	 * @return the image.
+	 */
+	public BufferedImage render(boolean includeText) {
+		double[] box;
+		try (MeshSnapshot snapshot = mesh.getSnapshot()) {
+			box = snapshot.isActive() ? snapshot.getBoundingBox() : mesh.getBoundingBox(true); // (once it's done, it can't change under us)
+		}
+		return render(box[0], box[1], box[2], Math.max(box[3], box[4])*1.01, includeText);
+	}
+	
+	
+	/**
+	 * Draw the Mesh from a particular point of view, as of the end of its last step.
+	 * @param viewX - The x coordinate of the centre of the view.
+	 * @param viewY - The y coordinate of the centre of the view.
+	 * @param viewTh - The rotation of the view.
+	 * @param viewW - The width of the map in the mesh's units.
+	 * @param includeText - Should the margins be included?
+	 * @return the image.
+	 */
+	public BufferedImage render(double viewX, double viewY, double viewTh, double viewW, boolean includeText) {
+		try (MeshSnapshot snapshot = mesh.getSnapshot()) {
+			return render(snapshot, viewX, viewY, viewTh, viewW, includeText);
+		}
+	}
+	
+	
+	/**
+	 * Draw a particular snapshot of the Mesh from a particular point of view, such as the one
+	 * that was just drawn on the screen.
+	 * @param snapshot - The snapshot to draw, which must stay open until this returns.
+	 * @param viewX - The x coordinate of the centre of the view.
+	 * @param viewY - The y coordinate of the centre of the view.
+	 * @param viewTh - The rotation of the view.
+	 * @param viewW - The width of the map in the mesh's units.
+	 * @param includeText - Should the margins be included?
+	 * @return the image.
+	 */
+	public BufferedImage render(MeshSnapshot snapshot, double viewX, double viewY, double viewTh, double viewW,
+			boolean includeText) {
+		Projection projection = snapshot.getProjection();
+		return render(projection::mapInto, snapshot.getNumRows(), getTears(snapshot),
+				drawMesh ? snapshot.getElementTable() : null, snapshot.getVertexXY(), snapshot.getEdgeXY(),
+				snapshot.getTotEnergy(), snapshot.getTotalTearLength(), viewX, viewY, viewTh, viewW, includeText);
+	}
+	
+	
+	/**
+	 * Draw a map from a particular point of view, given how it maps points and where its edge
+	 * is, so that it doesn't have to be a live Mesh.
+	 * @param mapping - The function that maps latitude and longitude onto the map.
+	 * @param numRows - The number of rows of Cells in the map, for knowing where it bends.
+	 * @param tears - Where the edge of the map is on the globe, for breaking lines.
+	 * @param elementTable - The indices of the three Vertices of each Element to draw, or null to
+	 * 		draw none.
+	 * @param vertexXY - The x and y of each Vertex, alternating, if there are Elements to draw.
+	 * @param edgeXY - The x and y of each point on the edge, alternating.
+	 * @param energy - The energy, to write in the margin.
+	 * @param tearLength - The current tear length, to write in the margin.
+	 * @param viewX - The x coordinate of the centre of the view.
+	 * @param viewY - The y coordinate of the centre of the view.
+	 * @param viewTh - The rotation of the view.
+	 * @param viewW - The width of the map in the mesh's units.
+	 * @param includeText - Should the margins be included?
+	 * @return the image.
+	 */
+	BufferedImage render(Mapping mapping, int numRows, TearIndex tears, int[] elementTable,
+			double[] vertexXY, double[] edgeXY, double energy, double tearLength,
+			double viewX, double viewY, double viewTh, double viewW, boolean includeText) {
+		BufferedImage image = new BufferedImage(
+				includeText ? size+2*margin : size, size, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, image.getWidth(), image.getHeight());
+		if (!includeText)
+			g.translate(-margin, 0);
+		AffineTransform screen = g.getTransform();
+		
+		double scale = size/viewW; // pixels per unit
+		g.translate(margin+size/2., size/2.); // do the same transform as Renderer.transform
+		g.scale(scale, -scale);
+		g.rotate(-viewTh);
+		g.translate(-viewX, -viewY);
+		
+		double[] XY = new double[2];
+		BasicStroke polygonStroke = new BasicStroke((float)(.1/scale));
+		BasicStroke lineStroke = new BasicStroke((float)(.5/scale));
+		double viewRadius = Math.sqrt(2)/2*viewW*(size+2*margin)/size; // the radius of a circle around everything that could be seen
+		for (int i = 0; i < layers.size(); i ++) { // draw the geometries
+			GeometryCache layer = layers.get(i);
+			int level = layer.chooseLevel(MAX_ERROR/scale); // (the Mesh's units are about one per radian)
+			int coarsest = layer.getNumLevels() - 1;
+			for (int h = layer.getNumGeometries()-1; h >= 0; h --) {
+				if (!isVisible(mapping, layer, coarsest, h, viewX, viewY, viewRadius, XY))
+					continue; // skip anything that's off the screen
+				Path2D path = new Path2D.Double(Path2D.WIND_EVEN_ODD);
+				Color fill = fills[i][h];
+				for (int r = layer.getRingStart(h); r < layer.getRingStart(h+1); r ++)
+					addLine(path, mapping, numRows, MAX_ERROR/scale, (fill != null) ? TearIndex.NONE : tears,
+							layer, level, r, fill != null, XY); // (polygons aren't broken, since the mask covers anything that goes across a tear)
+				if (fill != null) {
+					g.setColor(fill);
+					g.fill(path);
+					g.setColor(Color.BLACK);
+					g.setStroke(polygonStroke);
+				}
+				else {
+					g.setColor(new Color(.2f, .2f, .2f));
+					g.setStroke(lineStroke);
+				}
+				g.draw(path);
+			}
+		}
+		
+		if (elementTable != null) { // display the mesh directly, if desired
+			g.setColor(Color.BLACK);
+			g.setStroke(new BasicStroke((float)(.5/scale)));
+			Path2D triangles = new Path2D.Double();
+			for (int e = 0; e < elementTable.length; e += 3) {
+				int v0 = elementTable[e], v1 = elementTable[e+1], v2 = elementTable[e+2];
+				triangles.moveTo(vertexXY[2*v0], vertexXY[2*v0+1]);
+				triangles.lineTo(vertexXY[2*v1], vertexXY[2*v1+1]);
+				triangles.lineTo(vertexXY[2*v2], vertexXY[2*v2+1]);
+				triangles.closePath();
+			}
+			g.draw(triangles);
+		}
+		
+		Path2D border = new Path2D.Double(); // the background masks stuff outside the map
+		for (int k = 0; k+1 < edgeXY.length; k += 2) {
+			if (k == 0)
+				border.moveTo(edgeXY[k], edgeXY[k+1]);
+			else
+				border.lineTo(edgeXY[k], edgeXY[k+1]);
+		}
+		border.closePath();
+		Path2D mask = new Path2D.Double(Path2D.WIND_EVEN_ODD);
+		mask.append(new Rectangle2D.Double(viewX - 2*viewW, viewY - 2*viewW, 4*viewW, 4*viewW), false); // (big enough to cover the margins at any angle)
+		mask.append(border, false);
+		g.setColor(Color.WHITE);
+		g.fill(mask);
+		g.setColor(Color.BLACK);
+		g.setStroke(new BasicStroke((float)(2./scale)));
+		g.draw(border);
+		
+		g.setTransform(screen); // then write the text in the margins
+		g.setFont(FONT);
+		drawLines(g, leftText, 10);
+		drawLines(g, String.format("U = %.3f J\nL = %.3f m",
+				energy, tearLength).split("\n"), margin+size+10);
+		g.dispose();
+		return image;
+	}
+	
+	
+	/**
+	 * Draw the Mesh, fit to the image, and save it to disk.
+	 * @param filepath - The name of the file to which to save the image
+	 * @param includeText - Should the margins be included?
+	 * @throws IOException if there is a problem writing to disk
+	 */
+	public void saveImage(String filepath, boolean includeText) throws IOException {
+		ImageIO.write(render(includeText), "png", new File(filepath));
+	}
+	
+	
+	/**
+	 * Decide whether any of a geometry might be in view by mapping its simplest level of detail
+	 * and seeing if the box around that comes near the view. The box is padded by twice the
+	 * tolerance, so it shouldn't ever cut anything that would have shown.
+	 * @param mapping - The function with which to map the points.
+	 * @param layer - The layer the geometry is in.
+	 * @param level - The level of detail to map, which should be the simplest.
+	 * @param h - The index of the geometry.
+	 * @param viewX - The x coordinate of the centre of the view.
+	 * @param viewY - The y coordinate of the centre of the view.
+	 * @param viewRadius - The distance from the centre to the farthest visible point.
+	 * @param XY - An array in which to put each point.
+	 * @return false if it is definitely out of view.
+	 */
+	private static boolean isVisible(Mapping mapping, GeometryCache layer, int level, int h,
+			double viewX, double viewY, double viewRadius, double[] XY) {
+		double xMin = Double.POSITIVE_INFINITY, xMax = Double.NEGATIVE_INFINITY;
+		double yMin = Double.POSITIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+		for (int r = layer.getRingStart(h); r < layer.getRingStart(h+1); r ++) {
+			for (int i = layer.getLevelStart(level, r); i < layer.getLevelStart(level, r+1); i ++) {
+				int k = layer.getLevelPoint(level, i);
+				mapping.mapInto(Math.toRadians(layer.getLat(k)), Math.toRadians(layer.getLon(k)), XY, 0);
+				xMin = Math.min(xMin, XY[0]);
+				xMax = Math.max(xMax, XY[0]);
+				yMin = Math.min(yMin, XY[1]);
+				yMax = Math.max(yMax, XY[1]);
+			}
+		}
+		double pad = viewRadius + 2*layer.getTolerance(level);
+		return xMin - pad <= viewX && viewX <= xMax + pad && yMin - pad <= viewY && viewY <= yMax + pad;
+	}
+	
+	
+	/**
+	 * Get the index of the Mesh's tears as of a snapshot, making it again if it has torn or
+	 * stitched since the last time.
+	 */
+	private synchronized TearIndex getTears(MeshSnapshot snapshot) {
+		if (snapshot.getTopologyVersion() != tearsVersion) {
+			tears = new TearIndex(snapshot.getEdgeCoordinates(), snapshot.getProjection().getEccentricity());
+			tearsVersion = snapshot.getTopologyVersion();
+		}
+		return tears;
+	}
+	
+	
+	/**
+	 * Map a ring of points to the mesh and add it to the path, breaking it wherever it
+	 * crosses a tear and filling in points wherever the mesh bends it.
+	 * @param mapping - The function with which to map them.
+	 * @param numRows - The number of rows of Cells in the mesh.
+	 * @param tolerance - The farthest the path can stray from the mapped line.
+	 * @param tears - The tears at which to break it.
+	 * @param layer - The layer the points are in.
+	 * @param level - The level of detail at which to draw it.
+	 * @param r - The index of the ring.
+	 * @param XY - An array in which to put each point.
+	 */
+	private static void addLine(Path2D path, Mapping mapping, int numRows, double tolerance,
+			TearIndex tears, GeometryCache layer, int level, int r, boolean closed, double[] XY) {
+		tears.trace(layer, level, r, new Densifier(mapping, numRows, tolerance, new TearIndex.Pen() {
+			public void moveTo(double phi, double lam) {
+				mapping.mapInto(phi, lam, XY, 0);
+				path.moveTo(XY[0], XY[1]);
+			}
+			
+			public void lineTo(double phi, double lam) {
+				mapping.mapInto(phi, lam, XY, 0);
+				path.lineTo(XY[0], XY[1]);
+			}
+		}));
+		if (closed && layer.getLevelStart(level, r+1) > layer.getLevelStart(level, r))
+			path.closePath();
+	}
+	
+	
+	/**
+	 * Write some lines of text down from the top of the image, like a Text with VPos.TOP.
+	 */
+	private static void drawLines(Graphics2D g, String[] lines, int x) {
+		g.setColor(Color.BLACK);
+		FontMetrics metrics = g.getFontMetrics();
+		for (int i = 0; i < lines.length; i ++)
+			g.drawString(lines[i], x, metrics.getAscent() + i*metrics.getHeight());
+	}
+	
+	
+	/**
+	 * Generates a random colour in a pseudorandom fashion. The Renderer and TileServer use this
+	 * too, so that the window, the images, and the tiles all match.
+	 * @param seed - The same seed will always return the same colour
+	 * @return the colour
+	 */
+	static Color randomColor(String seed) {
+		char s0 = seed.charAt(seed.length()-2), s1 = seed.charAt(seed.length()-1);
+		double r = Math.pow(2, 16)*s0 + s1;
+		double hue = 9000.*Math.tan(Math.pow(r*2.7, 7.2))%1;
+		double sat = Math.sin(r);
+		double brt = Math.sin(r*2.7);
+		return Color.getHSBColor((float)((180+hue*180)/360), (float)(sat/20+.5), (float)(brt/20.+.75));
+	}
+}
@@ -27,7 +27,6 @@
 package view;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOError;
 import java.io.IOException;
@@ -38,13 +37,17 @@ import java.util.TimerTask;
 
 import org.apache.commons.imaging.ImageReadException;
 
+import danseiji.ProjectionFile;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.concurrent.ScheduledService;
 import javafx.concurrent.Task;
 import javafx.stage.Stage;
 import javafx.util.Duration;
+import model.InverseRasterExporter;
 import model.Mesh;
+import model.TrajectoryRecorder;
+import utils.FrameRecorder;
 import utils.ImgUtils;
 
 
@@ -59,12 +62,19 @@ public final class Main extends Application {
 	public static final int MESH_RESOLUTION = 40; // the number of nodes from the equator to the pole
 	public static final double PRECISION = 1e-6; // if the energy changes by less than this in one step, we're done
 	public static final double ECCENTRICITY = 0.081819;
+	public static final int INVERSE_RASTER_WIDTH = 0; // width of the big binary inverse table to export, or 0 to skip it
+	public static final boolean SAVE_BINARY = false; // save the projection in the binary format, too
 	public static final int VIEW_SIZE = 800; // size of the viewing window
 	public static final int MARGIN_SIZE = 160;
 	public static final double MAX_FRAME_RATE = .2; // don't render more frames than this per second
 	public static final double DECAY_TIME = 500; // the number of seconds that it smoothes
 	public static final boolean DRAW_MESH = false;
-	public static final boolean SAVE_IMAGES = true; // save renderings as images for later processing
+	public static final boolean SAVE_IMAGES = true; // save renderings as a movie
+	public static final boolean SAVE_FRAME_PNGS = false; // save each frame as a PNG, too
+	public static final int FRAME_QUEUE_SIZE = 16; // the number of frames that can wait to be encoded
+	public static final boolean RECORD_TRAJECTORY = false; // save every step so TrajectoryRenderer can make a movie later
+	public static final double TRAJECTORY_QUANTUM = 1e-5; // the precision of the recorded vertex positions
+	public static final long TRAJECTORY_INTERVAL = 0; // the minimum milliseconds between recorded steps
 	public static final String[] GEO_DATA_SOURCES = {
 			"ne_110m_admin_0_countries", "ne_110m_graticules_15"};
 //			"ne_110m_ocean", "ne_110m_graticules_15"};
@@ -73,6 +83,8 @@ public final class Main extends Application {
 	private final String description;
 	private final Mesh mesh;
 	private final Renderer renderer;
+	private final FrameRecorder frameRecorder;
+	private final TrajectoryRecorder trajectoryRecorder;
 	private Task<Void> modelWorker;
 	private ScheduledService<Void> viewWorker;
 	
@@ -119,9 +131,14 @@ public final class Main extends Application {
 		mesh = new Mesh( // create the mesh and renderer
 				MESH_RESOLUTION, INITIAL_CONDITION, LAMBDA, MU, PRECISION, TEAR_LENGTH,
 				WEIGHT_ARRAY, SCALE_ARRAY, ECCENTRICITY);
+		frameRecorder = SAVE_IMAGES ? new FrameRecorder(
+				"frames", "convergence "+numeral, 25, SAVE_FRAME_PNGS, FRAME_QUEUE_SIZE) : null;
+		trajectoryRecorder = RECORD_TRAJECTORY ? new TrajectoryRecorder(
+				new File(String.format("output/danseiji%s%d.traj", numeral, MESH_RESOLUTION)), mesh,
+				TRAJECTORY_QUANTUM, TRAJECTORY_INTERVAL, LAMBDA, MU, TEAR_LENGTH) : null;
 		renderer = new Renderer(
 				VIEW_SIZE, MARGIN_SIZE, mesh, DECAY_TIME,
-				INITIAL_CONDITION.startsWith("az") ? 2*Math.PI : 4*Math.sqrt(2), DRAW_MESH, SAVE_IMAGES, GEO_DATA_SOURCES,
+				INITIAL_CONDITION.startsWith("az") ? 2*Math.PI : 4*Math.sqrt(2), DRAW_MESH, frameRecorder, GEO_DATA_SOURCES,
 				LAMBDA, MU, TEAR_LENGTH);
 	}
 	
@@ -137,11 +154,20 @@ public final class Main extends Application {
 			protected Void call() throws Exception {
 				System.out.println("Starting mesh optimisation...");
 				start = System.currentTimeMillis();
-				while (!isCancelled()){
-					if (!mesh.update()) // make as good a map as you can
-						if (!mesh.rupture()) // or tear if you're done updating
-							if (!mesh.stitch()) // or start untearing if you're done tearing
-								break; // or quit if you're done with that, too
+				try {
+					if (trajectoryRecorder != null)
+						trajectoryRecorder.record(); // remember where it started
+					while (!isCancelled()){
+						if (!mesh.update()) // make as good a map as you can
+							if (!mesh.rupture()) // or tear if you're done updating
+								if (!mesh.stitch()) // or start untearing if you're done tearing
+									break; // or quit if you're done with that, too
+						if (trajectoryRecorder != null)
+							trajectoryRecorder.record(); // and every step after that
+					}
+				} finally {
+					if (trajectoryRecorder != null)
+						trajectoryRecorder.close();
 				}
 				mesh.finalise(); // and now it's done
 				return null;
@@ -193,9 +219,23 @@ public final class Main extends Application {
 				new Thread(() -> {
 					try {
 						System.out.println("Saving mesh...");
-						mesh.save(new PrintStream(new File(String.format("output/danseiji%s%d.csv", numeral, MESH_RESOLUTION)))); // save the mesh!
+						File csv = new File(String.format("output/danseiji%s%d.csv", numeral, MESH_RESOLUTION));
+						if (SAVE_BINARY) { // if you want it in both formats, work it out once and write it twice
+							ProjectionFile projection = mesh.toProjectionFile();
+							projection.writeCsv(csv); // save the mesh!
+							projection.writeBinary(new File(String.format("output/danseiji%s%d.bin", numeral, MESH_RESOLUTION)));
+						}
+						else
+							mesh.save(new PrintStream(csv)); // otherwise, stream it straight to disk
 						System.out.println("Saved mesh!"); // save it, please.
-					} catch (FileNotFoundException e1) {
+						if (INVERSE_RASTER_WIDTH > 0) {
+							double[] box = mesh.getBoundingBox(true); // and the big inverse table, if anyone wants it
+							int height = (int)Math.round(INVERSE_RASTER_WIDTH*box[4]/box[3]);
+							new InverseRasterExporter(mesh).export(new File(String.format("output/danseiji%s%d.inv", numeral, MESH_RESOLUTION)),
+									INVERSE_RASTER_WIDTH, height);
+							System.out.println("Saved inverse table!");
+						}
+					} catch (IOException e1) {
 						e1.printStackTrace();
 					}
 				}).start();
@@ -211,12 +251,15 @@ public final class Main extends Application {
 								e.printStackTrace();
 							}
 							if (SAVE_IMAGES) {
-								try { // and to make those frames into a movie if we have them
-									ImgUtils.compileFrames("frames", "convergence "+numeral, renderer.getNumFrames());
-								} catch (IOException e) {
-									System.err.println("Could not compile frames for some reason.");
-									e.printStackTrace();
-								}
+								new Thread(() -> {
+									try { // and to finish the movie if we have one
+										renderer.finishFrames();
+										frameRecorder.finish();
+									} catch (IOException | InterruptedException e) {
+										System.err.println("Could not compile frames for some reason.");
+										e.printStackTrace();
+									}
+								}).start();
 							}
 						});
 					}
@@ -28,51 +28,44 @@ package view;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
 
-import org.geotools.data.DataStore;
-import org.geotools.data.DataStoreFinder;
-import org.geotools.data.simple.SimpleFeatureCollection;
-import org.geotools.data.simple.SimpleFeatureIterator;
-import org.geotools.geometry.jts.Geometries;
-import org.locationtech.jts.geom.Coordinate;
-import org.locationtech.jts.geom.Geometry;
-import org.opengis.feature.simple.SimpleFeature;
-import org.opengis.filter.Filter;
-
+import danseiji.Projection;
+import geo.Densifier;
+import geo.GeometryCache;
+import geo.TearIndex;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.geometry.Rectangle2D;
 import javafx.geometry.VPos;
 import javafx.scene.Group;
 import javafx.scene.Scene;
 import javafx.scene.SnapshotParameters;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.image.Image;
 import javafx.scene.paint.Color;
 import javafx.scene.shape.ClosePath;
+import javafx.scene.shape.FillRule;
 import javafx.scene.shape.LineTo;
 import javafx.scene.shape.MoveTo;
 import javafx.scene.shape.Path;
 import javafx.scene.shape.PathElement;
-import javafx.scene.shape.Polygon;
-import javafx.scene.shape.Rectangle;
-import javafx.scene.shape.Shape;
 import javafx.scene.text.Font;
 import javafx.scene.text.Text;
-import model.Element;
 import model.Mesh;
-import model.Vertex;
+import model.MeshSnapshot;
+import utils.FrameRecorder;
 
 /**
  * A class devoted to making the mesh visible and pretty.
@@ -81,33 +74,62 @@ import model.Vertex;
  */
 public class Renderer {
 	
-	private static final double MAX_SEGMENT_LENGTH = 20;
+	private static final double MAX_ERROR = .5; // the farthest a simplified geometry can stray, in pixels
+	private static final int FRAME_QUEUE_SIZE = 4; // the number of frames that can wait to be drawn
 	
 	private final Group entities;
-	private final Rectangle background;
-	private final Group mask;
+	private final Path mask; // the background with a hole in it for the map
+	private final List<PathElement> maskEdge; // the part of the mask that traces the edge
 	private final Text leftText, rightText;
-	private final Map<Element, Polygon> meshShapes;
-	private final Map<Geometry, Path> geoShapes;
+	private final Canvas meshCanvas; // where the Elements are drawn, or null if they aren't
+	private int meshTopology; // the topology of the Mesh when the arrays below were made
+	private int[] meshEdges; // the indices of the two Vertices at the ends of each side of each Element
+	private double[] meshXY; // where every Vertex is on the screen (reused every frame)
+	private final List<GeometryCache> geoData; // the geometries of each layer
+	private final int[] geoLevels; // the level of detail of each layer that is in the arrays below
+	private int geoTopology; // the topology of the Mesh when the arrays below were broken at its tears
+	private double geoTolerance; // how far the lines in the arrays below could stray when they were filled in
+	private final Canvas geoCanvas; // where the geometries are all drawn, in one pass
+	private final Color[] geoFills; // the fill of each geometry, or null if it's a line
+	private final int[] geoStart; // the index of the first point of each geometry in the arrays below, plus one at the end
+	private final boolean[] geoOpen; // whether each geometry is an open line that should be broken at tears
+	private boolean[] geoMoves; // whether each point starts a new component
+	private double[] geoPhi, geoLam; // the latitude and longitude of every point
+	private double[] geoX, geoY; // where every point is on the screen (reused every frame)
+	private final ImageRenderer imageRenderer; // for drawing the movie frames off of the FX thread
 	
 	private final int size, margin; // the window size and margin width
 	private final double decayTime; // in seconds
-	private final boolean saveImages; // save frames to disk?
+	private final FrameRecorder frameRecorder; // where to send frames, or null if we're not saving them
+	private final ThreadPoolExecutor frameDrawer; // the thread that draws the frames, in order, or null if we're not saving them
 	
 	private double viewX, viewY, viewTh, viewW; // the dimensions of the viewbox
+	private double viewCos, viewSin, viewScale; // the rotation and scale that go with them
 	private Mesh mesh;
 	private long lastRender;
-	private int frameNum = 0;
 	
 	
 	public Renderer(int size, int margin, Mesh mesh, double decayTime, double initViewSize,
-			boolean drawMesh, boolean saveImages, String[] shpFiles,
+			boolean drawMesh, FrameRecorder frameRecorder, String[] shpFiles,
 			double lambda, double mu, double maxTear) {
 		this.mesh = mesh;
 		this.size = size;
 		this.margin = margin;
 		this.decayTime = decayTime;
-		this.saveImages = saveImages;
+		this.frameRecorder = frameRecorder;
+		if (frameRecorder != null)
+			this.frameDrawer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(FRAME_QUEUE_SIZE), (runnable) -> {
+						Thread thread = new Thread(runnable, "frame drawer");
+						thread.setDaemon(true);
+						return thread;
+					}, (task, executor) -> {
+						if (executor.isShutdown()) // once the frames are finished, there's nowhere for it to go
+							throw new RejectedExecutionException("The movie is already finished");
+						task.run(); // if it falls that far behind, slow down the viewer rather than pile up snapshots
+					});
+		else
+			this.frameDrawer = null;
 		
 		this.viewX = 0;
 		this.viewY = 0;
@@ -116,28 +138,53 @@ public class Renderer {
 		
 		this.entities = new Group();// make sure to go from bottom to top here
 		
-		List<Geometry> geoData = tryLoadShapefile(shpFiles);
-		this.geoShapes = createGeoShapes(geoData);
-		this.entities.getChildren().addAll(geoShapes.values());
+		this.geoData = tryLoadShapefile(shpFiles);
+		int numGeometries = 0;
+		for (GeometryCache layer: geoData)
+			numGeometries += layer.getNumGeometries();
+		this.geoLevels = new int[geoData.size()];
+		Arrays.fill(geoLevels, -1); // (the points get loaded on the first render, once we know the scale)
+		this.geoTopology = -1;
+		this.geoTolerance = Double.NaN;
+		this.geoFills = new Color[numGeometries];
+		this.geoStart = new int[numGeometries+1];
+		this.geoOpen = new boolean[numGeometries];
+		int g = 0;
+		for (GeometryCache layer: geoData) {
+			for (int h = layer.getNumGeometries()-1; h >= 0; h --) { // (backwards, because Antarctica starts with A, so this puts it on the bottom)
+				geoOpen[g] = !layer.isPolygon(h);
+				geoFills[g] = layer.isPolygon(h) ? toFX(ImageRenderer.randomColor(layer.getFeatureId(h))) : null; // (the same colours as the images and tiles)
+				g ++;
+			}
+		}
+		this.geoCanvas = new Canvas(size+2*margin, size);
+		this.entities.getChildren().add(geoCanvas);
+		this.imageRenderer = new ImageRenderer(size, margin, mesh, drawMesh, geoData, lambda, mu, maxTear);
 		
-		this.background = new Rectangle(size+2*margin, size, Color.WHITE);
-		this.mask = new Group();
+		this.mask = new Path(new MoveTo(0, 0), new LineTo(size+2*margin, 0),
+				new LineTo(size+2*margin, size), new LineTo(0, size), new ClosePath()); // the background masks stuff outside the map
+		this.mask.setFillRule(FillRule.EVEN_ODD); // wherever the edge goes inside it
+		this.mask.setFill(Color.WHITE);
+		this.mask.setStroke(Color.BLACK);
+		this.mask.setStrokeWidth(2.);
+		this.maskEdge = new ArrayList<PathElement>();
 		this.entities.getChildren().add(mask);
-		
+
 //		Rectangle left = new Rectangle(0, 0, margin, size);
 //		left.setFill(Color.BLACK);
 //		Rectangle right = new Rectangle(margin+size, 0, margin, size);
 //		right.setFill(Color.BLACK);
 //		this.entities.getChildren().addAll(left, right);
 		
-		if (drawMesh) {
-			this.meshShapes = createMeshShapes(mesh.getElementsUnmodifiable());
-			this.entities.getChildren().addAll(meshShapes.values());
+		if (drawMesh) { // the Elements all go on one Canvas, since there are far too many for a node each
+			this.meshCanvas = new Canvas(size+2*margin, size);
+			this.entities.getChildren().add(meshCanvas);
 		}
 		else {
-			this.meshShapes = Collections.emptyMap();
+			this.meshCanvas = null;
 		}
-
+		this.meshTopology = -1;
+		
 		this.leftText = new Text(10, 0, "");
 		this.leftText.setTextOrigin(VPos.TOP);
 		this.leftText.setFont(Font.font(24));
@@ -154,103 +201,112 @@ public class Renderer {
 	
 	
 	/**
-	 * Attempt to load the shapefile located at the filename and return the DataStore therein.
-	 * @param pathname - The full pathname of the shapefile. Pretty self-explanatory.
-	 * @return the DataStore of the shapefile or an empty DataStore if you couldn't load it.
+	 * Attempt to load the shapefiles with these names from the data directory.
+	 * @param filenames - The names of the shapefiles, without the directory or the .shp.
+	 * @return the geometries of each shapefile that could be loaded, in order.
 	 */
-	private static List<Geometry> tryLoadShapefile(String[] filenames) {
-		List<Geometry> output = new LinkedList<Geometry>();
-		for (int i = filenames.length-1; i >= 0; i --) { // for each shapefile to read (reversed because of the end of this method)
-			String filename = filenames[i];
-			DataStore dataStore;
-			String[] typeNames;
+	private static List<GeometryCache> tryLoadShapefile(String[] filenames) {
+		List<GeometryCache> output = new ArrayList<GeometryCache>();
+		for (String filename: filenames) { // for each shapefile to read
+			File file = new File("data", filename+".shp");
 			try {
-				Map<String, Object> params = Collections.singletonMap(
-						"url", new File("data\\"+filename+".shp").toURI().toURL());
-				dataStore = DataStoreFinder.getDataStore(params);
-				typeNames = dataStore.getTypeNames();
+				output.add(GeometryCache.load(file));
 			} catch (IOException e) {
-				System.err.println("Could not read from data\\"+filename+".shp: "+e.getMessage());
-				continue;
-			}
-			
-			for (String typeName: typeNames) { // for each type of feature in it
-				try {
-					SimpleFeatureCollection features =
-							dataStore.getFeatureSource(typeName).getFeatures(Filter.INCLUDE);
-					try (SimpleFeatureIterator iterator = features.features()) { // iterate over all the features
-						while (iterator.hasNext()) {
-							SimpleFeature f = iterator.next();
-							Geometry topGeom = (Geometry)f.getDefaultGeometry();
-							for (int j = 0; j < topGeom.getNumGeometries(); j ++) { // for ecah entiti in that entity
-								topGeom.getGeometryN(j).setUserData(f.getID()); // (why is this iteration not built in)
-								output.add(topGeom.getGeometryN(j));
-							}
-						}
-					}
-				} catch (IOException e) {
-					System.err.println("Could not read "+typeNames+"' from data\\"+filename+".shp: "+e.getMessage());
-					continue;
-				} catch (RuntimeException e) {
-					System.err.println("Could not read "+typeNames+"' from data\\"+filename+".shp: "+e.getMessage());
-				}
+				System.err.println("Could not read from "+file+": "+e.getMessage());
 			}
 		}
-		Collections.reverse(output); // do this just because Antarctica starts with A, so this puts it on the bottom
 		return output;
 	}
 	
 	
-	private static Map<Geometry, Path> createGeoShapes(Collection<Geometry> geometries) {
-		Map<Geometry, Path> shapes = new LinkedHashMap<Geometry, Path>();
-		for (Geometry geom: geometries) {
-			double[] points = new double[2*geom.getNumPoints()];
-			for (int i = 0; i < points.length; i ++)
-				points[i] = 0;
-			
-			Path pgon = new Path();
-			pgon.getElements().add(new MoveTo(0, 0));
-			Coordinate lastMove = null;
-			for (int i = 1; i < geom.getNumPoints(); i ++) {
-				if (lastMove != null && geom.getCoordinates()[i-1].equals3D(lastMove))
-					pgon.getElements().add(new MoveTo(0, 0));
-				else
-					pgon.getElements().add(new LineTo(0, 0));
-				if (pgon.getElements().get(i-1) instanceof MoveTo)
-					lastMove = geom.getCoordinates()[i-1];
+	/**
+	 * Pull the coordinates of every geometry out of the caches at these levels of detail, so we
+	 * don't have to every frame, breaking the open ones wherever they cross a tear and filling
+	 * in points wherever the Mesh bends them, and marking where each component starts. They
+	 * are mapped and drawn by render.
+	 * @param levels - The level of detail for each layer.
+	 * @param mapping - Where the Mesh is, as of the latest snapshot.
+	 * @param numRows - The number of rows of Cells in the Mesh.
+	 * @param topology - The Mesh's topology version, to remember.
+	 * @param tears - The Mesh's tears as of that version.
+	 * @param tolerance - The farthest the lines can stray from where the Mesh puts them.
+	 */
+	private void loadGeometries(int[] levels, Densifier.Mapping mapping, int numRows,
+			int topology, TearIndex tears, double tolerance) {
+		int numPoints = 0;
+		for (int i = 0; i < geoData.size(); i ++)
+			numPoints += geoData.get(i).getLevelStart(levels[i], geoData.get(i).getNumRings());
+		this.geoMoves = new boolean[numPoints]; // (this is only a guess, since the tears and bends add points)
+		this.geoPhi = new double[numPoints];
+		this.geoLam = new double[numPoints];
+		int[] k = {0};
+		TearIndex.Pen points = new TearIndex.Pen() {
+			public void moveTo(double phi, double lam) {
+				addGeoPoint(k[0]++, phi, lam, true);
 			}
 			
-			if (Geometries.get(geom) == Geometries.POLYGON) { // formatting depends on whether its a polygon
-				pgon.getElements().add(new ClosePath());
-				pgon.setStroke(Color.BLACK);
-				pgon.setStrokeWidth(.1);
-				pgon.setFill(randomColor((String)geom.getUserData()));
+			public void lineTo(double phi, double lam) {
+				addGeoPoint(k[0]++, phi, lam, false);
 			}
-			else if (Geometries.get(geom) == Geometries.LINESTRING) { // or polyline
-				pgon.setStroke(Color.gray(.2));
-				pgon.setStrokeWidth(.5);
-				pgon.setFill(null);
+		};
+		TearIndex.Pen pen = new Densifier(mapping, numRows, tolerance, points); // (the Mesh is probably still moving, but it's a start)
+		int g = 0;
+		for (int i = 0; i < geoData.size(); i ++) {
+			GeometryCache layer = geoData.get(i);
+			for (int h = layer.getNumGeometries()-1; h >= 0; h --) { // (in the same order as the constructor)
+				geoStart[g] = k[0];
+				for (int r = layer.getRingStart(h); r < layer.getRingStart(h+1); r ++)
+					(geoOpen[g] ? tears : TearIndex.NONE).trace(layer, levels[i], r, pen); // (the mask covers polygons)
+				g ++;
 			}
-			else {
-				System.err.println("I have not accounted for "+Geometries.get(geom)+"s");
-			}
-			
-			shapes.put(geom, pgon);
 		}
-		return shapes;
+		geoStart[g] = k[0];
+		this.geoMoves = Arrays.copyOf(geoMoves, k[0]);
+		this.geoPhi = Arrays.copyOf(geoPhi, k[0]);
+		this.geoLam = Arrays.copyOf(geoLam, k[0]);
+		this.geoX = new double[k[0]];
+		this.geoY = new double[k[0]];
+		System.arraycopy(levels, 0, geoLevels, 0, levels.length);
+		this.geoTopology = topology;
+		this.geoTolerance = tolerance;
 	}
 	
 	
-	private static Map<Element, Polygon> createMeshShapes(Iterable<Element> elements) {
-		Map<Element, Polygon> shapes = new HashMap<Element, Polygon>();
-		for (Element elem: elements) {
-			Polygon pgon = new Polygon(0,0, 0,0, 0,0);
-			pgon.setFill(null);
-			pgon.setStroke(Color.BLACK);
-			pgon.setStrokeWidth(0.5);
-			shapes.put(elem, pgon);
+	/**
+	 * Put a point in the geometry arrays, making them bigger if it doesn't fit.
+	 */
+	private void addGeoPoint(int k, double phi, double lam, boolean move) {
+		if (k >= geoPhi.length) {
+			int length = Math.max(2*geoPhi.length, 16);
+			geoMoves = Arrays.copyOf(geoMoves, length);
+			geoPhi = Arrays.copyOf(geoPhi, length);
+			geoLam = Arrays.copyOf(geoLam, length);
 		}
-		return shapes;
+		geoMoves[k] = move;
+		geoPhi[k] = phi;
+		geoLam[k] = lam;
+	}
+	
+	
+	/**
+	 * Find every side of every Element, counting the ones that two Elements share only once.
+	 * @param elementTable - The three Vertex indices of each Element.
+	 * @return the two Vertex indices of each side, one after the other.
+	 */
+	private static int[] findMeshEdges(int[] elementTable) {
+		Set<Long> seen = new HashSet<Long>();
+		int[] edges = new int[elementTable.length*2];
+		int n = 0;
+		for (int e = 0; e < elementTable.length; e += 3) {
+			for (int k = 0; k < 3; k ++) {
+				int a = elementTable[e + k], b = elementTable[e + (k+1)%3];
+				if (seen.add(((long)Math.min(a, b) << 32) | Math.max(a, b))) {
+					edges[n ++] = a;
+					edges[n ++] = b;
+				}
+			}
+		}
+		return Arrays.copyOf(edges, n);
 	}
 	
 	
@@ -269,83 +325,128 @@ public class Renderer {
 	 * Draw the current thing to canvas
 	 */
 	public void render() {
+		MeshSnapshot snapshot = mesh.getSnapshot(); // look at one step's worth of the Mesh, whatever it's doing now
+		try {
+			render(snapshot);
+		} catch (RuntimeException e) {
+			snapshot.close();
+			throw e;
+		}
+		
+		if (frameRecorder != null && entities.getScene() != null) // (wait for the scene if it doesn't exist yet)
+			saveFrame(snapshot); // it gets closed once the frame is drawn
+		else
+			snapshot.close();
+	}
+	
+	
+	/**
+	 * Draw a snapshot of the Mesh to canvas.
+	 * @param snapshot - The snapshot to draw, which must stay open until this returns.
+	 */
+	private void render(MeshSnapshot snapshot) {
 		long now = System.currentTimeMillis();
 		double c1 = 1 - Math.exp((lastRender-now)/(decayTime*1000)); // compute the time scaling coefficient
-		double[] meshBox = mesh.getBoundingBox(!mesh.isActive());
-
+		double[] meshBox = snapshot.isActive() ? snapshot.getBoundingBox() : mesh.getBoundingBox(true); // (once it's done, it holds still for the rotated box)
+		
 		this.viewX = (1-c1)*viewX + c1*meshBox[0]; // figure out the current camera coordinates
 		this.viewY = (1-c1)*viewY + c1*meshBox[1];
 		this.viewTh = (1-c1)*viewTh + c1*meshBox[2];
 		this.viewW = (1-c1)*viewW + c1*Math.max(meshBox[3], meshBox[4])*1.01;
 		
-		for (Geometry geom: geoShapes.keySet()) {
-			Path shape = geoShapes.get(geom);
-			List<double[]> cartCoords = Arrays.stream(geom.getCoordinates())
-					.map(this::mapToMesh).collect(Collectors.toList()); // map all of the geometries to the mesh
-			
-			for (int i = 0; i < cartCoords.size(); i ++) {
-				if (shape.getElements().get(i) instanceof MoveTo) {
-					((MoveTo)shape.getElements().get(i)).setX(cartCoords.get(i)[0]);
-					((MoveTo)shape.getElements().get(i)).setY(cartCoords.get(i)[1]);
-				}
-				else if (shape.getElements().get(i) instanceof LineTo) {
-					((LineTo)shape.getElements().get(i)).setX(cartCoords.get(i)[0]);
-					((LineTo)shape.getElements().get(i)).setY(cartCoords.get(i)[1]);
-				}
+		this.viewCos = Math.cos(viewTh);
+		this.viewSin = Math.sin(viewTh);
+		this.viewScale = size/viewW;
+		int[] levels = new int[geoData.size()]; // pick the simplest geometries that will look right at this zoom
+		for (int i = 0; i < levels.length; i ++)
+			levels[i] = geoData.get(i).chooseLevel(MAX_ERROR/viewScale); // (the Mesh's units are about one per radian)
+		Projection projection = snapshot.getProjection();
+		int topology = snapshot.getTopologyVersion();
+		if (geoPhi == null || !Arrays.equals(levels, geoLevels) || topology != geoTopology
+				|| MAX_ERROR/viewScale < geoTolerance/2) // (which only changes every so often)
+			loadGeometries(levels, projection::mapInto, projection.getNumRows(), topology,
+					new TearIndex(snapshot.getEdgeCoordinates(), projection.getEccentricity()), MAX_ERROR/viewScale);
+		
+		projection.map(geoPhi, geoLam, geoX, geoY, 0, geoX.length); // map all of the geometries to the mesh at once
+		double[] XY = new double[2];
+		for (int k = 0; k < geoX.length; k ++) { // and then to the screen
+			transform(geoX[k], geoY[k], XY, 0);
+			geoX[k] = XY[0];
+			geoY[k] = XY[1];
+		}
+		
+		GraphicsContext geoGC = geoCanvas.getGraphicsContext2D(); // then draw them all on the one Canvas
+		geoGC.clearRect(0, 0, geoCanvas.getWidth(), geoCanvas.getHeight());
+		for (int g = 0; g < geoFills.length; g ++) {
+			geoGC.beginPath();
+			for (int k = geoStart[g]; k < geoStart[g+1]; k ++) {
+				if (geoMoves[k])
+					geoGC.moveTo(geoX[k], geoY[k]);
+				else
+					geoGC.lineTo(geoX[k], geoY[k]);
 			}
-			
-			if (shape.getElements().get(shape.getElements().size()-1) instanceof LineTo) { // and if it is an open Path
-				for (int i = 1; i < cartCoords.size(); i ++) {
-					PathElement ele0 = shape.getElements().get(i-1), ele1 = shape.getElements().get(i);
-					double x0 = (ele0 instanceof LineTo) ? ((LineTo)ele0).getX() : ((MoveTo)ele0).getX();
-					double y0 = (ele0 instanceof LineTo) ? ((LineTo)ele0).getY() : ((MoveTo)ele0).getY();
-					double x1 = (ele1 instanceof LineTo) ? ((LineTo)ele1).getX() : ((MoveTo)ele1).getX();
-					double y1 = (ele1 instanceof LineTo) ? ((LineTo)ele1).getY() : ((MoveTo)ele1).getY();
-					if (ele1 instanceof LineTo &&
-							Math.hypot(x1 - x0, y1 - y0) > MAX_SEGMENT_LENGTH) {
-						shape.getElements().set(i, new MoveTo(x1, y1)); // cut any components that are too long
-					}
-				}
+			if (geoFills[g] != null) { // formatting depends on whether its a polygon
+				geoGC.closePath();
+				geoGC.setFill(geoFills[g]);
+				geoGC.fill();
+				geoGC.setStroke(Color.BLACK);
+				geoGC.setLineWidth(.1);
 			}
+			else { // or polyline
+				geoGC.setStroke(Color.gray(.2));
+				geoGC.setLineWidth(.5);
+			}
+			geoGC.stroke();
 		}
 		
-		for (Element elem: meshShapes.keySet()) { // display the mesh directly, if desired
-			Polygon shape = meshShapes.get(elem);
-			for (int i = 0; i < 3; i ++) {
-				double[] coords = transform(elem.getVertex(i).getX(), elem.getVertex(i).getY());
-				shape.getPoints().set(2*i+0, coords[0]);
-				shape.getPoints().set(2*i+1, coords[1]);
+		if (meshCanvas != null) { // display the mesh directly, if desired
+			if (topology != meshTopology) { // (the sides only change when it tears)
+				this.meshEdges = findMeshEdges(snapshot.getElementTable());
+				this.meshXY = new double[2*snapshot.getNumVertices()];
+				this.meshTopology = topology;
+			}
+			System.arraycopy(snapshot.getVertexXY(), 0, meshXY, 0, meshXY.length); // (the snapshot's arrays are read-only)
+			for (int k = 0; k < meshXY.length; k += 2) // put every Vertex on the screen once
+				transform(meshXY[k], meshXY[k+1], meshXY, k);
+			GraphicsContext gc = meshCanvas.getGraphicsContext2D(); // and draw every side in one stroke
+			gc.clearRect(0, 0, meshCanvas.getWidth(), meshCanvas.getHeight());
+			gc.setStroke(Color.BLACK);
+			gc.setLineWidth(.5);
+			gc.beginPath();
+			for (int k = 0; k < meshEdges.length; k += 2) {
+				gc.moveTo(meshXY[2*meshEdges[k]], meshXY[2*meshEdges[k]+1]);
+				gc.lineTo(meshXY[2*meshEdges[k+1]], meshXY[2*meshEdges[k+1]+1]);
 			}
+			gc.stroke();
 		}
 		
-		Polygon border = new Polygon();
-		for (Vertex v: mesh.getEdge()) { // plot the edge
-			double[] xy = transform(v.getX(), v.getY());
-			border.getPoints().addAll(xy[0], xy[1]);
+		int n = 0;
+		double[] vertexXY = snapshot.getVertexXY();
+		for (int v: snapshot.getEdgeTable()) { // plot the edge
+			if (n >= maskEdge.size()) // (the edge only grows when it tears, so this rarely happens)
+				maskEdge.add((n == 0) ? new MoveTo() : new LineTo());
+			transform(vertexXY[2*v], vertexXY[2*v+1], XY, 0);
+			if (n == 0) {
+				((MoveTo)maskEdge.get(n)).setX(XY[0]);
+				((MoveTo)maskEdge.get(n)).setY(XY[1]);
+			}
+			else {
+				((LineTo)maskEdge.get(n)).setX(XY[0]);
+				((LineTo)maskEdge.get(n)).setY(XY[1]);
+			}
+			n ++;
+		}
+		if (mask.getElements().size() != 5 + n + 1) { // if the edge changed length, swap in the new elements
+			while (maskEdge.size() > n) // (it can get shorter when it's stitched back up)
+				maskEdge.remove(maskEdge.size()-1);
+			mask.getElements().remove(5, mask.getElements().size());
+			mask.getElements().addAll(maskEdge);
+			mask.getElements().add(new ClosePath());
 		}
-		
-		Shape maskedRect = Path.subtract(background, border); // the background masks stuff outside the map
-		maskedRect.setFill(Color.WHITE);
-		maskedRect.setStroke(Color.BLACK);
-		maskedRect.setStrokeWidth(2.);
-		this.mask.getChildren().setAll(maskedRect);
 		
 		this.rightText.setText(String.format("U = %.3f J\nL = %.3f m",
-				mesh.getTotEnergy(), mesh.getTotalTearLength()));
+				snapshot.getTotEnergy(), snapshot.getTotalTearLength()));
 		this.lastRender = now;
-		
-		if (saveImages) {
-			try {
-				try {
-					saveFrame();
-				} catch (FileNotFoundException e) { // how
-					System.err.println("Could not save frame: "+e.getMessage()); // can
-				} // it
-			} catch (IOException e) { // possibly
-				System.err.println("Could not save frame: "+e.getMessage()); // be throwing
-				e.printStackTrace(); // a FileNotFoundException
-			} // how does it abort
-		} // without saving an exception
 	}
 	
 	
@@ -368,58 +469,71 @@ public class Renderer {
 	
 	
 	/**
-	 * Save an image of the thing at this instant in time and add it to the frame collection
-	 * @throws IOException if there is a problem writing to disk
+	 * Draw the snapshot that was just put on the screen again, from the same point of view,
+	 * and add it to the movie. It's drawn and encoded in the background, so this returns right
+	 * away unless the frames have fallen far behind. Once finishFrames has been called, the
+	 * frame is dropped.
+	 * @param snapshot - The snapshot to draw, which will be closed once it's drawn or dropped.
 	 */
-	public void saveFrame() throws IOException {
-		if (entities.getScene() == null)
-			return; // wait for the scene if it doesn't exist yet
-		saveImage(String.format("frames/frame%04d.png", frameNum), true);
-		frameNum ++;
+	private void saveFrame(MeshSnapshot snapshot) {
+		double viewX = this.viewX, viewY = this.viewY, viewTh = this.viewTh, viewW = this.viewW; // (these will have moved on by the time it's drawn)
+		try {
+			frameDrawer.execute(() -> {
+				try {
+					frameRecorder.addFrame(imageRenderer.render(snapshot, viewX, viewY, viewTh, viewW, true));
+				} catch (IOException e) {
+					System.err.println("Could not save frame: "+e.getMessage());
+					e.printStackTrace();
+				} finally {
+					snapshot.close();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			snapshot.close(); // if it's too late for this frame, let the Mesh have the snapshot back
+		}
 	}
 	
 	
-	public double[] mapToMesh(Coordinate coords) {
-		double[] cartesian = this.mesh.map(
-				Math.toRadians(coords.y),
-				Math.toRadians(coords.x));
-		return transform(cartesian[0], cartesian[1]);
+	/**
+	 * Wait for the frames that are still being drawn to go to the FrameRecorder. Any frames
+	 * rendered after this are not saved.
+	 * @throws InterruptedException if it's interrupted while waiting.
+	 */
+	public void finishFrames() throws InterruptedException {
+		if (frameDrawer != null) {
+			frameDrawer.shutdown();
+			frameDrawer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
 	}
 	
 	
 	/**
-	 * Convert math coordinates to screen coordinates, going through the mesh's linear transform
-	 * @param mathX - The x-coordinate where right is positive and order unity is 1
-	 * @param mathY - The y-coordinate where up is positive and order unity is 1
-	 * @return double[2] { screenX, screenY };
+	 * Convert Mesh coordinates to screen coordinates from the current point of view.
+	 * @param x - The x-coordinate on the Mesh
+	 * @param y - The y-coordinate on the Mesh
+	 * @param out - The array in which to put the screen x and y
+	 * @param k - The index in out of the screen x, which is followed by the screen y
 	 */
-	public double[] transform(double mathX, double mathY) {
-		return new double[] {
-				margin+size/2. + size/viewW*( (mathX-viewX)*Math.cos(viewTh) + (mathY-viewY)*Math.sin(viewTh)),
-				       size/2. - size/viewW*(-(mathX-viewX)*Math.sin(viewTh) + (mathY-viewY)*Math.cos(viewTh)) };
+	private void transform(double x, double y, double[] out, int k) {
+		double dx = x - viewX, dy = y - viewY;
+		out[k]   = margin+size/2. + viewScale*( dx*viewCos + dy*viewSin);
+		out[k+1] =        size/2. - viewScale*(-dx*viewSin + dy*viewCos);
 	}
 	
 	
 	/**
-	 * How many frames have we saved?
-	 * @return the number of frames
+	 * Get a renderer that draws the same things without JavaFX, which can be used from any thread.
+	 * @return the image renderer
 	 */
-	public int getNumFrames() {
-		return this.frameNum;
+	public ImageRenderer getImageRenderer() {
+		return this.imageRenderer;
 	}
 	
 	
 	/**
-	 * Generates a random colour in a pseudorandom fashion.
-	 * @param seed - The same seed will always return the same colour
-	 * @return
+	 * Convert an AWT colour to a JavaFX one.
 	 */
-	private static Color randomColor(String seed) {
-		char s0 = seed.charAt(seed.length()-2), s1 = seed.charAt(seed.length()-1);
-		double r = Math.pow(2, 16)*s0 + s1;
-		double hue = 9000.*Math.tan(Math.pow(r*2.7, 7.2))%1;
-		double sat = Math.sin(r);
-		double brt = Math.sin(r*2.7);
-		return Color.hsb(180+hue*180, sat/20+.5, brt/20.+.75);
+	private static Color toFX(java.awt.Color color) {
+		return Color.rgb(color.getRed(), color.getGreen(), color.getBlue());
 	}
 }
@@ -0,0 +1,600 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package view;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import danseiji.Projection;
+import danseiji.ProjectionFile;
+import geo.Densifier;
+import geo.GeometryCache;
+import geo.RasterWarper;
+import geo.TearIndex;
+
+/**
+ * A little HTTP server that draws tiles of a finished Danseiji projection on demand, so that
+ * web viewers can pan and zoom around it without anything having to be rendered in advance.
+ * Tiles are at /z/x/y.png, where zoom level z splits the square around the map into 2^z by
+ * 2^z tiles of 256 pixels each. It only listens on localhost.
+ * <br>
+ * 	Tiles are drawn on a fixed number of threads, and any tile that is already being drawn
+ * 	is not drawn again; requests for it just wait for the same result. Finished tiles go in a
+ * 	small LRU cache in memory and a bigger one on disk, which deletes the least recently used
+ * 	tiles once it gets too full. If too many tiles are waiting to be drawn, new requests are
+ * 	turned away with a 503 rather than piling up.
+ * <br>
+ * 	Each tile draws the simplest level of detail of each geometry that is still within half a
+ * 	pixel, so that zoomed-out tiles don't have to rasterise every point of every coastline.
+ * 	A geometry is only projected at a level once some tile asks for it, with points filled in
+ * 	wherever the projection bends it as much as the most zoomed-in tile that uses that level
+ * 	needs (or, for the full detail, as much as the tile that asked needs). The projected
+ * 	shapes go in another LRU cache, which is limited by the total number of points in it.
+ * 
+ * @author Justin Kunimune
+ */
+public class TileServer {
+	
+	public static final int TILE_SIZE = 256; // the width and height of each tile in pixels
+	public static final int MAX_ZOOM = 16;
+	private static final int MEMORY_CACHE_SIZE = 1024; // the number of tiles to keep in memory
+	private static final long DISK_CACHE_SIZE = 1L<<30; // the number of bytes of tiles to keep on disk
+	private static final int QUEUE_SIZE = 256; // the number of tiles that can wait to be drawn at once
+	private static final long SHAPE_CACHE_SIZE = 1L<<22; // the number of projected points to keep in memory
+	private static final double MAX_ERROR = .5; // the farthest a simplified geometry can stray, in pixels
+	private static final Pattern TILE_PATH = Pattern.compile("/(\\d{1,2})/(\\d{1,6})/(\\d{1,6})\\.png");
+	
+	private final Projection projection;
+	private final double mapSize; // the width and height of the square that zoom level 0 covers
+	private final Path2D edge; // the outline of the map
+	private final Path2D mask; // everything outside the outline of the map
+	private final TearIndex tears; // where to break the lines
+	private final List<GeometryCache> sources; // the layer each geometry came from
+	private final List<Integer> indices; // the index of each geometry in its layer
+	private final List<Rectangle2D> bounds; // the bounding box of the points of each geometry, in map coordinates, or null if none of it maps
+	private final List<Double> stretches; // the most that the map spreads out each geometry's points, in map units per radian
+	private final List<Color> fills; // the colour of each shape, or null if it is a line
+	private final RasterWarper warper; // for the raster background
+	private final int[] raster; // the ARGB values of the equirectangular background, or null if there isn't one
+	private final int rasterWidth, rasterHeight;
+	
+	private final File cacheDir;
+	private final ThreadPoolExecutor pool;
+	private final Map<String, byte[]> memoryCache; // the tiles in memory, in order of access
+	private final Map<Long, Shape> shapeCache; // the projected geometries, by geometry and zoom level, in order of access
+	private final Map<Long, Integer> shapeSizes; // the number of points in each projected geometry
+	private long shapeCachePoints; // the total number of points in the projected geometries
+	private final Map<File, Long> diskCache; // the size of each tile on disk, in order of access
+	private final Map<String, CompletableFuture<byte[]>> inFlight; // the tiles that are being drawn right now
+	private long diskCacheBytes; // the total size of the tiles on disk
+	private HttpServer server;
+	
+	
+	
+	/**
+	 * Set up a tile server for a projection. It won't do anything until start is called.
+	 * @param file - The projection to draw.
+	 * @param raster - An equirectangular image to draw underneath everything, or null.
+	 * @param layers - The geometries to draw, each layer on top of the last.
+	 * @param cacheDir - The directory in which to cache tiles. Anything in it already is assumed
+	 * 		to have come from the same projection and data.
+	 * @param numThreads - The number of tiles to draw at once.
+	 */
+	public TileServer(ProjectionFile file, BufferedImage raster, List<GeometryCache> layers,
+			File cacheDir, int numThreads) {
+		this.projection = new Projection(file, Projection.DEFAULT_ECCENTRICITY);
+		this.mapSize = Math.max(file.getWidth(), file.getHeight());
+		
+		this.edge = new Path2D.Double();
+		for (int i = 0; i < file.getEdgeLength(); i ++) {
+			double x = file.getVertexX(file.getEdgeVertex(i)), y = file.getVertexY(file.getEdgeVertex(i));
+			if (i == 0)	edge.moveTo(x, y);
+			else 		edge.lineTo(x, y);
+		}
+		edge.closePath();
+		this.mask = new Path2D.Double(Path2D.WIND_EVEN_ODD); // a big square with the map cut out of it
+		mask.append(new Rectangle2D.Double(-mapSize, -mapSize, 2*mapSize, 2*mapSize), false);
+		mask.append(edge, false);
+		
+		this.tears = new TearIndex(projection.getEdgeCoordinates(), projection.getEccentricity()); // (only lines get broken at tears; the mask covers polygons)
+		this.sources = new ArrayList<GeometryCache>();
+		this.indices = new ArrayList<Integer>();
+		this.bounds = new ArrayList<Rectangle2D>();
+		this.stretches = new ArrayList<Double>();
+		this.fills = new ArrayList<Color>();
+		double[] XY = new double[2];
+		for (GeometryCache layer: layers) { // find where everything goes, but don't draw any of it yet
+			for (int g = 0; g < layer.getNumGeometries(); g ++) {
+				double xMin = Double.POSITIVE_INFINITY, xMax = Double.NEGATIVE_INFINITY;
+				double yMin = Double.POSITIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+				double stretch = 0;
+				for (int r = layer.getRingStart(g); r < layer.getRingStart(g+1); r ++) {
+					double phi0 = Double.NaN, lam0 = Double.NaN, x0 = Double.NaN, y0 = Double.NaN; // the last point that mapped
+					for (int k = layer.getPointStart(r); k < layer.getPointStart(r+1); k ++) {
+						double phi = Math.toRadians(layer.getLat(k)), lam = Math.toRadians(layer.getLon(k));
+						projection.mapInto(phi, lam, XY, 0);
+						if (Double.isNaN(XY[0]) || Double.isNaN(XY[1]))
+							continue;
+						xMin = Math.min(xMin, XY[0]);
+						xMax = Math.max(xMax, XY[0]);
+						yMin = Math.min(yMin, XY[1]);
+						yMax = Math.max(yMax, XY[1]);
+						double angle = Math.hypot(phi - phi0, (lam - lam0)*Math.cos((phi + phi0)/2));
+						if (angle > 0 && Double.isNaN(tears.nextCrossing(phi0, lam0, phi, lam, 0))) // (the gap across a tear isn't a stretch)
+							stretch = Math.max(stretch, Math.hypot(XY[0] - x0, XY[1] - y0)/angle);
+						phi0 = phi;
+						lam0 = lam;
+						x0 = XY[0];
+						y0 = XY[1];
+					}
+				}
+				fills.add(layer.isPolygon(g) ? ImageRenderer.randomColor(layer.getFeatureId(g)) : null);
+				sources.add(layer);
+				indices.add(g);
+				if (xMin <= xMax)
+					bounds.add(new Rectangle2D.Double(xMin, yMin, xMax - xMin, yMax - yMin));
+				else
+					bounds.add(null); // (if none of it maps, it's never on any tile)
+				stretches.add(stretch);
+			}
+		}
+		
+		this.warper = new RasterWarper(projection, 1);
+		if (raster != null) {
+			this.rasterWidth = raster.getWidth();
+			this.rasterHeight = raster.getHeight();
+			this.raster = raster.getRGB(0, 0, rasterWidth, rasterHeight, null, 0, rasterWidth);
+		}
+		else {
+			this.rasterWidth = 0;
+			this.rasterHeight = 0;
+			this.raster = null;
+		}
+		
+		this.cacheDir = cacheDir;
+		this.pool = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_SIZE));
+		this.memoryCache = new LinkedHashMap<String, byte[]>(16, .75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+				return size() > MEMORY_CACHE_SIZE;
+			}
+		};
+		this.shapeCache = new LinkedHashMap<Long, Shape>(16, .75f, true);
+		this.shapeSizes = new HashMap<Long, Integer>();
+		this.shapeCachePoints = 0;
+		this.diskCache = new LinkedHashMap<File, Long>(16, .75f, true);
+		this.inFlight = new ConcurrentHashMap<String, CompletableFuture<byte[]>>();
+		this.diskCacheBytes = 0;
+		
+		List<File> cached = new ArrayList<File>(); // find any tiles left over from last time
+		findTiles(cacheDir, cached);
+		Collections.sort(cached, Comparator.comparingLong(File::lastModified)); // the oldest ones are the first to go
+		for (File tile: cached) {
+			diskCache.put(tile, tile.length());
+			diskCacheBytes += tile.length();
+		}
+	}
+	
+	
+	
+	/**
+	 * Start listening for requests.
+	 * @param port - The port on localhost on which to listen.
+	 * @throws IOException if the port can't be bound.
+	 */
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/", this::handle);
+		server.start(); // (the handler doesn't block, so it doesn't need any more threads than the default)
+	}
+	
+	
+	/**
+	 * Stop listening for requests and stop drawing tiles.
+	 */
+	public void stop() {
+		if (server != null)
+			server.stop(0);
+		pool.shutdownNow();
+	}
+	
+	
+	/**
+	 * Get the PNG of this tile, drawing it only if it isn't cached and nobody else is already
+	 * drawing it.
+	 * @param z - The zoom level.
+	 * @param x - The column index, from the left.
+	 * @param y - The row index, from the top.
+	 * @return a future that will have the PNG in it.
+	 */
+	public CompletableFuture<byte[]> getTile(int z, int x, int y) {
+		String key = z+"/"+x+"/"+y;
+		byte[] cached;
+		synchronized (memoryCache) {
+			cached = memoryCache.get(key);
+		}
+		if (cached != null)
+			return CompletableFuture.completedFuture(cached);
+		
+		CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+		CompletableFuture<byte[]> existing = inFlight.putIfAbsent(key, future);
+		if (existing != null) // if someone else is already on it, wait for them
+			return existing;
+		try {
+			pool.execute(() -> {
+				try {
+					byte[] png = readFromDisk(key);
+					if (png == null) {
+						png = drawTile(z, x, y);
+						writeToDisk(key, png);
+					}
+					synchronized (memoryCache) {
+						memoryCache.put(key, png);
+					}
+					future.complete(png);
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				} finally {
+					inFlight.remove(key, future); // (after it's in the memory cache, so nobody draws it twice)
+				}
+			});
+		} catch (RejectedExecutionException e) { // if the queue is full, give up on it right away
+			inFlight.remove(key, future);
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	
+	
+	/**
+	 * Draw a tile and encode it as a PNG.
+	 */
+	private byte[] drawTile(int z, int x, int y) throws IOException {
+		double tileSize = mapSize/(1 << z), pixelSize = tileSize/TILE_SIZE;
+		double xMin = -mapSize/2 + x*tileSize, yMax = mapSize/2 - y*tileSize;
+		Rectangle2D tile = new Rectangle2D.Double(xMin, yMax - tileSize, tileSize, tileSize);
+		
+		BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+		if (raster != null)
+			warper.warpInto(raster, rasterWidth, rasterHeight, RasterWarper.Sampling.BILINEAR,
+					xMin, yMax, pixelSize, image);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		if (raster == null) {
+			g.setColor(Color.WHITE);
+			g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+		}
+		g.transform(new AffineTransform(1/pixelSize, 0, 0, -1/pixelSize, -xMin/pixelSize, yMax/pixelSize)); // draw in map coordinates
+		
+		BasicStroke thin = new BasicStroke((float)(.5*pixelSize)), medium = new BasicStroke((float)pixelSize);
+		for (int i = 0; i < sources.size(); i ++) {
+			Rectangle2D box = bounds.get(i);
+			GeometryCache layer = sources.get(i);
+			double margin = 2*getError(z) + layer.getTolerance(layer.chooseLevel(getError(z)))*stretches.get(i); // (bending, stroke width, and simplification on the map)
+			if (box == null || !tile.intersects(box.getX() - margin, box.getY() - margin,
+					box.getWidth() + 2*margin, box.getHeight() + 2*margin))
+				continue; // skip anything that isn't on this tile
+			Shape shape = getShape(i, z);
+			if (fills.get(i) != null) {
+				g.setColor(fills.get(i));
+				g.fill(shape);
+				g.setColor(Color.BLACK);
+				g.setStroke(thin);
+			}
+			else {
+				g.setColor(Color.DARK_GRAY);
+				g.setStroke(medium);
+			}
+			g.draw(shape);
+		}
+		
+		g.setColor(Color.WHITE); // then cover up everything outside the map
+		g.fill(mask);
+		g.setColor(Color.BLACK);
+		g.setStroke(new BasicStroke((float)(2*pixelSize)));
+		g.draw(edge);
+		g.dispose();
+		
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", png);
+		return png.toByteArray();
+	}
+	
+	
+	/**
+	 * Get a geometry projected at the level of detail that tiles at some zoom level use, from
+	 * the cache if it's there.
+	 * @param i - The index of the geometry, counting all of the layers together.
+	 * @param z - The zoom level of the tile that wants it.
+	 */
+	private Shape getShape(int i, int z) {
+		GeometryCache layer = sources.get(i);
+		int level = layer.chooseLevel(getError(z)); // (the map's units are about one per radian)
+		int zoom = z;
+		if (level > 0) // each level can be shared by every zoom level that uses it,
+			while (zoom < MAX_ZOOM && layer.chooseLevel(getError(zoom+1)) == level)
+				zoom ++; // as long as it's bent as much as the most zoomed-in one needs
+		Long key = (long)i*(MAX_ZOOM+1) + zoom; // (but the full detail goes all the way down, so that one is drawn separately for each)
+		synchronized (shapeCache) {
+			Shape shape = shapeCache.get(key);
+			if (shape != null)
+				return shape;
+		}
+		
+		Path2D path = new Path2D.Double(Path2D.WIND_EVEN_ODD); // if it's not there, project it (possibly on two threads at once, but that's fine)
+		int g = indices.get(i), size = 0;
+		for (int r = layer.getRingStart(g); r < layer.getRingStart(g+1); r ++)
+			size += addLine(path, layer.isPolygon(g) ? TearIndex.NONE : tears, getError(zoom),
+					layer, level, r, layer.isPolygon(g));
+		
+		synchronized (shapeCache) {
+			if (shapeCache.put(key, path) == null) {
+				shapeSizes.put(key, size);
+				shapeCachePoints += size;
+			}
+			Iterator<Map.Entry<Long, Shape>> iterator = shapeCache.entrySet().iterator();
+			while (shapeCachePoints > SHAPE_CACHE_SIZE && iterator.hasNext()) { // the least recently used are at the front
+				Map.Entry<Long, Shape> entry = iterator.next();
+				if (entry.getKey().equals(key))
+					continue; // (keep the one that was just asked for, even if it's too big on its own)
+				shapeCachePoints -= shapeSizes.remove(entry.getKey());
+				iterator.remove();
+			}
+		}
+		return path;
+	}
+	
+	
+	/**
+	 * Get the farthest that anything on the tiles at some zoom level can be from where it
+	 * really goes, in map units.
+	 */
+	private double getError(int z) {
+		return MAX_ERROR*mapSize/(1 << z)/TILE_SIZE;
+	}
+	
+	
+	/**
+	 * Look for a tile in the disk cache.
+	 * @return the PNG, or null if it isn't there.
+	 */
+	private byte[] readFromDisk(String key) throws IOException {
+		File file = new File(cacheDir, key+".png");
+		synchronized (diskCache) {
+			if (diskCache.get(file) == null) // (this also moves it to the back of the line)
+				return null;
+		}
+		try {
+			byte[] png = Files.readAllBytes(file.toPath());
+			file.setLastModified(System.currentTimeMillis()); // so that it stays in order next time
+			return png;
+		} catch (NoSuchFileException e) { // it might have been evicted in the meantime
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * Put a tile in the disk cache, and delete old tiles if it's too full.
+	 */
+	private void writeToDisk(String key, byte[] png) throws IOException {
+		File file = new File(cacheDir, key+".png");
+		File temp = new File(cacheDir, key+".png.tmp");
+		file.getParentFile().mkdirs();
+		Files.write(temp.toPath(), png); // write it to the side and move it, so nobody reads half a tile
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		
+		List<File> evicted = new ArrayList<File>();
+		synchronized (diskCache) {
+			Long old = diskCache.put(file, (long)png.length);
+			diskCacheBytes += png.length - ((old != null) ? old : 0);
+			Iterator<Map.Entry<File, Long>> iterator = diskCache.entrySet().iterator();
+			while (diskCacheBytes > DISK_CACHE_SIZE && iterator.hasNext()) { // the least recently used are at the front
+				Map.Entry<File, Long> entry = iterator.next();
+				diskCacheBytes -= entry.getValue();
+				evicted.add(entry.getKey());
+				iterator.remove();
+			}
+		}
+		for (File tile: evicted)
+			tile.delete();
+	}
+	
+	
+	/**
+	 * Respond to an HTTP request for a tile.
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+		Matcher matcher = TILE_PATH.matcher(exchange.getRequestURI().getPath());
+		if (!exchange.getRequestMethod().equals("GET")) {
+			respond(exchange, 405, "Only GET is supported");
+			return;
+		}
+		if (!matcher.matches()) {
+			respond(exchange, 404, "Tiles are at /z/x/y.png");
+			return;
+		}
+		int z = Integer.parseInt(matcher.group(1));
+		int x = Integer.parseInt(matcher.group(2));
+		int y = Integer.parseInt(matcher.group(3));
+		if (z > MAX_ZOOM || x >= (1 << z) || y >= (1 << z)) {
+			respond(exchange, 404, "There is no tile "+z+"/"+x+"/"+y);
+			return;
+		}
+		
+		getTile(z, x, y).whenComplete((png, e) -> { // send it back whenever it's ready
+			try {
+				if (e == null) {
+					exchange.getResponseHeaders().set("Content-Type", "image/png");
+					exchange.getResponseHeaders().set("Cache-Control", "max-age=86400");
+					exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+					exchange.sendResponseHeaders(200, png.length);
+					try (OutputStream body = exchange.getResponseBody()) {
+						body.write(png);
+					}
+				}
+				else if (e instanceof RejectedExecutionException) {
+					respond(exchange, 503, "Too busy; try again later");
+				}
+				else {
+					System.err.println("Could not draw tile "+z+"/"+x+"/"+y+": "+e);
+					respond(exchange, 500, "Could not draw tile");
+				}
+			} catch (IOException f) {
+				exchange.close(); // the client probably went away
+			}
+		});
+	}
+	
+	
+	private static void respond(HttpExchange exchange, int code, String message) throws IOException {
+		byte[] body = message.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(code, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+	
+	
+	/**
+	 * Project a ring of coordinates at some level of detail and add it to the path, breaking it
+	 * wherever it crosses a tear and filling in points wherever the projection bends it to
+	 * within the given tolerance. Points that don't map anywhere are skipped.
+	 * @return the number of points added.
+	 */
+	private int addLine(Path2D path, TearIndex tears, double tolerance, GeometryCache layer, int level,
+			int r, boolean closed) {
+		double[] XY = new double[2];
+		boolean[] started = {false}; // whether there is anything to draw a line from
+		int[] size = {0};
+		TearIndex.Pen pen = new TearIndex.Pen() {
+			public void moveTo(double phi, double lam) {
+				projection.mapInto(phi, lam, XY, 0);
+				if (Double.isNaN(XY[0]) || Double.isNaN(XY[1]))
+					return;
+				path.moveTo(XY[0], XY[1]);
+				started[0] = true;
+				size[0] ++;
+			}
+			
+			public void lineTo(double phi, double lam) {
+				if (!started[0]) { // if nothing before it mapped, start from here
+					moveTo(phi, lam);
+					return;
+				}
+				projection.mapInto(phi, lam, XY, 0);
+				if (Double.isNaN(XY[0]) || Double.isNaN(XY[1]))
+					return;
+				path.lineTo(XY[0], XY[1]);
+				size[0] ++;
+			}
+		};
+		tears.trace(layer, level, r, new Densifier(projection::mapInto, projection.getNumRows(), tolerance, pen));
+		if (closed && started[0])
+			path.closePath();
+		return size[0];
+	}
+	
+	
+	private static void findTiles(File dir, List<File> tiles) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File file: files) {
+			if (file.isDirectory())
+				findTiles(file, tiles);
+			else if (file.getName().endsWith(".png"))
+				tiles.add(file);
+		}
+	}
+	
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: java view.TileServer PROJECTION PORT [RASTER] [SHAPEFILE.shp...]");
+			System.exit(1);
+		}
+		File projectionFile = new File(args[0]);
+		int port = Integer.parseInt(args[1]);
+		BufferedImage raster = null;
+		List<GeometryCache> layers = new ArrayList<GeometryCache>();
+		for (int i = 2; i < args.length; i ++) {
+			if (args[i].toLowerCase().endsWith(".shp"))
+				layers.add(GeometryCache.load(new File(args[i])));
+			else
+				raster = RasterWarper.read(new File(args[i]));
+		}
+		
+		String name = projectionFile.getName().replaceFirst("\\.[^.]*$", ""); // the cache depends on the layers too,
+		String hash = Integer.toHexString(Arrays.asList(args).subList(2, args.length).hashCode()); // so give each combination its own
+		TileServer server = new TileServer(ProjectionFile.read(projectionFile), raster, layers,
+				new File("tiles", name+"-"+hash), Runtime.getRuntime().availableProcessors());
+		server.start(port);
+		System.out.println("Serving tiles at http://localhost:"+port+"/{z}/{x}/{y}.png");
+	}
+}
@@ -0,0 +1,188 @@
+/**
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ * For more information, please refer to <http://unlicense.org>
+ */
+package view;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import danseiji.Projection;
+import geo.GeometryCache;
+import geo.TearIndex;
+import model.TrajectoryReader;
+import model.TrajectoryReader.Step;
+import utils.FrameRecorder;
+
+/**
+ * A command-line tool to turn a trajectory from a TrajectoryRecorder into a convergence movie.
+ * The steps are read in order, but each frame is drawn on its own core, and only a few frames
+ * are ever in flight at once. The camera follows the Mesh the same way the Renderer's does,
+ * turning to the rotated bounding box once the last step is reached, but in the time the
+ * optimisation took rather than the time the rendering takes, so the movie doesn't depend on
+ * how fast anything was.
+ * 
+ * @author Justin Kunimune
+ */
+public class TrajectoryRenderer {
+	
+	private static final int IN_FLIGHT_PER_THREAD = 2; // the number of frames to draw ahead for each worker
+	
+	private final ImageRenderer renderer;
+	private final double decayTime; // in seconds
+	private final int numThreads;
+	
+	
+	
+	/**
+	 * Set up a renderer for trajectories.
+	 * @param size - The width and height of the map in pixels.
+	 * @param margin - The width of the margins on either side, where the text goes.
+	 * @param layers - The geometries to draw, each layer on top of the last.
+	 * @param decayTime - The number of seconds of optimisation over which the camera smoothes.
+	 * @param reader - The trajectory whose parameters to write in the margin.
+	 * @param numThreads - The number of frames to draw at once.
+	 */
+	public TrajectoryRenderer(int size, int margin, List<GeometryCache> layers, double decayTime,
+			TrajectoryReader reader, int numThreads) {
+		this.renderer = new ImageRenderer(size, margin, null, false, layers,
+				reader.getLambda(), reader.getMu(), reader.getMaxTear());
+		this.decayTime = decayTime;
+		this.numThreads = numThreads;
+	}
+	
+	
+	
+	/**
+	 * Draw every frame of the trajectory and add it to the movie.
+	 * @param reader - The trajectory to draw.
+	 * @param recorder - The movie in which to put the frames.
+	 * @param frameRate - The number of frames per second of the movie.
+	 * @param speedup - The number of seconds of optimisation in each second of the movie.
+	 * @return the number of frames drawn.
+	 * @throws IOException if there is a problem reading the trajectory or writing the movie.
+	 */
+	public int render(TrajectoryReader reader, FrameRecorder recorder, int frameRate, double speedup)
+			throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			Step step = reader.next();
+			if (step == null)
+				return 0;
+			double[] view = step.getBoundingBox(false); // start the camera wherever the Mesh starts
+			view[3] = Math.max(view[3], view[4])*1.01;
+			double dt = speedup/frameRate; // the seconds of optimisation between frames
+			double c1 = 1 - Math.exp(-dt/decayTime); // the same smoothing as Renderer.render
+			
+			TearIndex tears = null; // where the tears are, which only changes when the topology does
+			int tearsVersion = -1;
+			Deque<Future<BufferedImage>> pending = new ArrayDeque<Future<BufferedImage>>();
+			Step next = reader.next();
+			double end = Double.POSITIVE_INFINITY; // when to stop, once we know when the last step is
+			double[] settledBox = null; // the rotated box of the last step, once we know which one it is
+			int numFrames = 0;
+			for (double t = 0; t <= end; t += dt) {
+				while (next != null && next.getTime()/1000. <= t) { // skip ahead to the last step before this frame
+					step = next;
+					next = reader.next();
+				}
+				if (next == null && end == Double.POSITIVE_INFINITY) {
+					end = Math.max(t, step.getTime()/1000.) + 4*decayTime; // then let the camera settle, like Main does
+					settledBox = step.getBoundingBox(true);
+				}
+				
+				double[] box = (next != null) ? step.getBoundingBox(false) : settledBox; // (once it's done, it holds still for the rotated box)
+				view[0] = (1-c1)*view[0] + c1*box[0];
+				view[1] = (1-c1)*view[1] + c1*box[1];
+				view[2] = (1-c1)*view[2] + c1*box[2];
+				view[3] = (1-c1)*view[3] + c1*Math.max(box[3], box[4])*1.01;
+				
+				Projection projection = step.toProjection();
+				if (step.getTopologyVersion() != tearsVersion) {
+					tears = new TearIndex(projection.getEdgeCoordinates(), projection.getEccentricity());
+					tearsVersion = step.getTopologyVersion();
+				}
+				
+				Step frameStep = step;
+				TearIndex frameTears = tears;
+				double viewX = view[0], viewY = view[1], viewTh = view[2], viewW = view[3];
+				pending.add(pool.submit(() -> renderer.render(projection::mapInto, projection.getNumRows(),
+						frameTears, null, null, frameStep.getEdgeXY(), frameStep.getEnergy(), frameStep.getTearLength(),
+						viewX, viewY, viewTh, viewW, true)));
+				if (pending.size() >= IN_FLIGHT_PER_THREAD*numThreads) { // once the window is full, wait for the oldest one
+					recorder.addFrame(pending.remove().get());
+					numFrames ++;
+				}
+			}
+			while (!pending.isEmpty()) { // then flush out whatever is left
+				recorder.addFrame(pending.remove().get());
+				numFrames ++;
+			}
+			return numFrames;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while rendering the trajectory", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length < 5) {
+			System.err.println("Usage: java view.TrajectoryRenderer TRAJECTORY OUTPUT_NAME SIZE FPS SPEEDUP [SHAPEFILE.shp...]");
+			System.exit(1);
+		}
+		List<GeometryCache> layers = new ArrayList<GeometryCache>();
+		for (int i = 5; i < args.length; i ++)
+			layers.add(GeometryCache.load(new File(args[i])));
+		int size = Integer.parseInt(args[2]);
+		int frameRate = Integer.parseInt(args[3]);
+		double speedup = Double.parseDouble(args[4]);
+		
+		long start = System.currentTimeMillis();
+		try (TrajectoryReader reader = new TrajectoryReader(new File(args[0]))) {
+			TrajectoryRenderer renderer = new TrajectoryRenderer(size, size*Main.MARGIN_SIZE/Main.VIEW_SIZE,
+					layers, Main.DECAY_TIME, reader, Runtime.getRuntime().availableProcessors());
+			FrameRecorder recorder = new FrameRecorder(
+					"frames", args[1], frameRate, false, Main.FRAME_QUEUE_SIZE);
+			renderer.render(reader, recorder, frameRate, speedup);
+			int numFrames = recorder.finish();
+			System.out.println("Rendered "+numFrames+" frames in "+(System.currentTimeMillis()-start)/1000.+"s.");
+		}
+	}
+}